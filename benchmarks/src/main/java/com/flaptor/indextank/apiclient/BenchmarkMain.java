@@ -0,0 +1,26 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks like {@link org.openjdk.jmh.Main} does, adding the gc
+ * profiler unless a profiler is given, so every run reports allocation
+ * per operation besides throughput.
+ *
+ * @author flaptor
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+        if (!arguments.contains("-prof") && !arguments.contains("-h")
+                && !arguments.contains("-l") && !arguments.contains("-lprof")) {
+            arguments.add(0, "-prof");
+            arguments.add(1, "gc");
+        }
+        org.openjdk.jmh.Main.main(arguments.toArray(new String[arguments.size()]));
+    }
+
+}
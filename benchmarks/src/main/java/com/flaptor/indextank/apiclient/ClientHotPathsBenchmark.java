@@ -0,0 +1,121 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.ParameterMap;
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+
+/**
+ * Measures the work the client does on its own for every call, besides
+ * the network: building and encoding search parameters, serializing
+ * documents, building search results, the authorization header and index
+ * urls. Run with {@code -prof gc}, the default of {@link BenchmarkMain}, to
+ * see the allocation rate per operation.
+ *
+ * @author flaptor
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientHotPathsBenchmark {
+
+    private Query query;
+    private ParameterMap params;
+    private Document document;
+    private Map<String, Object> searchResponseMap;
+    private byte[] searchResponse;
+    private String privatePass;
+
+    @Setup
+    public void setUp() throws Exception {
+        Map<String, List<String>> categoryFilters = new HashMap<String, List<String>>();
+        categoryFilters.put("type", Arrays.asList("article", "review"));
+        categoryFilters.put("language", Arrays.asList("en"));
+        query = Query.forString("title:(quick brown) OR text:\"lazy dog\"")
+                .withStart(20)
+                .withLength(10)
+                .withScoringFunction(2)
+                .withSnippetFields("text")
+                .withFetchFields("title", "url")
+                .withFetchVariables()
+                .withFetchCategories()
+                .withDocumentVariableFilter(0, 10, Double.POSITIVE_INFINITY)
+                .withFunctionFilter(1, 0.5, 100)
+                .withCategoryFilters(categoryFilters)
+                .withQueryVariable(0, 41.5f)
+                .withQueryVariable(1, -3.25f);
+        params = query.toParameterMap();
+
+        document = JsonCodecBenchmark.document(7);
+
+        searchResponse = SearchResultsParsingBenchmark.searchResponse(100);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> parsed = (Map<String, Object>) JsonCodec.DEFAULT
+                .read(new ByteArrayInputStream(searchResponse));
+        searchResponseMap = parsed;
+
+        privatePass = ":pw8aJJ3p4b2kDN@d7ndr.api.indextank.com";
+    }
+
+    @Benchmark
+    public ParameterMap queryToParameterMap() {
+        return query.toParameterMap();
+    }
+
+    @Benchmark
+    public String paramsToQueryString() {
+        return IndexTankClient.paramsToQueryString(params);
+    }
+
+    @Benchmark
+    public Map<String, Object> documentToDocumentMap() {
+        return document.toDocumentMap();
+    }
+
+    @Benchmark
+    public byte[] documentToJson() {
+        return JsonCodec.DEFAULT.toBytes(document.toDocumentMap());
+    }
+
+    @Benchmark
+    public SearchResults searchResultsFromMap() {
+        return new SearchResults(searchResponseMap);
+    }
+
+    @Benchmark
+    public SearchResults searchResultsFromBytes() {
+        return SearchResults.read(searchResponse);
+    }
+
+    @Benchmark
+    public String authorizationHeader() {
+        return "Basic " + Base64.encodeBytes(privatePass.getBytes());
+    }
+
+    @Benchmark
+    public String encodeIndexName() {
+        return IndexTankClient.encodeIndexName("my index/ñandú");
+    }
+
+}
@@ -0,0 +1,148 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+
+/**
+ * Compares the {@link JsonCodec}s on the payloads the client handles most:
+ * writing a batch of documents and a variables update, and reading a batch
+ * indexing response and a search response, small enough for the default
+ * codec to scan from memory and big enough for it to parse from the stream.
+ * Run with {@code -prof gc} to see
+ * the allocation rate per operation.
+ *
+ * @author flaptor
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonCodecBenchmark {
+
+    @Param({ "default", "json-simple" })
+    public String codecName;
+
+    private JsonCodec codec;
+    private IndexTankClient.DocumentsRequestBody documentsBody;
+    private Map<String, Object> update;
+    private byte[] batchResponse;
+    private byte[] searchResponse;
+    private byte[] largeSearchResponse;
+
+    private final OutputStream discard = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        codec = codecName.equals("default") ? JsonCodec.DEFAULT : JsonCodec.JSON_SIMPLE;
+
+        List<Document> documents = new ArrayList<Document>();
+        for (int i = 0; i < 100; i++) {
+            documents.add(document(i));
+        }
+        documentsBody = new IndexTankClient.DocumentsRequestBody(documents, codec);
+
+        Map<Integer, Float> variables = new HashMap<Integer, Float>();
+        variables.put(0, 12.5f);
+        variables.put(1, 1330000000f);
+        variables.put(2, 0.75f);
+        update = new HashMap<String, Object>();
+        update.put("docid", "doc-1234");
+        update.put("variables", variables);
+
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 100; i++) {
+            json.append(i > 0 ? ", " : "").append(i % 10 == 0
+                    ? "{\"added\": false, \"error\": \"Invalid argument\"}"
+                    : "{\"added\": true}");
+        }
+        batchResponse = json.append("]").toString().getBytes();
+
+        searchResponse = SearchResultsParsingBenchmark.searchResponse(100);
+        largeSearchResponse = SearchResultsParsingBenchmark.searchResponse(2000);
+    }
+
+    /**
+     * A document shaped like a typical article: a title, a few paragraphs of
+     * text with some non-ASCII characters, variables and categories.
+     */
+    static Document document(int i) {
+        Map<String, String> fields = new HashMap<String, String>();
+        fields.put("title", "Article number " + i);
+        fields.put("url", "http://example.com/articles/" + i);
+        StringBuilder text = new StringBuilder();
+        for (int p = 0; p < 8; p++) {
+            text.append("The quick brown fox jumps over the lazy dog, café and ")
+                    .append("naïve résumés included. Paragraph ").append(p)
+                    .append(" of article ").append(i).append(".\n");
+        }
+        fields.put("text", text.toString());
+        Map<Integer, Float> variables = new HashMap<Integer, Float>();
+        variables.put(0, i * 0.5f);
+        variables.put(1, (float) i);
+        Map<String, String> categories = new HashMap<String, String>();
+        categories.put("type", "article");
+        return new Document("doc-" + i, fields, variables, categories);
+    }
+
+    @Benchmark
+    public OutputStream writeDocuments() throws IOException {
+        documentsBody.writeTo(discard);
+        return discard;
+    }
+
+    @Benchmark
+    public byte[] writeUpdate() {
+        return codec.toBytes(update);
+    }
+
+    @Benchmark
+    public Object readBatchResults() throws IOException {
+        return codec.read(new ByteArrayInputStream(batchResponse));
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public SearchResults readSearchResults() throws IOException {
+        return new SearchResults((Map<String, Object>) codec.read(
+                new ByteArrayInputStream(searchResponse)));
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public SearchResults readLargeSearchResults() throws IOException {
+        return new SearchResults((Map<String, Object>) codec.read(
+                new ByteArrayInputStream(largeSearchResponse)));
+    }
+
+}
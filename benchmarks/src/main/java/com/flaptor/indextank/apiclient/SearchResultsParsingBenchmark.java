@@ -0,0 +1,155 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.parser.JSONParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults.Hit;
+
+/**
+ * Compares reading a search response line by line into a StringBuffer and
+ * parsing the resulting string (how responses used to be read) against
+ * parsing it straight from the stream, and paging through the results as
+ * maps against paging through the lazily decoded hits. Run with
+ * {@code -prof gc} to see the allocation rate per operation.
+ *
+ * @author flaptor
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchResultsParsingBenchmark {
+
+    @Param({ "100", "500" })
+    public int results;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        body = searchResponse(results);
+    }
+
+    @Benchmark
+    public SearchResults readLines() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(body)));
+        StringBuffer response = new StringBuffer();
+        String line;
+        while ((line = in.readLine()) != null) {
+            response.append(line);
+        }
+        try {
+            return new SearchResults((Map<String, Object>) new JSONParser()
+                    .parse(response.toString()));
+        } catch (org.json.simple.parser.ParseException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Benchmark
+    public SearchResults streaming() throws Exception {
+        return new SearchResults((Map<String, Object>) IndexTankClient
+                .readResponse(new Response(body), JsonCodec.JSON_SIMPLE));
+    }
+
+    @Benchmark
+    public void pageMaps(Blackhole blackhole) throws Exception {
+        SearchResults results = streaming();
+        for (Map<String, Object> result : results.results) {
+            blackhole.consume(result.get("docid"));
+            blackhole.consume(((Number) result.get("query_relevance_score")).doubleValue());
+            blackhole.consume(result.get("title"));
+        }
+    }
+
+    @Benchmark
+    public void pageHits(Blackhole blackhole) throws Exception {
+        SearchResults results = SearchResults.read(IndexTankClient
+                .readResponseBytes(new Response(body)));
+        for (Hit hit : results.getHits()) {
+            blackhole.consume(hit.getDocId());
+            blackhole.consume(hit.getScore());
+            blackhole.consume(hit.getField("title"));
+        }
+    }
+
+    /**
+     * Builds a response shaped like a real one: docid, relevance, a snippet
+     * and a couple of fetched fields and variables per result.
+     */
+    static byte[] searchResponse(int results) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"matches\": ").append(results * 20)
+                .append(", \"search_time\": \"0.012\", \"facets\": {\"type\": {\"article\": ")
+                .append(results).append("}}, \"results\": [");
+        for (int i = 0; i < results; i++) {
+            if (i > 0) {
+                json.append(", ");
+            }
+            json.append("{\"docid\": \"doc-").append(i)
+                    .append("\", \"query_relevance_score\": ").append(results - i)
+                    .append(", \"title\": \"Result number ").append(i)
+                    .append("\", \"url\": \"http://example.com/articles/").append(i)
+                    .append("\", \"snippet_text\": \"...the quick <b>brown</b> fox jumps over the lazy dog, ")
+                    .append("caf\\u00e9 and na\\u00efve r\\u00e9sum\\u00e9s included...\"")
+                    .append(", \"variable_0\": ").append(i * 0.5)
+                    .append(", \"variable_1\": ").append(i)
+                    .append(", \"category_type\": \"article\"}");
+        }
+        json.append("]}\n");
+        return json.toString().getBytes();
+    }
+
+    private static class Response implements HttpTransport.Response {
+        private final InputStream body;
+        private final int length;
+
+        Response(byte[] body) {
+            this.body = new ByteArrayInputStream(body);
+            this.length = body.length;
+        }
+
+        @Override
+        public int getStatus() {
+            return 200;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return name.equalsIgnoreCase("Content-Length") ? String.valueOf(length) : null;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the number of documents sent in each batch to what the index
+ * handles best. The size grows by a fixed step after every batch indexed
+ * within the target latency, and is cut by a factor after a slow or failed
+ * one, so it settles near the largest size the server takes comfortably and
+ * follows it as documents or load change.
+ *
+ * A batch rejected for being too big is split in half and each half sent on
+ * its own, by the {@link BulkIndexer} or {@link IndexingPipeline} using the
+ * sizer.
+ *
+ * It's enabled on a {@link BulkIndexer} with
+ * {@link BulkIndexer.Configuration#withBatchSizer(AdaptiveBatchSizer)}.
+ *
+ * @author flaptor
+ */
+public class AdaptiveBatchSizer {
+
+    public static class Configuration {
+        protected int minDocuments = 1;
+        protected int maxDocuments = 5000;
+        protected int initialDocuments = 100;
+        protected int increment = 25;
+        protected double decreaseFactor = 0.5;
+        protected long targetLatency = 2000;
+
+        /**
+         * Bounds of the number of documents in a batch.
+         */
+        public Configuration withLimits(int minDocuments, int maxDocuments) {
+            if (minDocuments <= 0)
+                throw new IllegalArgumentException("minDocuments must be positive");
+            if (maxDocuments < minDocuments)
+                throw new IllegalArgumentException("maxDocuments can not be less than minDocuments");
+            this.minDocuments = minDocuments;
+            this.maxDocuments = maxDocuments;
+            return this;
+        }
+
+        /**
+         * Number of documents in the first batch.
+         */
+        public Configuration withInitialDocuments(int initialDocuments) {
+            if (initialDocuments <= 0)
+                throw new IllegalArgumentException("initialDocuments must be positive");
+            this.initialDocuments = initialDocuments;
+            return this;
+        }
+
+        /**
+         * Number of documents the size grows by after a good batch.
+         */
+        public Configuration withIncrement(int increment) {
+            if (increment <= 0)
+                throw new IllegalArgumentException("increment must be positive");
+            this.increment = increment;
+            return this;
+        }
+
+        /**
+         * Factor the size is multiplied by after a slow or failed batch.
+         */
+        public Configuration withDecreaseFactor(double decreaseFactor) {
+            if (decreaseFactor <= 0 || decreaseFactor >= 1)
+                throw new IllegalArgumentException("decreaseFactor must be between 0 and 1");
+            this.decreaseFactor = decreaseFactor;
+            return this;
+        }
+
+        /**
+         * Time, in milliseconds, a batch may take to be indexed before the
+         * size is decreased.
+         */
+        public Configuration withTargetLatency(long targetLatency) {
+            if (targetLatency <= 0)
+                throw new IllegalArgumentException("targetLatency must be positive");
+            this.targetLatency = targetLatency;
+            return this;
+        }
+    }
+
+    private final int minDocuments;
+    private final int maxDocuments;
+    private final int increment;
+    private final double decreaseFactor;
+    private final long targetLatency;
+
+    private volatile int batchSize;
+
+    public AdaptiveBatchSizer() {
+        this(new Configuration());
+    }
+
+    public AdaptiveBatchSizer(Configuration conf) {
+        this.minDocuments = conf.minDocuments;
+        this.maxDocuments = conf.maxDocuments;
+        this.increment = conf.increment;
+        this.decreaseFactor = conf.decreaseFactor;
+        this.targetLatency = TimeUnit.MILLISECONDS.toNanos(conf.targetLatency);
+        this.batchSize = clamp(conf.initialDocuments);
+    }
+
+    /**
+     * @return the number of documents the next batch should have.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Called after a batch of the given size was indexed in the given time.
+     */
+    synchronized void indexed(int documents, long elapsedNanos) {
+        if (elapsedNanos > targetLatency) {
+            decrease(documents);
+        } else if (documents >= batchSize) {
+            // smaller batches, sent on linger or flush, say nothing about
+            // whether a full one would be fine
+            batchSize = clamp(batchSize + increment);
+        }
+    }
+
+    /**
+     * Called after a batch of the given size failed for reasons other than
+     * its size, like a timeout or a server error.
+     */
+    synchronized void failed(int documents) {
+        decrease(documents);
+    }
+
+    /**
+     * Called after a batch of the given size was rejected for being too big.
+     */
+    synchronized void tooLarge(int documents) {
+        batchSize = clamp(Math.min(batchSize, documents / 2));
+    }
+
+    private void decrease(int documents) {
+        // batches sent before the last decrease report the congestion it
+        // already reacted to, ignore those bigger than the current size
+        if (documents <= batchSize) {
+            batchSize = clamp((int) (batchSize * decreaseFactor));
+        }
+    }
+
+    private int clamp(int size) {
+        return Math.max(minDocuments, Math.min(maxDocuments, size));
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.IndexConfiguration;
+
+/**
+ * Non-blocking version of {@link ApiClient}. Every call returns immediately
+ * and failures are reported by completing the future exceptionally with the
+ * same exceptions thrown by the blocking client.
+ */
+public interface AsyncApiClient {
+
+    AsyncIndex getIndex(String indexName);
+
+    /**
+     * Fails with {@link IndexAlreadyExistsException} or
+     * {@link MaximumIndexesExceededException}.
+     */
+    CompletableFuture<AsyncIndex> createIndex(String indexName);
+
+    /**
+     * Fails with {@link IndexAlreadyExistsException} or
+     * {@link MaximumIndexesExceededException}.
+     */
+    CompletableFuture<AsyncIndex> createIndex(String indexName,
+            IndexConfiguration conf);
+
+    /**
+     * Fails with {@link IndexDoesNotExistException}.
+     */
+    CompletableFuture<Void> deleteIndex(String indexName);
+
+    CompletableFuture<List<? extends AsyncIndex>> listIndexes();
+
+}
@@ -0,0 +1,25 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking HTTP layer used by {@link AsyncIndexTankClient}. Requests and
+ * responses are the same ones used by the blocking {@link HttpTransport}, but
+ * no thread is held while waiting for the server.
+ *
+ * @author flaptor
+ */
+public interface AsyncHttpTransport {
+
+    /**
+     * Sends the request. The returned future completes once the whole response
+     * has been received, so reading its body never blocks.
+     */
+    CompletableFuture<HttpTransport.Response> executeAsync(HttpTransport.Request request);
+
+    /**
+     * Releases every resource held by this transport.
+     */
+    void close();
+
+}
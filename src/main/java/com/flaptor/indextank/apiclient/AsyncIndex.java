@@ -0,0 +1,108 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.IndexConfiguration;
+
+/**
+ * Non-blocking version of {@link Index}. The returned futures fail with the
+ * exceptions that the equivalent {@link Index} method would throw (for
+ * instance {@link IndexDoesNotExistException} or
+ * {@link InvalidSyntaxException}), or with an {@link java.io.IOException} if
+ * the server could not be reached.
+ */
+public interface AsyncIndex {
+
+    /**
+     * Fails with {@link InvalidSyntaxException} if the query is invalid.
+     */
+    CompletableFuture<IndexTankClient.SearchResults> search(String query);
+
+    /**
+     * Fails with {@link InvalidSyntaxException} if the query is invalid.
+     */
+    CompletableFuture<IndexTankClient.SearchResults> search(
+            IndexTankClient.Query query);
+
+    CompletableFuture<Void> deleteBySearch(String query);
+
+    CompletableFuture<Void> deleteBySearch(IndexTankClient.Query query);
+
+    /**
+     * Creates this index. Fails with {@link IndexAlreadyExistsException} or
+     * {@link MaximumIndexesExceededException}.
+     */
+    CompletableFuture<Void> create();
+
+    /**
+     * Creates this index. Fails with {@link IndexAlreadyExistsException} or
+     * {@link MaximumIndexesExceededException}.
+     */
+    CompletableFuture<Void> create(IndexConfiguration conf);
+
+    /**
+     * Updates this index. Fails with {@link IndexDoesNotExistException}.
+     */
+    CompletableFuture<Void> update(IndexConfiguration conf);
+
+    /**
+     * Deletes this index. Fails with {@link IndexDoesNotExistException}.
+     */
+    CompletableFuture<Void> delete();
+
+    /**
+     * Indexes a batch of documents.
+     * 
+     * @see Index#addDocuments(Iterable)
+     */
+    CompletableFuture<IndexTankClient.BatchResults> addDocuments(
+            Iterable<IndexTankClient.Document> documents);
+
+    CompletableFuture<Void> addDocument(String documentId,
+            Map<String, String> fields);
+
+    CompletableFuture<Void> addDocument(String documentId,
+            Map<String, String> fields, Map<Integer, Float> variables);
+
+    /**
+     * @see Index#addDocument(String, Map, Map, Map)
+     */
+    CompletableFuture<Void> addDocument(String documentId,
+            Map<String, String> fields, Map<Integer, Float> variables,
+            Map<String, String> categories);
+
+    CompletableFuture<Void> deleteDocument(String documentId);
+
+    CompletableFuture<IndexTankClient.BulkDeleteResults> deleteDocuments(
+            Iterable<String> documentIds);
+
+    CompletableFuture<Void> updateVariables(String documentId,
+            Map<Integer, Float> variables);
+
+    CompletableFuture<Void> updateCategories(String documentId,
+            Map<String, String> categories);
+
+    CompletableFuture<Void> promote(String documentId, String query);
+
+    CompletableFuture<Void> addFunction(Integer functionIndex,
+            String definition);
+
+    CompletableFuture<Void> deleteFunction(Integer functionIndex);
+
+    CompletableFuture<Map<String, String>> listFunctions();
+
+    /**
+     * Completes with true if an index for the name of this instance exists.
+     */
+    CompletableFuture<Boolean> exists();
+
+    /**
+     * Fetches the metadata again and completes with whether the index has
+     * started.
+     */
+    CompletableFuture<Boolean> hasStarted();
+
+    CompletableFuture<Map<String, Object>> getMetadata();
+
+}
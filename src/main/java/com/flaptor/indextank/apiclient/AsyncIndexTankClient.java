@@ -0,0 +1,664 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.BulkDeleteResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.HttpCodeException;
+import com.flaptor.indextank.apiclient.IndexTankClient.IndexConfiguration;
+import com.flaptor.indextank.apiclient.IndexTankClient.ParameterMap;
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+
+/**
+ * Non-blocking client. It talks to the same API as {@link IndexTankClient},
+ * but through an {@link AsyncHttpTransport}, so a single client can keep many
+ * requests in flight without holding a thread for each of them.
+ *
+ * @author flaptor
+ */
+public class AsyncIndexTankClient implements AsyncApiClient {
+
+    /**
+     * Translates an unexpected HTTP code into the exception reported by the
+     * future.
+     */
+    private interface ErrorMapper {
+        Throwable map(HttpCodeException e);
+    }
+
+    private static final ErrorMapper UNEXPECTED_ERRORS = e -> new UnexpectedCodeException(e);
+
+    private static final ErrorMapper INDEX_ERRORS = e -> e.getHttpCode() == 404 ? new IndexDoesNotExistException(e)
+            : new UnexpectedCodeException(e);
+
+    private static final ErrorMapper SEARCH_ERRORS = e -> e.getHttpCode() == 400 ? new InvalidSyntaxException(e)
+            : new UnexpectedCodeException(e);
+
+    private static final ErrorMapper SYNTAX_ERRORS = e -> e.getHttpCode() == 400 ? new InvalidSyntaxException(e)
+            : INDEX_ERRORS.map(e);
+
+    private static final ErrorMapper BATCH_ERRORS = e -> e.getHttpCode() == 400 ? new IllegalArgumentException(e)
+            : INDEX_ERRORS.map(e);
+
+    private static final ErrorMapper CREATE_ERRORS = e -> {
+        if (e.getHttpCode() == 204) {
+            return new IndexAlreadyExistsException(e);
+        } else if (e.getHttpCode() == 409) {
+            return new MaximumIndexesExceededException(e);
+        } else {
+            return new UnexpectedCodeException(e);
+        }
+    };
+
+    /**
+     * Client to control a specific index.
+     *
+     * @author flaptor
+     *
+     */
+    public class Index implements AsyncIndex {
+        private final String indexUrl;
+        private volatile Map<String, Object> metadata;
+
+        private Index(String indexUrl) {
+            this.indexUrl = indexUrl;
+        }
+
+        private Index(String indexUrl, Map<String, Object> metadata) {
+            this.indexUrl = indexUrl;
+            this.metadata = metadata;
+        }
+
+        @Override
+        public CompletableFuture<SearchResults> search(String query) {
+            return search(Query.forString(query));
+        }
+
+        @Override
+        public CompletableFuture<SearchResults> search(Query query) {
+            final ParameterMap params = query.toParameterMap();
+            final SearchResultCache cache = searchCache;
+            SearchCoalescer coalescer = searchCoalescer;
+            if (cache == null && coalescer == null) {
+                return search(params, null, null);
+            }
+
+            final String key = IndexTankClient.searchKey(indexUrl, params);
+            if (cache != null) {
+                SearchResults cached = cache.get(indexUrl, key);
+                if (cached != null) {
+                    return CompletableFuture.completedFuture(cached);
+                }
+            }
+            if (coalescer == null) {
+                return search(params, cache, key);
+            }
+            return coalescer.search(indexUrl, key, () -> search(params, cache, key));
+        }
+
+        private CompletableFuture<SearchResults> search(ParameterMap params,
+                final SearchResultCache cache, final String key) {
+            final long generation = cache != null ? cache.generation(indexUrl) : 0;
+            return translate(callAPI(IndexTankClient.GET_METHOD,
+                    indexUrl + IndexTankClient.SEARCH_URL, params, null,
+                    httpResponse -> {
+                        SearchResults results = SearchResults.read(
+                                IndexTankClient.readResponseBytes(httpResponse));
+                        if (cache != null) {
+                            cache.put(indexUrl, key, generation, results);
+                        }
+                        return results;
+                    }), SEARCH_ERRORS);
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteBySearch(String query) {
+            return deleteBySearch(Query.forString(query));
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteBySearch(Query query) {
+            ParameterMap params = query.toParameterMap();
+
+            return translate(callAPI(IndexTankClient.DELETE_METHOD,
+                    indexUrl + IndexTankClient.SEARCH_URL, params)
+                    .thenApply(response -> (Void) null), SYNTAX_ERRORS);
+        }
+
+        @Override
+        public CompletableFuture<Void> create() {
+            return create(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> create(IndexConfiguration conf) {
+            final Map<String, Object> data = conf == null ? null
+                    : conf.toConfigurationMap();
+
+            return translate(exists().thenCompose(exists -> {
+                if (exists) {
+                    throw new CompletionException(new IndexAlreadyExistsException(
+                            "Index already exists"));
+                }
+                return callAPI(IndexTankClient.PUT_METHOD, indexUrl, null, data);
+            }).thenApply(response -> (Void) null), CREATE_ERRORS);
+        }
+
+        @Override
+        public CompletableFuture<Void> update(IndexConfiguration conf) {
+            if (conf == null)
+                throw new IllegalArgumentException("Index configuration must not be null");
+
+            Map<String, Object> configuration = conf.toConfigurationMap();
+
+            if (configuration.size() == 0)
+                throw new IllegalArgumentException("Index configuration is empty.");
+
+            final Map<String, Object> data = configuration;
+
+            return translate(exists().thenCompose(exists -> {
+                if (!exists) {
+                    throw new CompletionException(new IndexDoesNotExistException(
+                            "Index does not exist"));
+                }
+                return callAPI(IndexTankClient.PUT_METHOD, indexUrl, null, data)
+                        .handle((response, error) -> {
+                            Throwable cause = unwrap(error);
+                            if (cause == null || isHttpCode(cause, 204)) {
+                                return null;
+                            }
+                            throw new CompletionException(cause);
+                        });
+            }).thenCompose(response -> refreshMetadata()), UNEXPECTED_ERRORS);
+        }
+
+        @Override
+        public CompletableFuture<Void> delete() {
+            return translate(callAPI(IndexTankClient.DELETE_METHOD, indexUrl, null)
+                    .thenApply(response -> (Void) null), INDEX_ERRORS);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public CompletableFuture<BatchResults> addDocuments(Iterable<Document> documents) {
+            final List<Document> documentsList = new ArrayList<Document>();
+
+            for (Document document : documents) {
+                documentsList.add(document);
+            }
+
+            return translate(callAPI(IndexTankClient.PUT_METHOD,
+                    indexUrl + IndexTankClient.DOCS_URL, null,
+                    new IndexTankClient.DocumentsRequestBody(documentsList, jsonCodec)).thenApply(response -> BatchResults.fromResponse(
+                    (List<Map<String, Object>>) response, documentsList)),
+                    BATCH_ERRORS);
+        }
+
+        @Override
+        public CompletableFuture<Void> addDocument(String documentId,
+                Map<String, String> fields) {
+            return addDocument(documentId, fields, null);
+        }
+
+        @Override
+        public CompletableFuture<Void> addDocument(String documentId,
+                Map<String, String> fields, Map<Integer, Float> variables) {
+            return addDocument(documentId, fields, variables, null);
+        }
+
+        @Override
+        public CompletableFuture<Void> addDocument(String documentId,
+                Map<String, String> fields, Map<Integer, Float> variables,
+                Map<String, String> categories) {
+            Document document = new Document(documentId, fields, variables,
+                    categories);
+
+            return translate(callAPI(IndexTankClient.PUT_METHOD,
+                    indexUrl + IndexTankClient.DOCS_URL, null,
+                    document.toDocumentMap())
+                    .thenApply(response -> (Void) null), INDEX_ERRORS);
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteDocument(String documentId) {
+            if (null == documentId)
+                throw new IllegalArgumentException("documentId can not be null");
+            ParameterMap params = new ParameterMap();
+            params.put("docid", documentId);
+
+            return translate(callAPI(IndexTankClient.DELETE_METHOD,
+                    indexUrl + IndexTankClient.DOCS_URL, params)
+                    .thenApply(response -> (Void) null), INDEX_ERRORS);
+        }
+
+        @Override
+        public CompletableFuture<BulkDeleteResults> deleteDocuments(
+                Iterable<String> documentIds) {
+            if (null == documentIds)
+                throw new IllegalArgumentException("documentIds can not be null");
+
+            // split the docids so no query string goes past the URL limit
+            int baseLength = (indexUrl + IndexTankClient.DOCS_URL + "?").length();
+            final List<CompletableFuture<BulkDeleteResults>> chunks = new ArrayList<CompletableFuture<BulkDeleteResults>>();
+            List<String> chunk = new ArrayList<String>();
+            int length = baseLength;
+            for (String docid : documentIds) {
+                if (null == docid)
+                    throw new IllegalArgumentException("documentId can not be null");
+                int docidLength = "docid=&".length() + IndexTankClient.encodedLength(docid);
+                if (!chunk.isEmpty() && length + docidLength > IndexTankClient.MAX_URL_LENGTH) {
+                    chunks.add(deleteChunk(chunk));
+                    chunk = new ArrayList<String>();
+                    length = baseLength;
+                }
+                chunk.add(docid);
+                length += docidLength;
+            }
+            if (!chunk.isEmpty()) {
+                chunks.add(deleteChunk(chunk));
+            }
+            if (chunks.size() == 1) {
+                return chunks.get(0);
+            }
+
+            return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(v -> {
+                        List<Boolean> results = new ArrayList<Boolean>();
+                        List<String> errors = new ArrayList<String>();
+                        List<String> docids = new ArrayList<String>();
+                        boolean hasErrors = false;
+                        for (CompletableFuture<BulkDeleteResults> future : chunks) {
+                            BulkDeleteResults chunkResults = future.join();
+                            for (int i = 0; i < chunkResults.size(); i++) {
+                                results.add(chunkResults.getResult(i));
+                                errors.add(chunkResults.getErrorMessage(i));
+                                docids.add(chunkResults.getDocid(i));
+                            }
+                            hasErrors |= chunkResults.hasErrors();
+                        }
+                        return new BulkDeleteResults(results, errors, docids, hasErrors);
+                    });
+        }
+
+        @SuppressWarnings("unchecked")
+        private CompletableFuture<BulkDeleteResults> deleteChunk(final List<String> docids) {
+            ParameterMap params = new ParameterMap();
+            params.addAll("docid", docids);
+
+            return translate(callAPI(IndexTankClient.DELETE_METHOD,
+                    indexUrl + IndexTankClient.DOCS_URL, params).thenApply(
+                    response -> BulkDeleteResults.fromResponse(
+                            (List<Map<String, Object>>) response, docids)),
+                    INDEX_ERRORS);
+        }
+
+        @Override
+        public CompletableFuture<Void> updateVariables(String documentId,
+                Map<Integer, Float> variables) {
+            if (null == documentId)
+                throw new IllegalArgumentException("documentId can not be null");
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("docid", documentId);
+            data.put("variables", variables);
+
+            return translate(callAPI(IndexTankClient.PUT_METHOD,
+                    indexUrl + IndexTankClient.VARIABLES_URL, null,
+                    data)
+                    .thenApply(response -> (Void) null), INDEX_ERRORS);
+        }
+
+        @Override
+        public CompletableFuture<Void> updateCategories(String documentId,
+                Map<String, String> categories) {
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("docid", documentId);
+            data.put("categories", categories);
+
+            return translate(callAPI(IndexTankClient.PUT_METHOD,
+                    indexUrl + IndexTankClient.CATEGORIES_URL, null,
+                    data)
+                    .thenApply(response -> (Void) null), INDEX_ERRORS);
+        }
+
+        @Override
+        public CompletableFuture<Void> promote(String documentId, String query) {
+            if (null == documentId)
+                throw new IllegalArgumentException("documentId can not be null");
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("docid", documentId);
+            data.put("query", query);
+
+            return translate(callAPI(IndexTankClient.PUT_METHOD,
+                    indexUrl + IndexTankClient.PROMOTE_URL, null,
+                    data)
+                    .thenApply(response -> (Void) null), INDEX_ERRORS);
+        }
+
+        @Override
+        public CompletableFuture<Void> addFunction(Integer functionIndex,
+                String definition) {
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("definition", definition);
+
+            return translate(callAPI(IndexTankClient.PUT_METHOD,
+                    indexUrl + IndexTankClient.FUNCTIONS_URL + "/" + functionIndex,
+                    null, data)
+                    .thenApply(response -> (Void) null), SYNTAX_ERRORS);
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteFunction(Integer functionIndex) {
+            return translate(callAPI(IndexTankClient.DELETE_METHOD,
+                    indexUrl + IndexTankClient.FUNCTIONS_URL + "/" + functionIndex, null)
+                    .thenApply(response -> (Void) null), INDEX_ERRORS);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public CompletableFuture<Map<String, String>> listFunctions() {
+            return translate(callAPI(IndexTankClient.GET_METHOD,
+                    indexUrl + IndexTankClient.FUNCTIONS_URL, null)
+                    .thenApply(response -> {
+                        Map<String, String> result = new HashMap<String, String>();
+                        for (Entry<String, Object> entry : ((Map<String, Object>) response).entrySet()) {
+                            result.put(entry.getKey(), (String) entry.getValue());
+                        }
+                        return result;
+                    }), INDEX_ERRORS);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> exists() {
+            return translate(refreshMetadata().handle((response, error) -> {
+                Throwable cause = unwrap(error);
+                if (cause == null) {
+                    return true;
+                } else if (cause instanceof IndexDoesNotExistException) {
+                    return false;
+                }
+                throw new CompletionException(cause);
+            }), UNEXPECTED_ERRORS);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> hasStarted() {
+            return translate(refreshMetadata().thenApply(
+                    response -> (Boolean) metadata.get("started")),
+                    UNEXPECTED_ERRORS);
+        }
+
+        @Override
+        public CompletableFuture<Map<String, Object>> getMetadata() {
+            Map<String, Object> metadata = this.metadata;
+            if (metadata != null) {
+                return CompletableFuture.completedFuture(metadata);
+            }
+            return translate(refreshMetadata().thenApply(
+                    response -> this.metadata), UNEXPECTED_ERRORS);
+        }
+
+        @SuppressWarnings("unchecked")
+        private CompletableFuture<Void> refreshMetadata() {
+            return translate(callAPI(IndexTankClient.GET_METHOD, indexUrl,
+                    null).thenApply(response -> {
+                metadata = (Map<String, Object>) response;
+                return null;
+            }), INDEX_ERRORS);
+        }
+    }
+
+    private static AsyncHttpTransport defaultTransport;
+
+    private final String apiUrl;
+    private final String privatePass;
+    private final AsyncHttpTransport transport;
+    private volatile SearchResultCache searchCache;
+    private volatile SearchCoalescer searchCoalescer;
+    private volatile Compression compression;
+    private volatile JsonCodec jsonCodec = JsonCodec.DEFAULT;
+
+    public AsyncIndexTankClient(String apiUrl) {
+        this(apiUrl, getDefaultTransport());
+    }
+
+    public AsyncIndexTankClient(String apiUrl, AsyncHttpTransport transport) {
+        if (transport == null)
+            throw new IllegalArgumentException("transport can not be null");
+        this.apiUrl = IndexTankClient.appendTrailingSlash(apiUrl);
+        this.transport = transport;
+        try {
+            this.privatePass = new URL(apiUrl).getUserInfo();
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Answers repeated searches made through this client's indexes from the
+     * given cache. Pass null to stop caching.
+     */
+    public AsyncIndexTankClient withSearchCache(SearchResultCache searchCache) {
+        this.searchCache = searchCache;
+        return this;
+    }
+
+    /**
+     * Makes identical searches made at the same time through this client's
+     * indexes share a single call. Pass null to stop coalescing.
+     */
+    public AsyncIndexTankClient withSearchCoalescer(SearchCoalescer searchCoalescer) {
+        this.searchCoalescer = searchCoalescer;
+        return this;
+    }
+
+    /**
+     * Compresses the bodies of the calls made through this client and its
+     * indexes, and asks for compressed responses, as the given compression
+     * says. Pass null to stop compressing.
+     */
+    public AsyncIndexTankClient withCompression(Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Writes and reads the JSON of the calls made through this client and
+     * its indexes with the given codec, {@link JsonCodec#DEFAULT} unless
+     * set.
+     */
+    public AsyncIndexTankClient withJsonCodec(JsonCodec jsonCodec) {
+        if (jsonCodec == null)
+            throw new IllegalArgumentException("jsonCodec can not be null");
+        this.jsonCodec = jsonCodec;
+        return this;
+    }
+
+    private static synchronized AsyncHttpTransport getDefaultTransport() {
+        if (defaultTransport == null) {
+            defaultTransport = new JdkAsyncHttpTransport();
+        }
+        return defaultTransport;
+    }
+
+    @Override
+    public Index getIndex(String indexName) {
+        return new Index(getIndexUrl(indexName));
+    }
+
+    @Override
+    public CompletableFuture<AsyncIndex> createIndex(String indexName) {
+        return createIndex(indexName, null);
+    }
+
+    @Override
+    public CompletableFuture<AsyncIndex> createIndex(String indexName,
+            IndexConfiguration conf) {
+        final Index index = getIndex(indexName);
+        return translate(index.create(conf).thenApply(
+                response -> (AsyncIndex) index), UNEXPECTED_ERRORS);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteIndex(String indexName) {
+        return getIndex(indexName).delete();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<List<? extends AsyncIndex>> listIndexes() {
+        return translate(callAPI(IndexTankClient.GET_METHOD, getIndexesUrl(),
+                null).thenApply(response -> {
+            List<Index> result = new ArrayList<Index>();
+            for (Entry<String, Object> entry : ((Map<String, Object>) response).entrySet()) {
+                result.add(new Index(getIndexUrl(entry.getKey()),
+                        (Map<String, Object>) entry.getValue()));
+            }
+            return result;
+        }), UNEXPECTED_ERRORS);
+    }
+
+    private CompletableFuture<Object> callAPI(String method, String urlString,
+            ParameterMap params) {
+        return callAPI(method, urlString, params, (Object) null);
+    }
+
+    private CompletableFuture<Object> callAPI(String method, String urlString,
+            ParameterMap params, Object data) {
+        return callAPI(method, urlString, params, data == null ? null
+                : new IndexTankClient.BytesRequestBody(jsonCodec.toBytes(data)));
+    }
+
+    private CompletableFuture<Object> callAPI(String method, String urlString,
+            ParameterMap params, HttpTransport.RequestBody body) {
+        final JsonCodec codec = jsonCodec;
+        return callAPI(method, urlString, params, body,
+                httpResponse -> IndexTankClient.readResponse(httpResponse, codec));
+    }
+
+    private <T> CompletableFuture<T> callAPI(String method, String urlString,
+            ParameterMap params, HttpTransport.RequestBody body,
+            final ResponseReader<T> reader) {
+        final String indexUrl = IndexTankClient.indexUrlOf(getIndexesUrl(), urlString);
+        if (params != null && !params.isEmpty()) {
+            urlString += "?" + IndexTankClient.paramsToQueryString(params);
+        }
+
+        if (!method.equals(IndexTankClient.PUT_METHOD)) {
+            body = null;
+        }
+
+        HttpTransport.Request request;
+        try {
+            request = new HttpTransport.Request(method, new URL(urlString), body);
+        } catch (MalformedURLException e) {
+            CompletableFuture<T> failed = new CompletableFuture<T>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        if (privatePass != null && !privatePass.isEmpty()) {
+            request.withHeader("Authorization",
+                    "Basic " + Base64.encodeBytes(privatePass.getBytes()));
+        }
+        Compression compression = this.compression;
+        if (compression != null) {
+            request = compression.apply(request);
+        }
+
+        CompletableFuture<T> result = transport.executeAsync(request).thenApply(response -> {
+            HttpTransport.Response httpResponse = Compression.decoded(response);
+            try {
+                return reader.read(httpResponse);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            } catch (HttpCodeException e) {
+                throw new CompletionException(e);
+            } finally {
+                httpResponse.close();
+            }
+        });
+
+        if (!method.equals(IndexTankClient.GET_METHOD)) {
+            result = result.whenComplete((value, error) -> written(indexUrl));
+        }
+        return result;
+    }
+
+    /**
+     * Invalidates the cached searches of the index a write was made to.
+     */
+    private void written(String indexUrl) {
+        if (indexUrl == null) {
+            return;
+        }
+        SearchResultCache cache = searchCache;
+        if (cache != null) {
+            cache.written(indexUrl);
+        }
+        SearchCoalescer coalescer = searchCoalescer;
+        if (coalescer != null) {
+            coalescer.written(indexUrl);
+        }
+    }
+
+    /**
+     * Turns a response into the result of a call.
+     */
+    private interface ResponseReader<T> {
+        T read(HttpTransport.Response httpResponse) throws IOException,
+                HttpCodeException;
+    }
+
+    /**
+     * Returns a future that completes like the given one, but fails with the
+     * original cause instead of a {@link CompletionException}, translating
+     * HTTP codes into the matching exception.
+     */
+    private static <T> CompletableFuture<T> translate(
+            CompletableFuture<T> future, final ErrorMapper mapper) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        future.whenComplete((value, error) -> {
+            Throwable cause = unwrap(error);
+            if (cause == null) {
+                result.complete(value);
+            } else if (cause instanceof HttpCodeException) {
+                result.completeExceptionally(mapper.map((HttpCodeException) cause));
+            } else {
+                result.completeExceptionally(cause);
+            }
+        });
+        return result;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    private static boolean isHttpCode(Throwable error, int httpCode) {
+        return error instanceof HttpCodeException
+                && ((HttpCodeException) error).getHttpCode() == httpCode;
+    }
+
+    private String getIndexUrl(String indexName) {
+        return getIndexesUrl() + IndexTankClient.encodeIndexName(indexName);
+    }
+
+    private String getIndexesUrl() {
+        return apiUrl + "v1/indexes/";
+    }
+
+}
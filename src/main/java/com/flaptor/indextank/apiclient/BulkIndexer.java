@@ -0,0 +1,344 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.HttpCodeException;
+
+/**
+ * Groups documents added by any number of threads into batches, and indexes
+ * each batch with a single {@link Index#addDocuments(Iterable)} call.
+ *
+ * A batch is sent as soon as it reaches the configured number of documents or
+ * estimated size, or once its first document has been waiting for the
+ * configured linger time. The outcome of every batch is reported to a
+ * {@link Listener}. Batches are sent by the thread that completes them,
+ * unless an {@link IndexingPipeline} is used to send them concurrently.
+ *
+ * @author flaptor
+ */
+public class BulkIndexer implements Closeable {
+
+    /**
+     * Receives the outcome of every batch. It's called from the thread that
+     * triggered the flush, so implementations must be thread-safe.
+     */
+    public interface Listener {
+        /**
+         * Called once the batch has been sent. The results hold the outcome of
+         * every document in the batch.
+         */
+        void onBatchIndexed(BatchResults results);
+
+        /**
+         * Called when the whole batch couldn't be indexed.
+         */
+        void onBatchFailed(List<Document> documents, Exception error);
+    }
+
+    public static class Configuration {
+        protected int maxDocuments = 500;
+        protected long maxBytes = 1024 * 1024;
+        protected long maxLinger = 1000;
+        protected AdaptiveBatchSizer batchSizer;
+
+        /**
+         * Maximum number of documents in a batch.
+         */
+        public Configuration withMaxDocuments(int maxDocuments) {
+            if (maxDocuments <= 0)
+                throw new IllegalArgumentException("maxDocuments must be positive");
+            this.maxDocuments = maxDocuments;
+            return this;
+        }
+
+        /**
+         * Maximum estimated size of a batch, in bytes. A single document
+         * bigger than this is sent in a batch of its own.
+         */
+        public Configuration withMaxBytes(long maxBytes) {
+            if (maxBytes <= 0)
+                throw new IllegalArgumentException("maxBytes must be positive");
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Maximum time, in milliseconds, a document waits for its batch to
+         * fill up before it's sent anyway.
+         */
+        public Configuration withMaxLinger(long maxLinger) {
+            if (maxLinger <= 0)
+                throw new IllegalArgumentException("maxLinger must be positive");
+            this.maxLinger = maxLinger;
+            return this;
+        }
+
+        /**
+         * Lets the given sizer decide the number of documents in a batch,
+         * instead of maxDocuments, and split batches rejected for being too
+         * big. It can be shared by several indexers sending to the same
+         * index.
+         */
+        public Configuration withBatchSizer(AdaptiveBatchSizer batchSizer) {
+            this.batchSizer = batchSizer;
+            return this;
+        }
+
+        int maxDocuments() {
+            return batchSizer != null ? batchSizer.getBatchSize() : maxDocuments;
+        }
+    }
+
+    private final Index index;
+    private final IndexingPipeline pipeline;
+    private final Configuration conf;
+    private final Listener listener;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    // guarded by this
+    private List<Document> buffer = new ArrayList<Document>();
+    private long bufferBytes;
+    private long batchNumber;
+    private boolean closed;
+
+    public BulkIndexer(Index index, Listener listener) {
+        this(index, new Configuration(), listener);
+    }
+
+    public BulkIndexer(Index index, Configuration conf, Listener listener) {
+        if (index == null)
+            throw new IllegalArgumentException("index can not be null");
+        if (listener == null)
+            throw new IllegalArgumentException("listener can not be null");
+        this.index = index;
+        this.pipeline = null;
+        this.conf = conf;
+        this.listener = listener;
+        this.scheduler = newScheduler();
+    }
+
+    /**
+     * Creates an indexer that hands its batches to the given pipeline, which
+     * sends them concurrently and reports their outcome to its own listener.
+     * Closing this indexer doesn't close the pipeline.
+     */
+    public BulkIndexer(IndexingPipeline pipeline, Configuration conf) {
+        if (pipeline == null)
+            throw new IllegalArgumentException("pipeline can not be null");
+        this.index = null;
+        this.pipeline = pipeline;
+        this.conf = conf;
+        this.listener = pipeline.getListener();
+        this.scheduler = newScheduler();
+    }
+
+    private static ScheduledThreadPoolExecutor newScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "indextank-bulk-indexer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return scheduler;
+    }
+
+    /**
+     * Adds a document to the current batch. If that completes the batch, it's
+     * sent (or handed to the pipeline) before this method returns.
+     *
+     * @throws IllegalStateException
+     *             if this indexer has been closed
+     * @throws java.util.concurrent.RejectedExecutionException
+     *             if the completed batch was rejected by the pipeline
+     */
+    public void add(Document document) {
+        if (document == null)
+            throw new IllegalArgumentException("document can not be null");
+
+        int size = document.estimateSize();
+        List<Document> previous = null;
+        List<Document> full = null;
+
+        synchronized (this) {
+            if (closed)
+                throw new IllegalStateException("BulkIndexer has been closed");
+
+            if (!buffer.isEmpty() && bufferBytes + size > conf.maxBytes) {
+                previous = takeBatch();
+            }
+
+            buffer.add(document);
+            bufferBytes += size;
+
+            if (buffer.size() >= conf.maxDocuments() || bufferBytes >= conf.maxBytes) {
+                full = takeBatch();
+            } else if (buffer.size() == 1) {
+                scheduleLinger(batchNumber);
+            }
+        }
+
+        if (previous != null) {
+            send(previous);
+        }
+        if (full != null) {
+            send(full);
+        }
+    }
+
+    /**
+     * Sends the current batch, if any, and waits for it to complete.
+     */
+    public void flush() {
+        List<Document> batch;
+        synchronized (this) {
+            batch = takeBatch();
+        }
+        if (batch != null) {
+            send(batch);
+        }
+    }
+
+    /**
+     * Sends the pending documents and releases the linger thread. Documents
+     * can't be added after this.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        flush();
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of documents waiting in the current batch.
+     */
+    public synchronized int getPendingCount() {
+        return buffer.size();
+    }
+
+    private void send(List<Document> batch) {
+        if (pipeline != null) {
+            pipeline.submit(batch, conf.batchSizer);
+        } else {
+            send(index, batch, listener, conf.batchSizer);
+        }
+    }
+
+    /**
+     * Indexes a batch and reports its outcome to the listener. With a sizer,
+     * the time it took is reported to it, and if the batch is rejected, with
+     * a 413 or a 400, each half is sent on its own, down to the document the
+     * API doesn't take. Only a 413 tells the sizer the batch was too big; a
+     * 400 is about the content of a document, not its size.
+     */
+    static void send(Index index, List<Document> batch, Listener listener,
+            AdaptiveBatchSizer sizer) {
+        BatchResults results;
+        long start = System.nanoTime();
+        try {
+            results = index.addDocuments(batch);
+        } catch (IOException e) {
+            failed(batch, listener, sizer, e);
+            return;
+        } catch (IndexDoesNotExistException e) {
+            listener.onBatchFailed(batch, e);
+            return;
+        } catch (IllegalArgumentException e) {
+            // a batch the API rejected with a 400
+            if (!(e.getCause() instanceof HttpCodeException)
+                    || ((HttpCodeException) e.getCause()).getHttpCode() != 400) {
+                listener.onBatchFailed(batch, e);
+            } else if (sizer != null && batch.size() > 1) {
+                split(index, batch, listener, sizer);
+            } else {
+                listener.onBatchFailed(batch, e);
+            }
+            return;
+        } catch (UnexpectedCodeException e) {
+            if (sizer != null && e.httpCode == 413 && batch.size() > 1) {
+                sizer.tooLarge(batch.size());
+                split(index, batch, listener, sizer);
+            } else {
+                failed(batch, listener, sizer, e);
+            }
+            return;
+        } catch (RuntimeException e) {
+            listener.onBatchFailed(batch, e);
+            return;
+        }
+        if (sizer != null) {
+            sizer.indexed(batch.size(), System.nanoTime() - start);
+        }
+        listener.onBatchIndexed(results);
+    }
+
+    private static void failed(List<Document> batch, Listener listener,
+            AdaptiveBatchSizer sizer, Exception error) {
+        if (sizer != null) {
+            sizer.failed(batch.size());
+        }
+        listener.onBatchFailed(batch, error);
+    }
+
+    private static void split(Index index, List<Document> batch,
+            Listener listener, AdaptiveBatchSizer sizer) {
+        int half = batch.size() / 2;
+        send(index, new ArrayList<Document>(batch.subList(0, half)), listener, sizer);
+        send(index, new ArrayList<Document>(batch.subList(half, batch.size())), listener, sizer);
+    }
+
+    private List<Document> takeBatch() {
+        if (buffer.isEmpty()) {
+            return null;
+        }
+        List<Document> batch = buffer;
+        buffer = new ArrayList<Document>(Math.min(batch.size(), conf.maxDocuments()));
+        bufferBytes = 0;
+        batchNumber++;
+        return batch;
+    }
+
+    private void scheduleLinger(final long batch) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                List<Document> expired = null;
+                synchronized (BulkIndexer.this) {
+                    if (batchNumber == batch) {
+                        expired = takeBatch();
+                    }
+                }
+                if (expired != null) {
+                    try {
+                        send(expired);
+                    } catch (RejectedExecutionException e) {
+                        // already reported to the listener by the pipeline
+                    }
+                }
+            }
+        }, conf.maxLinger, TimeUnit.MILLISECONDS);
+    }
+
+}
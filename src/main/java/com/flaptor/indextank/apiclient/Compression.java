@@ -0,0 +1,267 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.Map.Entry;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses the bodies of requests and asks for compressed responses,
+ * decompressing them as they are read.
+ *
+ * Bodies of known length are compressed when they reach a minimum size.
+ * Bodies streamed as they are written, like batches of documents, are always
+ * compressed, also as they are written, so they are never held whole in
+ * memory.
+ *
+ * It's enabled on a client with
+ * {@link IndexTankClient#withCompression(Compression)} or
+ * {@link AsyncIndexTankClient#withCompression(Compression)}, and can be
+ * shared by several clients. The server must accept compressed requests.
+ *
+ * @author flaptor
+ */
+public class Compression {
+
+    public enum Encoding {
+        GZIP("gzip"), DEFLATE("deflate");
+
+        private final String name;
+
+        private Encoding(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the name of the encoding in the Content-Encoding header.
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    public static class Configuration {
+        protected Encoding encoding = Encoding.GZIP;
+        protected int level = Deflater.DEFAULT_COMPRESSION;
+        protected long minSize = 1024;
+        protected boolean acceptCompressed = true;
+
+        /**
+         * Encoding the bodies of requests are compressed with.
+         */
+        public Configuration withEncoding(Encoding encoding) {
+            if (encoding == null)
+                throw new IllegalArgumentException("encoding can not be null");
+            this.encoding = encoding;
+            return this;
+        }
+
+        /**
+         * Compression level, from 1 (fastest) to 9 (smallest).
+         */
+        public Configuration withLevel(int level) {
+            if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+                throw new IllegalArgumentException("level must be between 1 and 9");
+            this.level = level;
+            return this;
+        }
+
+        /**
+         * Size, in bytes, from which bodies of known length are compressed.
+         */
+        public Configuration withMinSize(long minSize) {
+            if (minSize < 0)
+                throw new IllegalArgumentException("minSize can not be negative");
+            this.minSize = minSize;
+            return this;
+        }
+
+        /**
+         * Whether the server is asked for compressed responses.
+         */
+        public Configuration withAcceptCompressed(boolean acceptCompressed) {
+            this.acceptCompressed = acceptCompressed;
+            return this;
+        }
+    }
+
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private final Encoding encoding;
+    private final int level;
+    private final long minSize;
+    private final boolean acceptCompressed;
+
+    public Compression() {
+        this(new Configuration());
+    }
+
+    public Compression(Configuration conf) {
+        this.encoding = conf.encoding;
+        this.level = conf.level;
+        this.minSize = conf.minSize;
+        this.acceptCompressed = conf.acceptCompressed;
+    }
+
+    /**
+     * Adds the compression headers to a request, compressing its body if
+     * it's worth it.
+     *
+     * @return the request to send instead.
+     */
+    HttpTransport.Request apply(HttpTransport.Request request) {
+        HttpTransport.RequestBody body = request.getBody();
+        boolean compress = body != null
+                && (body.contentLength() < 0 || body.contentLength() >= minSize);
+        if (compress) {
+            HttpTransport.Request compressed = new HttpTransport.Request(
+                    request.getMethod(), request.getUrl(), new CompressedBody(body));
+            for (Entry<String, String> header : request.getHeaders().entrySet()) {
+                compressed.withHeader(header.getKey(), header.getValue());
+            }
+            compressed.withHeader("Content-Encoding", encoding.getName());
+            request = compressed;
+        }
+        if (acceptCompressed) {
+            request.withHeader("Accept-Encoding", ACCEPT_ENCODING);
+        }
+        return request;
+    }
+
+    /**
+     * @return the response, decompressing its body as it's read if it came
+     *         compressed. Empty bodies are left as they are, since some
+     *         servers label them with the encoding they would have had.
+     */
+    static HttpTransport.Response decoded(final HttpTransport.Response response) {
+        String contentEncoding = response.getHeader("Content-Encoding");
+        if (contentEncoding == null || response.getStatus() == 204
+                || response.getStatus() == 304
+                || "0".equals(trimmed(response.getHeader("Content-Length")))) {
+            return response;
+        }
+        final String name = contentEncoding.trim().toLowerCase(Locale.ROOT);
+        if (!name.equals("gzip") && !name.equals("x-gzip") && !name.equals("deflate")) {
+            return response;
+        }
+        return new HttpTransport.Response() {
+            private InputStream body;
+
+            @Override
+            public int getStatus() {
+                return response.getStatus();
+            }
+
+            @Override
+            public String getHeader(String header) {
+                // they describe the compressed body
+                if (header.equalsIgnoreCase("Content-Length")
+                        || header.equalsIgnoreCase("Content-Encoding")) {
+                    return null;
+                }
+                return response.getHeader(header);
+            }
+
+            @Override
+            public InputStream getBody() throws IOException {
+                if (body == null) {
+                    PushbackInputStream raw = new PushbackInputStream(response.getBody());
+                    int first = raw.read();
+                    if (first == -1) {
+                        body = raw;
+                    } else {
+                        raw.unread(first);
+                        body = name.equals("deflate") ? new InflaterInputStream(raw)
+                                : new GZIPInputStream(raw);
+                    }
+                }
+                return body;
+            }
+
+            @Override
+            public void close() {
+                response.close();
+            }
+        };
+    }
+
+    private static String trimmed(String value) {
+        return value == null ? null : value.trim();
+    }
+
+    /**
+     * Compresses a body as it's written, so it can be written again, for a
+     * retry, as many times as the original.
+     */
+    private class CompressedBody implements HttpTransport.RequestBody {
+        private final HttpTransport.RequestBody body;
+
+        CompressedBody(HttpTransport.RequestBody body) {
+            this.body = body;
+        }
+
+        @Override
+        public long contentLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return body.isRepeatable();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            // finished rather than closed, the transport owns the stream
+            DeflaterOutputStream compressed = encoding == Encoding.GZIP
+                    ? new GzipStream(out, level)
+                    : new DeflateStream(out, level);
+            try {
+                body.writeTo(compressed);
+                compressed.finish();
+                compressed.flush();
+            } finally {
+                ((Endable) compressed).end();
+            }
+        }
+    }
+
+    /**
+     * A compressed stream whose deflater can be released without closing
+     * the stream underneath.
+     */
+    private interface Endable {
+        void end();
+    }
+
+    private static class GzipStream extends GZIPOutputStream implements Endable {
+        GzipStream(OutputStream out, int level) throws IOException {
+            super(out, 8192);
+            def.setLevel(level);
+        }
+
+        @Override
+        public void end() {
+            def.end();
+        }
+    }
+
+    private static class DeflateStream extends DeflaterOutputStream implements Endable {
+        DeflateStream(OutputStream out, int level) {
+            super(out, new Deflater(level), 8192);
+        }
+
+        @Override
+        public void end() {
+            def.end();
+        }
+    }
+
+}
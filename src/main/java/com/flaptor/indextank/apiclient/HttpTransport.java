@@ -0,0 +1,132 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HTTP layer used by {@link IndexTankClient} to talk to the API. Implementations
+ * must be safe for concurrent use by multiple threads.
+ *
+ * @author flaptor
+ */
+public interface HttpTransport {
+
+    /**
+     * The body of a request. It is written by the transport once the request
+     * headers have been sent.
+     */
+    interface RequestBody {
+        /**
+         * @return whether {@link #writeTo(OutputStream)} writes the same
+         *         bytes every time it's called, so the request can be sent
+         *         again over a new connection when the first one fails.
+         *         Bodies aren't assumed to be, unless they say so.
+         */
+        default boolean isRepeatable() {
+            return false;
+        }
+
+        /**
+         * @return the exact length of the body in bytes, or -1 if it is not
+         *         known in advance, in which case it will be sent using chunked
+         *         transfer encoding.
+         */
+        long contentLength();
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * A request to be executed by the transport.
+     */
+    class Request {
+        private final String method;
+        private final URL url;
+        private final Map<String, String> headers = new LinkedHashMap<String, String>();
+        private final RequestBody body;
+
+        public Request(String method, URL url, RequestBody body) {
+            this.method = method;
+            this.url = url;
+            this.body = body;
+        }
+
+        /**
+         * @throws IllegalArgumentException
+         *             if the name or value hold line breaks, which would let
+         *             them add headers of their own.
+         */
+        public Request withHeader(String name, String value) {
+            if (name == null || value == null)
+                throw new IllegalArgumentException("header name and value can not be null");
+            if (hasLineBreak(name) || hasLineBreak(value))
+                throw new IllegalArgumentException("header " + name.trim() + " holds a line break");
+            this.headers.put(name, value);
+            return this;
+        }
+
+        private static boolean hasLineBreak(String text) {
+            return text.indexOf('\r') >= 0 || text.indexOf('\n') >= 0;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public URL getUrl() {
+            return url;
+        }
+
+        public Map<String, String> getHeaders() {
+            return Collections.unmodifiableMap(headers);
+        }
+
+        /**
+         * @return the body of this request, or null if it has none.
+         */
+        public RequestBody getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * The response to a request. It must always be closed, so the underlying
+     * connection can be reused or released.
+     */
+    interface Response extends Closeable {
+        int getStatus();
+
+        /**
+         * @return the value of the given header (case insensitive), or null if
+         *         it was not present in the response.
+         */
+        String getHeader(String name);
+
+        /**
+         * @return the response body. Never null, it will be empty if the
+         *         response has no body.
+         */
+        InputStream getBody() throws IOException;
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Sends the request and returns once the response status and headers are
+     * available.
+     */
+    Response execute(Request request) throws IOException;
+
+    /**
+     * Releases every resource held by this transport.
+     */
+    void close();
+
+}
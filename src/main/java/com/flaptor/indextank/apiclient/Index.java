@@ -1,8 +1,18 @@
 package com.flaptor.indextank.apiclient;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
 
 import com.flaptor.indextank.apiclient.IndexTankClient.IndexConfiguration;
 
@@ -77,13 +87,137 @@ public interface Index {
      *             match any index in the account
      * @throws UnexpectedCodeException
      *             if an error occurs serverside. This represents a temporary
-     *             error and it SHOULD BE HANDLED if a retry policy is
-     *             implemented.
+     *             error and it SHOULD BE HANDLED, unless the client retries
+     *             it with a {@link RetryPolicy}.
      */
     IndexTankClient.BatchResults addDocuments(
             Iterable<IndexTankClient.Document> documents) throws IOException,
             IndexDoesNotExistException;
 
+    /**
+     * Indexes a batch of documents like {@link #addDocuments(Iterable)},
+     * taking them from an iterator that is gone over only once, as they are
+     * written to the request. Suits cursors and readers that can't be
+     * iterated again. Implementations that don't override it collect the
+     * documents first.
+     * 
+     * @param documents
+     *            an iterator of {@link IndexTankClient.Document}s
+     * @return a {@link IndexTankClient.BatchResults} with the results
+     *         information
+     * @throws IOException
+     * @throws IndexDoesNotExistException
+     * @throws UnexpectedCodeException
+     */
+    default IndexTankClient.BatchResults addDocumentsOnce(
+            Iterator<IndexTankClient.Document> documents) throws IOException,
+            IndexDoesNotExistException {
+        if (null == documents)
+            throw new IllegalArgumentException("documents can not be null");
+        List<IndexTankClient.Document> batch = new ArrayList<IndexTankClient.Document>();
+        documents.forEachRemaining(batch::add);
+        return addDocuments(batch);
+    }
+
+    /**
+     * Indexes the documents of a stream, consuming it once, like
+     * {@link #addDocumentsOnce(Iterator)}. The stream isn't closed.
+     */
+    default IndexTankClient.BatchResults addDocumentsFromStream(
+            Stream<IndexTankClient.Document> documents) throws IOException,
+            IndexDoesNotExistException {
+        if (null == documents)
+            throw new IllegalArgumentException("documents can not be null");
+        return addDocumentsOnce(documents.iterator());
+    }
+
+    /**
+     * Indexes a batch of documents like {@link #addDocuments(Iterable)}, and
+     * sends again only the documents that failed with an error the policy
+     * considers transient, waiting between attempts as it says.
+     * 
+     * @return a {@link IndexTankClient.BatchResults} with the final outcome
+     *         of every document, in the order they were given
+     * @throws IOException
+     *             if the first attempt failed. Later failed attempts are
+     *             reported as failures of the documents they held.
+     * @throws IndexDoesNotExistException
+     */
+    default IndexTankClient.BatchResults addDocumentsWithRetry(
+            Iterable<IndexTankClient.Document> documents, RetryPolicy policy)
+            throws IOException, IndexDoesNotExistException {
+        if (null == documents)
+            throw new IllegalArgumentException("documents can not be null");
+        if (policy == null)
+            throw new IllegalArgumentException("policy can not be null");
+
+        List<IndexTankClient.Document> documentsList = new ArrayList<IndexTankClient.Document>();
+        for (IndexTankClient.Document document : documents) {
+            if (null == document)
+                throw new IllegalArgumentException("documents can not contain null");
+            documentsList.add(document);
+        }
+        int size = documentsList.size();
+        List<Boolean> results = new ArrayList<Boolean>(Collections.nCopies(size, Boolean.FALSE));
+        List<String> errors = new ArrayList<String>(Collections.<String>nCopies(size, null));
+
+        // positions of the documents sent in the current attempt
+        List<Integer> positions = new ArrayList<Integer>(size);
+        for (int i = 0; i < size; i++) {
+            positions.add(i);
+        }
+
+        policy.called();
+        for (int attempt = 1; !positions.isEmpty(); attempt++) {
+            List<IndexTankClient.Document> batch = new ArrayList<IndexTankClient.Document>(positions.size());
+            for (int position : positions) {
+                batch.add(documentsList.get(position));
+            }
+
+            IndexTankClient.BatchResults batchResults;
+            try {
+                batchResults = addDocuments(batch);
+            } catch (IOException | IndexDoesNotExistException | RuntimeException e) {
+                if (attempt == 1) {
+                    throw e;
+                }
+                // keep the outcome of the documents sent before
+                failAll(positions, errors, e);
+                break;
+            }
+
+            List<Integer> retriable = new ArrayList<Integer>();
+            for (int i = 0; i < positions.size(); i++) {
+                int position = positions.get(i);
+                if (batchResults.getResult(i)) {
+                    results.set(position, Boolean.TRUE);
+                    errors.set(position, null);
+                } else {
+                    errors.set(position, batchResults.getErrorMessage(i));
+                    if (policy.isRetriable(batchResults.getErrorMessage(i))) {
+                        retriable.add(position);
+                    }
+                }
+            }
+
+            if (retriable.isEmpty() || !policy.retry(attempt)) {
+                break;
+            }
+            policy.sleep(policy.delay(attempt, null));
+            positions = retriable;
+        }
+
+        return new IndexTankClient.BatchResults(results, errors, documentsList,
+                results.contains(Boolean.FALSE));
+    }
+
+    private static void failAll(List<Integer> positions, List<String> errors,
+            Exception error) {
+        for (int position : positions) {
+            errors.set(position, String.valueOf(error.getMessage()));
+        }
+    }
+
     void addDocument(String documentId, Map<String, String> fields)
             throws IOException, IndexDoesNotExistException;
 
@@ -104,8 +238,8 @@ public interface Index {
      *             match any index in the account
      * @throws UnexpectedCodeException
      *             if an error occurs serverside. This represents a temporary
-     *             error and it SHOULD BE HANDLED if a retry policy is
-     *             implemented.
+     *             error and it SHOULD BE HANDLED, unless the client retries
+     *             it with a {@link RetryPolicy}.
      */
     void addDocument(String documentId, Map<String, String> fields,
             Map<Integer, Float> variables) throws IOException,
@@ -131,8 +265,8 @@ public interface Index {
      *             match any index in the account
      * @throws UnexpectedCodeException
      *             if an error occurs serverside. This represents a temporary
-     *             error and it SHOULD BE HANDLED if a retry policy is
-     *             implemented.
+     *             error and it SHOULD BE HANDLED, unless the client retries
+     *             it with a {@link RetryPolicy}.
      */
     void addDocument(String documentId, Map<String, String> fields,
             Map<Integer, Float> variables, Map<String, String> categories)
@@ -153,10 +287,13 @@ public interface Index {
 
     /**
      * Deletes the given docids from the index if they existed. Otherwise, does
-     * nothing.
+     * nothing. Many docids are split in several calls, to keep their URLs
+     * short, which are made several at a time.
      * 
      * @param documentIds
      *            a iterable with unique document identifiers. Never {@code null}.
+     * @return a {@link IndexTankClient.BulkDeleteResults} with the outcome of
+     *         every delete, in the order they were given
      * @throws IOException
      * @throws IndexDoesNotExistException
      * @throws UnexpectedCodeException
@@ -196,6 +333,80 @@ public interface Index {
     void updateCategories(String documentId, Map<String, String> variables)
             throws IOException, IndexDoesNotExistException;
 
+    /**
+     * Updates the variables of many documents. The updates are sent in
+     * batches, several batches at a time, or one by one if the server doesn't
+     * take them in batches. Implementations that don't override it send
+     * them one by one.
+     * 
+     * @param updates
+     *            pairs of document identifier and the variables to set on it.
+     *            Never {@code null}.
+     * @return a {@link IndexTankClient.BulkUpdateResults} with the outcome of
+     *         every update, in the order they were given
+     * @throws IOException
+     * @throws IndexDoesNotExistException
+     * @throws UnexpectedCodeException
+     */
+    default IndexTankClient.BulkUpdateResults updateVariables(
+            Iterable<Map.Entry<String, Map<Integer, Float>>> updates)
+            throws IOException, IndexDoesNotExistException {
+        if (null == updates)
+            throw new IllegalArgumentException("updates can not be null");
+        List<Boolean> results = new ArrayList<Boolean>();
+        List<String> errors = new ArrayList<String>();
+        List<String> docids = new ArrayList<String>();
+        for (Map.Entry<String, Map<Integer, Float>> update : updates) {
+            docids.add(update.getKey());
+            try {
+                updateVariables(update.getKey(), update.getValue());
+                results.add(Boolean.TRUE);
+                errors.add(null);
+            } catch (UnexpectedCodeException e) {
+                results.add(Boolean.FALSE);
+                errors.add(e.getMessage());
+            }
+        }
+        return new IndexTankClient.BulkUpdateResults(results, errors, docids,
+                results.contains(Boolean.FALSE));
+    }
+
+    /**
+     * Updates the categories of many documents, like
+     * {@link #updateVariables(Iterable)} does with variables.
+     * 
+     * @param updates
+     *            pairs of document identifier and the categories to set on
+     *            it. Never {@code null}.
+     * @return a {@link IndexTankClient.BulkUpdateResults} with the outcome of
+     *         every update, in the order they were given
+     * @throws IOException
+     * @throws IndexDoesNotExistException
+     * @throws UnexpectedCodeException
+     */
+    default IndexTankClient.BulkUpdateResults updateCategories(
+            Iterable<Map.Entry<String, Map<String, String>>> updates)
+            throws IOException, IndexDoesNotExistException {
+        if (null == updates)
+            throw new IllegalArgumentException("updates can not be null");
+        List<Boolean> results = new ArrayList<Boolean>();
+        List<String> errors = new ArrayList<String>();
+        List<String> docids = new ArrayList<String>();
+        for (Map.Entry<String, Map<String, String>> update : updates) {
+            docids.add(update.getKey());
+            try {
+                updateCategories(update.getKey(), update.getValue());
+                results.add(Boolean.TRUE);
+                errors.add(null);
+            } catch (UnexpectedCodeException e) {
+                results.add(Boolean.FALSE);
+                errors.add(e.getMessage());
+            }
+        }
+        return new IndexTankClient.BulkUpdateResults(results, errors, docids,
+                results.contains(Boolean.FALSE));
+    }
+
     void promote(String documentId, String query) throws IOException,
             IndexDoesNotExistException;
 
@@ -229,6 +440,52 @@ public interface Index {
      * @throws IOException
      */
     boolean hasStarted() throws IOException, IndexDoesNotExistException;
+
+    /**
+     * Waits for this index to start, checking it periodically with an
+     * exponential backoff. Waits for the same index share the checks made.
+     * 
+     * @return true if the index started, false if the timeout elapsed first
+     * @throws IndexDoesNotExistException
+     * @throws IOException
+     *             if checking it kept failing, or the wait was interrupted
+     */
+    default boolean awaitStarted(long timeout, TimeUnit unit) throws IOException,
+            IndexDoesNotExistException {
+        CompletableFuture<Void> started = onStarted();
+        try {
+            started.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            started.cancel(false);
+            return false;
+        } catch (InterruptedException e) {
+            started.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the index to start");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof IndexDoesNotExistException) {
+                throw (IndexDoesNotExistException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Returns a future that completes when this index starts, checking it
+     * periodically in the background like {@link #awaitStarted}. Cancelling
+     * it stops waiting.
+     */
+    default CompletableFuture<Void> onStarted() {
+        return StartPoller.SHARED.onStarted(this, this::hasStarted);
+    }
     
     String getStatus() throws IOException, IndexDoesNotExistException;
 
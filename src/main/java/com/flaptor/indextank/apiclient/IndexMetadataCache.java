@@ -0,0 +1,202 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the metadata of indexes in memory, so {@link Index#exists()},
+ * {@link Index#getStatus()}, {@link Index#getCode()} and the like are
+ * answered without calling the API.
+ *
+ * Metadata is served for a fixed time to live. Once it gets older than the
+ * refresh time it's still served, but refreshed in the background, so indexes
+ * in regular use never wait for it. Indexes found not to exist are remembered
+ * for a shorter time.
+ *
+ * A cache is enabled on a client with
+ * {@link IndexTankClient#withMetadataCache(IndexMetadataCache)}, and can be
+ * shared by several clients. Creating, updating or deleting an index through
+ * one of them drops its cached metadata.
+ *
+ * @author flaptor
+ */
+public class IndexMetadataCache {
+
+    public static class Configuration {
+        protected long timeToLive = 60000;
+        protected long refreshAfter = 45000;
+        protected long missingTimeToLive = 5000;
+
+        /**
+         * Time, in milliseconds, metadata is served after it was fetched.
+         */
+        public Configuration withTimeToLive(long timeToLive) {
+            if (timeToLive <= 0)
+                throw new IllegalArgumentException("timeToLive must be positive");
+            this.timeToLive = timeToLive;
+            return this;
+        }
+
+        /**
+         * Age, in milliseconds, after which metadata is refreshed in the
+         * background the next time it's read. Set it to the time to live or
+         * more to never refresh in the background.
+         */
+        public Configuration withRefreshAfter(long refreshAfter) {
+            if (refreshAfter <= 0)
+                throw new IllegalArgumentException("refreshAfter must be positive");
+            this.refreshAfter = refreshAfter;
+            return this;
+        }
+
+        /**
+         * Time, in milliseconds, an index found not to exist is reported as
+         * missing without calling the API.
+         */
+        public Configuration withMissingTimeToLive(long missingTimeToLive) {
+            if (missingTimeToLive < 0)
+                throw new IllegalArgumentException("missingTimeToLive can not be negative");
+            this.missingTimeToLive = missingTimeToLive;
+            return this;
+        }
+    }
+
+    /**
+     * Fetches the metadata of an index from the API.
+     */
+    interface Loader {
+        Map<String, Object> load() throws IOException, IndexDoesNotExistException;
+    }
+
+    private static class CacheEntry {
+        // null if the index doesn't exist
+        final Map<String, Object> metadata;
+        final long fetchedAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        CacheEntry(Map<String, Object> metadata, long fetchedAt) {
+            this.metadata = metadata;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private final long timeToLive;
+    private final long refreshAfter;
+    private final long missingTimeToLive;
+    private final ConcurrentMap<String, CacheEntry> entries = new ConcurrentHashMap<String, CacheEntry>();
+    private final ThreadPoolExecutor refresher;
+
+    public IndexMetadataCache() {
+        this(new Configuration());
+    }
+
+    public IndexMetadataCache(Configuration conf) {
+        this.timeToLive = TimeUnit.MILLISECONDS.toNanos(conf.timeToLive);
+        this.refreshAfter = TimeUnit.MILLISECONDS.toNanos(conf.refreshAfter);
+        this.missingTimeToLive = TimeUnit.MILLISECONDS.toNanos(conf.missingTimeToLive);
+        this.refresher = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "indextank-metadata-refresh");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.refresher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the cached metadata of the index, loading it if it isn't
+     *         cached or has expired.
+     * @throws IndexDoesNotExistException
+     *             if the index doesn't exist, or was recently found not to
+     */
+    Map<String, Object> get(String indexUrl, final Loader loader)
+            throws IOException, IndexDoesNotExistException {
+        CacheEntry entry = entries.get(indexUrl);
+        long now = System.nanoTime();
+
+        if (entry != null && entry.metadata == null) {
+            if (now - entry.fetchedAt < missingTimeToLive) {
+                throw new IndexDoesNotExistException("Index does not exist");
+            }
+        } else if (entry != null && now - entry.fetchedAt < timeToLive) {
+            if (now - entry.fetchedAt >= refreshAfter
+                    && entry.refreshing.compareAndSet(false, true)) {
+                refresh(indexUrl, loader);
+            }
+            return entry.metadata;
+        }
+
+        return load(indexUrl, loader);
+    }
+
+    private Map<String, Object> load(String indexUrl, Loader loader)
+            throws IOException, IndexDoesNotExistException {
+        try {
+            Map<String, Object> metadata = loader.load();
+            put(indexUrl, metadata);
+            return metadata;
+        } catch (IndexDoesNotExistException e) {
+            putMissing(indexUrl);
+            throw e;
+        }
+    }
+
+    private void refresh(final String indexUrl, final Loader loader) {
+        try {
+            refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        load(indexUrl, loader);
+                    } catch (IOException e) {
+                        // keep serving what we have until it expires
+                    } catch (IndexDoesNotExistException e) {
+                        // already recorded as missing
+                    } catch (RuntimeException e) {
+                        // same as IOException
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the next read will try again once the entry expires
+        }
+    }
+
+    void put(String indexUrl, Map<String, Object> metadata) {
+        entries.put(indexUrl, new CacheEntry(metadata, System.nanoTime()));
+    }
+
+    void putMissing(String indexUrl) {
+        if (missingTimeToLive > 0) {
+            entries.put(indexUrl, new CacheEntry(null, System.nanoTime()));
+        } else {
+            entries.remove(indexUrl);
+        }
+    }
+
+    /**
+     * Drops the cached metadata of an index, so the next read loads it.
+     */
+    void invalidate(String indexUrl) {
+        entries.remove(indexUrl);
+    }
+
+    /**
+     * Drops all cached metadata.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+}
@@ -1,12 +1,10 @@
 package com.flaptor.indextank.apiclient;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -14,20 +12,32 @@ import java.net.URLEncoder;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 
 public class IndexTankClient implements ApiClient {
     
@@ -103,6 +113,13 @@ public class IndexTankClient implements ApiClient {
             return elements.get(position);
         }
 
+        /**
+         * @return the number of elements in the batch
+         */
+        public int size() {
+            return results.size();
+        }
+
         /**
          * @return an iterable with all the {@link Document}s
          *         that couldn't be indexed. It can be used to retrofeed the
@@ -113,8 +130,8 @@ public class IndexTankClient implements ApiClient {
                 @Override
                 public Iterator<T> iterator() {
                     return new Iterator<T>() {
-                        private T next = computeNext();
                         private int position = 0;
+                        private T next = computeNext();
 
                         private T computeNext() {
                             while (position < results.size()
@@ -170,6 +187,31 @@ public class IndexTankClient implements ApiClient {
         	super(results, errors, documents, hasErrors);
         }
 
+        /**
+         * Builds the results from the response of a batch indexing call.
+         */
+        static BatchResults fromResponse(List<Map<String, Object>> results,
+                List<Document> documents) {
+            List<Boolean> addeds = new ArrayList<Boolean>(results.size());
+            List<String> errors = new ArrayList<String>(results.size());
+            boolean hasErrors = false;
+
+            for (int i = 0; i < results.size(); i++) {
+                Map<String, Object> result = results.get(i);
+                Boolean added = (Boolean) result.get("added");
+
+                addeds.add(i, added);
+                errors.add(i, null);    // populate every index position to avoid IndexOutOfBoundsException below
+
+                if (!added) {
+                    hasErrors = true;
+                    errors.set(i, (String) result.get("error"));
+                }
+            }
+
+            return new BatchResults(addeds, errors, documents, hasErrors);
+        }
+
         public Document getDocument(int position) {
             return this.getElement(position);
         }
@@ -192,6 +234,31 @@ public class IndexTankClient implements ApiClient {
         	super(results, errors, docids, hasErrors);
         }
 
+        /**
+         * Builds the results from the response of a bulk delete call.
+         */
+        static BulkDeleteResults fromResponse(List<Map<String, Object>> results,
+                List<String> docids) {
+            List<Boolean> deleted = new ArrayList<Boolean>(results.size());
+            List<String> errors = new ArrayList<String>(results.size());
+            boolean hasErrors = false;
+
+            for (int i = 0; i < results.size(); i++) {
+                Map<String, Object> result = results.get(i);
+                Boolean wasDeleted = (Boolean) result.get("deleted");
+
+                deleted.add(i, wasDeleted);
+                errors.add(i, null);
+
+                if (!wasDeleted) {
+                    hasErrors = true;
+                    errors.set(i, (String) result.get("error"));
+                }
+            }
+
+            return new BulkDeleteResults(deleted, errors, docids, hasErrors);
+        }
+
         public String getDocid(int position) {
             return this.getElement(position);
         }
@@ -201,6 +268,29 @@ public class IndexTankClient implements ApiClient {
         }
     }
 
+    /**
+     * Aggregation of the outcome of updating the variables or categories of
+     * every document in the batch.
+     * 
+     * @author flaptor
+     * 
+     */
+    public static class BulkUpdateResults extends AbstractBatchResults<String> {
+
+        public BulkUpdateResults(List<Boolean> results, List<String> errors,
+                List<String> docids, boolean hasErrors) {
+            super(results, errors, docids, hasErrors);
+        }
+
+        public String getDocid(int position) {
+            return this.getElement(position);
+        }
+
+        public Iterable<String> getFailedDocids() {
+            return this.getFailedElements();
+        }
+    }
+
     /**
      * A document to be added to the Index
      * 
@@ -241,6 +331,86 @@ public class IndexTankClient implements ApiClient {
             return documentMap;
         }
 
+        String getId() {
+            return id;
+        }
+
+        /**
+         * @return a copy of this document with the given variables set on
+         *         top of its own.
+         */
+        Document withVariables(Map<Integer, Float> variables) {
+            Map<Integer, Float> merged = new HashMap<Integer, Float>();
+            if (this.variables != null) {
+                merged.putAll(this.variables);
+            }
+            merged.putAll(variables);
+            return new Document(id, fields, merged, categories);
+        }
+
+        /**
+         * @return a copy of this document with the given categories set on
+         *         top of its own. Blank values remove the category, like they
+         *         do when updating them.
+         */
+        Document withCategories(Map<String, String> categories) {
+            Map<String, String> merged = new HashMap<String, String>();
+            if (this.categories != null) {
+                merged.putAll(this.categories);
+            }
+            for (Entry<String, String> entry : categories.entrySet()) {
+                if (entry.getValue() == null || entry.getValue().trim().isEmpty()) {
+                    merged.remove(entry.getKey());
+                } else {
+                    merged.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return new Document(id, fields, variables, merged);
+        }
+
+        /**
+         * @return an estimate of the size in bytes of this document once
+         *         serialized as JSON, cheap enough to be computed for every
+         *         document.
+         */
+        int estimateSize() {
+            int size = 20 + utf8Length(id);
+            size += estimateSize(fields);
+            size += estimateSize(categories);
+            if (variables != null) {
+                size += 16 + variables.size() * 24;
+            }
+            return size;
+        }
+
+        private static int estimateSize(Map<String, String> map) {
+            if (map == null) {
+                return 0;
+            }
+            int size = 16;
+            for (Entry<String, String> entry : map.entrySet()) {
+                size += 6 + utf8Length(entry.getKey())
+                        + utf8Length(entry.getValue());
+            }
+            return size;
+        }
+
+        private static int utf8Length(String value) {
+            if (value == null) {
+                return 4;
+            }
+            int length = value.length();
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c >= 0x800) {
+                    length += 2;
+                } else if (c >= 0x80) {
+                    length++;
+                }
+            }
+            return length;
+        }
+
         public Document(String id, Map<String, String> fields,
                 Map<Integer, Float> variables, Map<String, String> categories) {
             if (id == null)
@@ -271,17 +441,106 @@ public class IndexTankClient implements ApiClient {
     public static class SearchResults {
         public final long matches;
         public final float searchTime;
+        /**
+         * The results the way the API returns them, one map per result. When
+         * read from a response, each map is only decoded when it's accessed;
+         * {@link #getHits()} is a cheaper way to go through the results.
+         */
         public final List<Map<String, Object>> results;
         public final Map<String, Map<String, Integer>> facets;
         public final String didYouMean;
+        private final List<Hit> hits;
+        private final int size;
 
         public SearchResults(Map<String, Object> response) {
+            this(response, (List<Map<String, Object>>) response.get("results"),
+                    null, -1);
+        }
+
+        private SearchResults(Map<String, Object> response,
+                List<Map<String, Object>> results, List<Hit> hits, int size) {
             matches = (Long) response.get("matches");
             searchTime = Float.valueOf((String) response.get("search_time"));
-            results = (List<Map<String, Object>>) response.get("results");
             facets = (Map<String, Map<String, Integer>>) response.get("facets");
             Object didYouMean = response.get("didyoumean");
             this.didYouMean = (didYouMean != null)? didYouMean.toString() : null;
+            this.results = results;
+
+            if (hits == null) {
+                List<Hit> fromMaps = new ArrayList<Hit>();
+                if (results != null) {
+                    for (Map<String, Object> result : results) {
+                        fromMaps.add(new Hit(result));
+                    }
+                }
+                hits = Collections.unmodifiableList(fromMaps);
+            }
+            this.hits = hits;
+            this.size = size;
+        }
+
+        /**
+         * Reads a search response. Only the bounds of each result are found
+         * here; results are decoded from the body when they're accessed.
+         */
+        static SearchResults read(byte[] body) {
+            JsonScanner scanner = new JsonScanner(body, 0, body.length);
+            Map<String, Object> response = new HashMap<String, Object>();
+            Hit[] hits = null;
+
+            scanner.expect('{');
+            if (!scanner.consume('}')) {
+                do {
+                    String key = scanner.readKey();
+                    scanner.expect(':');
+                    if (key.equals("results") && scanner.consume('[')) {
+                        hits = readHits(scanner, body);
+                    } else {
+                        response.put(key, scanner.readValue());
+                    }
+                } while (scanner.consume(','));
+                scanner.expect('}');
+            }
+
+            if (hits == null) {
+                return new SearchResults(response, null, null, body.length);
+            }
+            return new SearchResults(response, new HitMaps(hits),
+                    Collections.unmodifiableList(Arrays.asList(hits)),
+                    body.length);
+        }
+
+        private static Hit[] readHits(JsonScanner scanner, byte[] body) {
+            List<Hit> hits = new ArrayList<Hit>();
+            if (!scanner.consume(']')) {
+                do {
+                    scanner.skipWhitespace();
+                    int start = scanner.position();
+                    scanner.skipValue();
+                    hits.add(new Hit(body, start, scanner.position()));
+                } while (scanner.consume(','));
+                scanner.expect(']');
+            }
+            return hits.toArray(new Hit[hits.size()]);
+        }
+
+        /**
+         * @return a typed view of each result, in order.
+         */
+        public List<Hit> getHits() {
+            return hits;
+        }
+
+        /**
+         * @return a rough estimate of the memory held by these results, in
+         *         bytes.
+         */
+        int estimateSize() {
+            if (size >= 0) {
+                // the body, plus what its results decode into
+                return size * 2 + 64 * hits.size();
+            }
+            return 256 + 512 * hits.size();
         }
 
         @Override
@@ -289,6 +548,352 @@ public class IndexTankClient implements ApiClient {
             return "Matches: " + matches + "\nSearch Time: " + searchTime
                     + "\nResults: " + results + "\nFacets: " + facets;
         }
+
+        /**
+         * A single search result. It's decoded the first time one of its
+         * accessors is called, and kept in a compact form: field names are
+         * shared between results, and the score and variables are kept as
+         * primitives.
+         */
+        public static class Hit {
+            private static final String DOCID = "docid";
+            private static final String SCORE = "query_relevance_score";
+            private static final String VARIABLE_PREFIX = "variable_";
+            private static final String CATEGORY_PREFIX = "category_";
+            private static final String SNIPPET_PREFIX = "snippet_";
+
+            private final byte[] body;
+            private final int start;
+            private final int end;
+            private volatile Map<String, Object> map;
+            private volatile Content content;
+
+            Hit(byte[] body, int start, int end) {
+                this.body = body;
+                this.start = start;
+                this.end = end;
+            }
+
+            Hit(Map<String, Object> map) {
+                this(null, 0, 0);
+                this.map = map;
+            }
+
+            public String getDocId() {
+                return content().docId;
+            }
+
+            /**
+             * @return the relevance score, or NaN if it wasn't returned.
+             */
+            public double getScore() {
+                return content().score;
+            }
+
+            /**
+             * @return the value of a fetched field, or null if it wasn't
+             *         returned. Snippets are returned as "snippet_" + field.
+             */
+            public String getField(String name) {
+                StringValues fields = content().fields;
+                int i = fields.indexOf(name);
+                return i < 0 ? null : fields.get(i);
+            }
+
+            /**
+             * @return the snippet for a field, or null if it wasn't returned.
+             */
+            public String getSnippet(String field) {
+                return getField(SNIPPET_PREFIX + field);
+            }
+
+            /**
+             * @return a new map with the fetched fields and snippets.
+             */
+            public Map<String, String> getFields() {
+                StringValues fields = content().fields;
+                Map<String, String> result = new LinkedHashMap<String, String>();
+                for (int i = 0; i < fields.size; i++) {
+                    result.put(fields.names[i], fields.get(i));
+                }
+                return result;
+            }
+
+            /**
+             * @return the value of a variable, or NaN if it wasn't returned.
+             */
+            public double getVariable(int index) {
+                Content content = content();
+                for (int i = 0; i < content.variables; i++) {
+                    if (content.variableIndexes[i] == index) {
+                        return content.variableValues[i];
+                    }
+                }
+                return Double.NaN;
+            }
+
+            /**
+             * @return a new map with the returned variables.
+             */
+            public Map<Integer, Double> getVariables() {
+                Content content = content();
+                Map<Integer, Double> variables = new LinkedHashMap<Integer, Double>();
+                for (int i = 0; i < content.variables; i++) {
+                    variables.put(content.variableIndexes[i], content.variableValues[i]);
+                }
+                return variables;
+            }
+
+            /**
+             * @return the value of a category, or null if it wasn't returned.
+             */
+            public String getCategory(String name) {
+                StringValues categories = content().categories;
+                for (int i = 0; i < categories.size; i++) {
+                    String key = categories.names[i];
+                    if (key.length() == CATEGORY_PREFIX.length() + name.length()
+                            && key.endsWith(name)) {
+                        return categories.get(i);
+                    }
+                }
+                return null;
+            }
+
+            /**
+             * @return a new map with the returned categories.
+             */
+            public Map<String, String> getCategories() {
+                StringValues categories = content().categories;
+                Map<String, String> result = new LinkedHashMap<String, String>();
+                for (int i = 0; i < categories.size; i++) {
+                    result.put(categories.names[i].substring(
+                            CATEGORY_PREFIX.length()), categories.get(i));
+                }
+                return result;
+            }
+
+            /**
+             * @return this result the way the API returns it.
+             */
+            public Map<String, Object> asMap() {
+                Map<String, Object> map = this.map;
+                if (map == null) {
+                    map = (Map<String, Object>) new JsonScanner(body, start, end).readValue();
+                    this.map = map;
+                }
+                return map;
+            }
+
+            @Override
+            public String toString() {
+                return asMap().toString();
+            }
+
+            /**
+             * Finds where each value is. The docid, score and variables are
+             * decoded right away; fields and categories when they're read.
+             */
+            private Content content() {
+                Content content = this.content;
+                if (content == null) {
+                    Map<String, Object> map = this.map;
+                    if (map != null) {
+                        content = new Content(null);
+                        for (Entry<String, Object> entry : map.entrySet()) {
+                            content.add(entry.getKey(), entry.getValue());
+                        }
+                    } else {
+                        content = new Content(body);
+                        JsonScanner scanner = new JsonScanner(body, start, end);
+                        scanner.expect('{');
+                        if (!scanner.consume('}')) {
+                            do {
+                                String key = scanner.readKey();
+                                scanner.expect(':');
+                                if (Content.isString(key)) {
+                                    scanner.skipWhitespace();
+                                    int valueStart = scanner.position();
+                                    scanner.skipValue();
+                                    content.add(key, valueStart, scanner.position());
+                                } else {
+                                    content.add(key, scanner.readValue());
+                                }
+                            } while (scanner.consume(','));
+                            scanner.expect('}');
+                        }
+                    }
+                    this.content = content;
+                }
+                return content;
+            }
+
+            /**
+             * The located result. Written once by the thread that reads it
+             * and only read afterwards, except for the lazily decoded values.
+             */
+            private static class Content {
+                String docId;
+                double score = Double.NaN;
+                int variables;
+                int[] variableIndexes = new int[0];
+                double[] variableValues = new double[0];
+                final StringValues fields;
+                final StringValues categories;
+
+                Content(byte[] body) {
+                    fields = new StringValues(body, 4);
+                    categories = new StringValues(body, 0);
+                }
+
+                /**
+                 * @return whether the key holds a field or category.
+                 */
+                static boolean isString(String key) {
+                    return !key.equals(DOCID) && !key.equals(SCORE)
+                            && !isVariable(key);
+                }
+
+                void add(String key, int valueStart, int valueEnd) {
+                    if (key.startsWith(CATEGORY_PREFIX)) {
+                        categories.add(key, valueStart, valueEnd);
+                    } else {
+                        fields.add(key, valueStart, valueEnd);
+                    }
+                }
+
+                void add(String key, Object value) {
+                    if (key.equals(DOCID)) {
+                        docId = value == null ? null : value.toString();
+                    } else if (key.equals(SCORE) && value instanceof Number) {
+                        score = ((Number) value).doubleValue();
+                    } else if (isVariable(key) && value instanceof Number) {
+                        if (variables == variableIndexes.length) {
+                            variableIndexes = Arrays.copyOf(variableIndexes, variables * 2 + 1);
+                            variableValues = Arrays.copyOf(variableValues, variables * 2 + 1);
+                        }
+                        int index = 0;
+                        for (int i = VARIABLE_PREFIX.length(); i < key.length(); i++) {
+                            index = index * 10 + key.charAt(i) - '0';
+                        }
+                        variableIndexes[variables] = index;
+                        variableValues[variables++] = ((Number) value).doubleValue();
+                    } else if (key.startsWith(CATEGORY_PREFIX)) {
+                        categories.add(key, value == null ? null : value.toString());
+                    } else {
+                        fields.add(key, value == null ? null : value.toString());
+                    }
+                }
+
+                private static boolean isVariable(String key) {
+                    int length = key.length() - VARIABLE_PREFIX.length();
+                    if (length < 1 || length > 9 || !key.startsWith(VARIABLE_PREFIX)) {
+                        return false;
+                    }
+                    for (int i = VARIABLE_PREFIX.length(); i < key.length(); i++) {
+                        char c = key.charAt(i);
+                        if (c < '0' || c > '9') {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }
+
+            /**
+             * Names and string values. Values found in the body are only
+             * decoded, and then kept, the first time they're read.
+             */
+            private static class StringValues {
+                private final byte[] body;
+                int size;
+                String[] names;
+                private String[] values;
+                // start and end of each value in the body
+                private int[] bounds;
+
+                StringValues(byte[] body, int capacity) {
+                    this.body = body;
+                    this.names = new String[capacity];
+                    this.values = new String[capacity];
+                    this.bounds = body == null ? null : new int[capacity * 2];
+                }
+
+                void add(String name, String value) {
+                    grow();
+                    names[size] = name;
+                    values[size++] = value;
+                }
+
+                void add(String name, int start, int end) {
+                    grow();
+                    names[size] = name;
+                    bounds[size * 2] = start;
+                    bounds[size * 2 + 1] = end;
+                    size++;
+                }
+
+                private void grow() {
+                    if (size == names.length) {
+                        int capacity = size * 2 + 1;
+                        names = Arrays.copyOf(names, capacity);
+                        values = Arrays.copyOf(values, capacity);
+                        if (bounds != null) {
+                            bounds = Arrays.copyOf(bounds, capacity * 2);
+                        }
+                    }
+                }
+
+                String get(int i) {
+                    String value = values[i];
+                    if (value == null && bounds != null) {
+                        Object decoded = new JsonScanner(body, bounds[i * 2],
+                                bounds[i * 2 + 1]).readValue();
+                        if (decoded != null) {
+                            // racing readers decode equal strings, either is fine
+                            value = decoded.toString();
+                            values[i] = value;
+                        }
+                    }
+                    return value;
+                }
+
+                int indexOf(String name) {
+                    for (int i = 0; i < size; i++) {
+                        if (names[i] == name) {
+                            return i;
+                        }
+                    }
+                    for (int i = 0; i < size; i++) {
+                        if (names[i].equals(name)) {
+                            return i;
+                        }
+                    }
+                    return -1;
+                }
+            }
+        }
+
+        /**
+         * The results as maps, decoded from each {@link Hit} on access.
+         */
+        private static class HitMaps extends AbstractList<Map<String, Object>>
+                implements RandomAccess {
+            private final Hit[] hits;
+
+            HitMaps(Hit[] hits) {
+                this.hits = hits;
+            }
+
+            @Override
+            public Map<String, Object> get(int index) {
+                return hits[index].asMap();
+            }
+
+            @Override
+            public int size() {
+                return hits.length;
+            }
+        }
     }
 
     public static class Query {
@@ -566,121 +1171,373 @@ public class IndexTankClient implements ApiClient {
         }
     }
     
-    private static final String GET_METHOD = "GET";
-    private static final String PUT_METHOD = "PUT";
-    private static final String DELETE_METHOD = "DELETE";
+    static final String GET_METHOD = "GET";
+    static final String PUT_METHOD = "PUT";
+    static final String DELETE_METHOD = "DELETE";
 
-    private static final String SEARCH_URL = "/search";
-    private static final String DOCS_URL = "/docs";
-    private static final String CATEGORIES_URL = "/docs/categories";
-    private static final String VARIABLES_URL = "/docs/variables";
-    private static final String PROMOTE_URL = "/promote";
-    private static final String FUNCTIONS_URL = "/functions";
+    static final String SEARCH_URL = "/search";
+    static final String DOCS_URL = "/docs";
+    static final String CATEGORIES_URL = "/docs/categories";
+    static final String VARIABLES_URL = "/docs/variables";
+
+    /**
+     * Number of elements sent in each call of a bulk operation, and number
+     * of those calls made at the same time.
+     */
+    static final int BULK_BATCH_SIZE = 500;
+    static final int BULK_PARALLELISM = 4;
+
+    /**
+     * Time after which lists of updates are sent again to an index that
+     * only took them one by one.
+     */
+    static final long BULK_UPDATES_RECHECK_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    /**
+     * Maximum length of the URL of a call, below the limits of most servers
+     * and proxies. Bulk deletes are split in several calls to stay under it.
+     */
+    static final int MAX_URL_LENGTH = 4000;
+    static final String PROMOTE_URL = "/promote";
+    static final String FUNCTIONS_URL = "/functions";
 
     private static final DateFormat ISO8601_PARSER = new SimpleDateFormat(
             "yyyy-MM-dd'T'HH:mm:ssz");
 
-    private static Object callAPI(String method, String urlString,
+    private Object callAPI(String method, String urlString,
             ParameterMap params, String privatePass) throws IOException,
             HttpCodeException {
         return callAPI(method, urlString, params, (String) null, privatePass);
     }
 
-    private static Object callAPI(String method, String urlString,
-            String privatePass) throws IOException, HttpCodeException {
-        return callAPI(method, urlString, null, (String) null, privatePass);
+    private Object callAPI(String method, String urlString,
+            String privatePass) throws IOException, HttpCodeException {
+        return callAPI(method, urlString, null, (String) null, privatePass);
+    }
+
+    private Object callAPI(String method, String urlString,
+    		ParameterMap params, Object data,
+            String privatePass) throws IOException, HttpCodeException {
+        return callAPI(method, urlString, params, data == null ? null
+                : new BytesRequestBody(jsonCodec.toBytes(data)), privatePass);
+    }
+
+    private Object callAPI(String method, String urlString,
+    		ParameterMap params, String data, String privatePass)
+            throws IOException, HttpCodeException {
+        return callAPI(method, urlString, params, data == null ? null
+                : new BytesRequestBody(data.getBytes("UTF-8")), privatePass);
+    }
+
+    private Object callAPI(String method, String urlString,
+    		ParameterMap params, HttpTransport.RequestBody body,
+    		String privatePass) throws IOException, HttpCodeException {
+        try {
+            final JsonCodec codec = jsonCodec;
+            return call(method, urlString, params, body, privatePass,
+                    httpResponse -> readResponse(httpResponse, codec));
+        } finally {
+            if (!method.equals(GET_METHOD)) {
+                written(urlString);
+            }
+        }
+    }
+
+    /**
+     * Reads the outcome of a call from its response.
+     */
+    private interface ResponseReader<T> {
+        T read(HttpTransport.Response httpResponse) throws IOException,
+                HttpCodeException;
+    }
+
+    /**
+     * Executes a call and reads its response, sending it again as long as
+     * the {@link RetryPolicy}, if any, says so.
+     */
+    private <T> T call(String method, String urlString, ParameterMap params,
+            HttpTransport.RequestBody body, String privatePass,
+            ResponseReader<T> reader) throws IOException, HttpCodeException {
+        RetryPolicy policy = retryPolicy;
+        if (policy != null) {
+            policy.called();
+        }
+        for (int attempt = 1;; attempt++) {
+            String retryAfter = null;
+            try {
+                HttpTransport.Response httpResponse = execute(method,
+                        urlString, params, body, privatePass);
+                try {
+                    return reader.read(httpResponse);
+                } catch (HttpCodeException e) {
+                    if (policy == null
+                            || !policy.retry(method, attempt, e.getHttpCode())) {
+                        throw e;
+                    }
+                    retryAfter = httpResponse.getHeader("Retry-After");
+                } finally {
+                    httpResponse.close();
+                }
+            } catch (IOException e) {
+                if (policy == null || !policy.retry(method, attempt, e)) {
+                    throw e;
+                }
+            }
+            policy.sleep(policy.delay(attempt, retryAfter));
+        }
+    }
+
+    /**
+     * Invalidates the cached searches, and the cached metadata when it
+     * changed, of the index a write was made to.
+     */
+    private void written(String urlString) {
+        String indexUrl = indexUrlOf(getIndexesUrl(), urlString);
+        if (indexUrl == null) {
+            return;
+        }
+        SearchResultCache cache = searchCache;
+        if (cache != null) {
+            cache.written(indexUrl);
+        }
+        SearchCoalescer coalescer = searchCoalescer;
+        if (coalescer != null) {
+            coalescer.written(indexUrl);
+        }
+        IndexMetadataCache metadataCache = this.metadataCache;
+        if (metadataCache != null && urlString.equals(indexUrl)) {
+            // the index itself was created, updated or deleted
+            metadataCache.invalidate(indexUrl);
+        }
+    }
+
+    /**
+     * @return the key identifying a search on an index. Equal queries give
+     *         equal keys regardless of the order their parameters were set
+     *         in.
+     */
+    static String searchKey(String indexUrl, ParameterMap params) {
+        List<String> names = new ArrayList<String>(params.keyset());
+        Collections.sort(names);
+        StringBuilder key = new StringBuilder(indexUrl);
+        for (String name : names) {
+            key.append('\n').append(name);
+            for (String value : params.get(name)) {
+                key.append('\0').append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the url of the index an API url belongs to, or null if it
+     *         doesn't belong to any.
+     */
+    static String indexUrlOf(String indexesUrl, String urlString) {
+        if (!urlString.startsWith(indexesUrl)
+                || urlString.length() == indexesUrl.length()) {
+            return null;
+        }
+        int slash = urlString.indexOf('/', indexesUrl.length());
+        return slash < 0 ? urlString : urlString.substring(0, slash);
+    }
+
+    private HttpTransport.Response execute(String method, String urlString,
+            ParameterMap params, HttpTransport.RequestBody body,
+            String privatePass) throws IOException {
+        if (params != null && !params.isEmpty()) {
+            urlString += "?" + paramsToQueryString(params);
+        }
+        URL url = new URL(urlString);
+
+        if (!method.equals(PUT_METHOD)) {
+            body = null;
+        }
+
+        HttpTransport.Request request = new HttpTransport.Request(method, url, body);
+        if (privatePass != null && !privatePass.isEmpty()) {
+            request.withHeader("Authorization",
+                    "Basic " + Base64.encodeBytes(privatePass.getBytes()));
+        }
+        Compression compression = this.compression;
+        if (compression != null) {
+            request = compression.apply(request);
+        }
+
+        return Compression.decoded(transport.execute(request));
+    }
+
+    /**
+     * Parses the body of a successful response straight from its stream, or
+     * throws an {@link HttpCodeException} with the body as message.
+     */
+    static Object readResponse(HttpTransport.Response httpResponse,
+            JsonCodec codec) throws IOException, HttpCodeException {
+        return codec.read(successfulBody(httpResponse));
+    }
+
+    /**
+     * Reads the whole body of a successful response, or throws an
+     * {@link HttpCodeException} with the body as message.
+     */
+    static byte[] readResponseBytes(HttpTransport.Response httpResponse)
+            throws IOException, HttpCodeException {
+        InputStream body = successfulBody(httpResponse);
+        String contentLength = httpResponse.getHeader("Content-Length");
+        if (contentLength != null) {
+            try {
+                byte[] bytes = new byte[Integer.parseInt(contentLength.trim())];
+                int read = body.readNBytes(bytes, 0, bytes.length);
+                if (read == bytes.length && body.read() == -1) {
+                    return bytes;
+                }
+                throw new IOException("Response body doesn't match its Content-Length");
+            } catch (NumberFormatException e) {
+                // fall back to reading until the end of the stream
+            }
+        }
+        return body.readAllBytes();
+    }
+
+    private static InputStream successfulBody(HttpTransport.Response httpResponse)
+            throws IOException, HttpCodeException {
+        InputStream body = httpResponse.getBody();
+        int responseCode = httpResponse.getStatus();
+        if (responseCode != 200 && responseCode != 201) {
+            throw new HttpCodeException(responseCode, ResponseParser.readString(body));
+        }
+        return body;
     }
 
-    private static Object callAPI(String method, String urlString,
-    		ParameterMap params, Map<String, Object> data,
-            String privatePass) throws IOException, HttpCodeException {
-        return callAPI(method, urlString, params, data == null ? null
-                : JSONObject.toJSONString(data), privatePass);
-    }
+    /**
+     * Serializes a batch of documents as a JSON array straight into the
+     * request, one document at a time, so the whole payload is never held in
+     * memory.
+     */
+    static class DocumentsRequestBody implements HttpTransport.RequestBody {
+        private final Iterable<Document> documents;
 
-    private static Object callAPI(String method, String urlString,
-    		ParameterMap params, List<Map<String, Object>> data,
-            String privatePass) throws IOException, HttpCodeException {
-        return callAPI(method, urlString, params, data == null ? null
-                : JSONArray.toJSONString(data), privatePass);
-    }
+        private final JsonCodec codec;
 
-    private static Object callAPI(String method, String urlString,
-    		ParameterMap params, String data, String privatePass)
-            throws IOException, HttpCodeException {
+        DocumentsRequestBody(Iterable<Document> documents, JsonCodec codec) {
+            this.documents = documents;
+            this.codec = codec;
+        }
 
-        if (params != null && !params.isEmpty()) {
-            urlString += "?" + paramsToQueryString(params);
+        @Override
+        public long contentLength() {
+            return -1;
         }
-        URL url = new URL(urlString);
 
-        HttpURLConnection urlConnection = (HttpURLConnection) url
-                .openConnection();
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
 
-        // GAE fix:
-        // http://code.google.com/p/googleappengine/issues/detail?id=1454
-        urlConnection.setInstanceFollowRedirects(false);
-        urlConnection.setDoOutput(true);
-        if (privatePass != null && !privatePass.isEmpty()) {
-            urlConnection.setRequestProperty("Authorization",
-                    "Basic " + Base64.encodeBytes(privatePass.getBytes()));
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            codec.write(new Iterable<Map<String, Object>>() {
+                @Override
+                public Iterator<Map<String, Object>> iterator() {
+                    final Iterator<Document> it = documents.iterator();
+                    return new Iterator<Map<String, Object>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return it.hasNext();
+                        }
+
+                        @Override
+                        public Map<String, Object> next() {
+                            return it.next().toDocumentMap();
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            }, out);
         }
-        urlConnection.setRequestMethod(method);
+    }
 
-        if (method.equals(PUT_METHOD) && data != null) {
-            // write
-            OutputStreamWriter out = new OutputStreamWriter(
-                    urlConnection.getOutputStream(), "UTF-8");
-            out.write(data);
-            out.close();
+    /**
+     * Goes over a one-shot iterator once, remembering the documents it
+     * returned, so they can be iterated again when a request body is written
+     * again and be reported in the results.
+     */
+    static class SeenDocuments implements Iterable<Document> {
+        private final Iterator<Document> source;
+        final List<Document> documents = new ArrayList<Document>();
+
+        SeenDocuments(Iterator<Document> source) {
+            this.source = source;
         }
 
-        BufferedReader in;
-        int responseCode = urlConnection.getResponseCode();
-        StringBuffer response = new StringBuffer();
+        @Override
+        public Iterator<Document> iterator() {
+            return new Iterator<Document>() {
+                private int position = 0;
 
-        if (responseCode >= 400) {
-            InputStream errorStream = urlConnection.getErrorStream();
+                @Override
+                public boolean hasNext() {
+                    return position < documents.size() || source.hasNext();
+                }
 
-            if (errorStream != null) {
-                in = new BufferedReader(new InputStreamReader(errorStream));
-                String line;
-                while ((line = in.readLine()) != null) {
-                    response.append(line);
+                @Override
+                public Document next() {
+                    if (position == documents.size()) {
+                        Document document = source.next();
+                        if (null == document)
+                            throw new IllegalArgumentException("document can not be null");
+                        documents.add(document);
+                    }
+                    return documents.get(position++);
                 }
-            }
 
-            throw new HttpCodeException(responseCode, response.toString());
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
         }
+    }
 
-        in = new BufferedReader(new InputStreamReader(
-                urlConnection.getInputStream()));
+    static class BytesRequestBody implements HttpTransport.RequestBody {
+        private final byte[] data;
 
-        String line;
-        while ((line = in.readLine()) != null) {
-            response.append(line);
+        BytesRequestBody(byte[] data) {
+            this.data = data;
         }
 
-        if (responseCode != 200 && responseCode != 201) {
-            throw new HttpCodeException(responseCode, response.toString());
+        @Override
+        public long contentLength() {
+            return data.length;
         }
 
-        in.close();
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
 
-        String jsonResponse = response.toString();
-        if (!jsonResponse.isEmpty()) {
-            JSONParser parser = new JSONParser();
-            try {
-                return parser.parse(jsonResponse);
-            } catch (org.json.simple.parser.ParseException e) {
-                throw new RuntimeException(e);
-            }
-        } else {
-            return null;
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(data);
         }
     }
 
-    private static String paramsToQueryString(ParameterMap params) {
+    /**
+     * @return the length of the value once URL encoded.
+     */
+    static int encodedLength(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").length();
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String paramsToQueryString(ParameterMap params) {
         StringBuilder sb = new StringBuilder();
         for (String key : params.keyset()) {
         	for (String value : params.get(key)){
@@ -705,7 +1562,7 @@ public class IndexTankClient implements ApiClient {
      */
     public class Index implements com.flaptor.indextank.apiclient.Index {
         private final String indexUrl;
-        private Map<String, Object> metadata;
+        private volatile Map<String, Object> metadata;
 
         private Index(String indexUrl) {
             this.indexUrl = indexUrl;
@@ -725,11 +1582,47 @@ public class IndexTankClient implements ApiClient {
         @Override
         public SearchResults search(Query query) throws IOException,
                 InvalidSyntaxException {
-            ParameterMap params = query.toParameterMap();
-            
+            final ParameterMap params = query.toParameterMap();
+            final SearchResultCache cache = searchCache;
+            SearchCoalescer coalescer = searchCoalescer;
+            if (cache == null && coalescer == null) {
+                return search(params, null, null);
+            }
+
+            final String key = searchKey(indexUrl, params);
+            if (cache != null) {
+                SearchResults cached = cache.get(indexUrl, key);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            if (coalescer == null) {
+                return search(params, cache, key);
+            }
+
+            return await(coalescer.search(indexUrl, key, () -> {
+                CompletableFuture<SearchResults> result = new CompletableFuture<SearchResults>();
+                try {
+                    result.complete(search(params, cache, key));
+                } catch (IOException | InvalidSyntaxException e) {
+                    result.completeExceptionally(e);
+                }
+                return result;
+            }));
+        }
+
+        private SearchResults search(ParameterMap params,
+                SearchResultCache cache, String key) throws IOException,
+                InvalidSyntaxException {
+            long generation = cache != null ? cache.generation(indexUrl) : 0;
             try {
-                return new SearchResults((Map<String, Object>) callAPI(
-                        GET_METHOD, indexUrl + SEARCH_URL, params, privatePass));
+                SearchResults results = call(GET_METHOD, indexUrl + SEARCH_URL,
+                        params, null, privatePass,
+                        httpResponse -> SearchResults.read(readResponseBytes(httpResponse)));
+                if (cache != null) {
+                    cache.put(indexUrl, key, generation, results);
+                }
+                return results;
             } catch (HttpCodeException e) {
                 if (e.getHttpCode() == 400) {
                     throw new InvalidSyntaxException(e);
@@ -738,6 +1631,32 @@ public class IndexTankClient implements ApiClient {
                 }
             }
         }
+
+        /**
+         * Waits for a search shared with other threads, throwing what it
+         * threw.
+         */
+        private SearchResults await(CompletableFuture<SearchResults> search)
+                throws IOException, InvalidSyntaxException {
+            try {
+                return search.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a search in flight");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof InvalidSyntaxException) {
+                    throw (InvalidSyntaxException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
         
         @Override
         public void deleteBySearch(String query) throws IOException,
@@ -836,43 +1755,23 @@ public class IndexTankClient implements ApiClient {
         @Override
         public BatchResults addDocuments(Iterable<Document> documents)
                 throws IOException, IndexDoesNotExistException {
-            List<Map<String, Object>> data = new ArrayList<Map<String, Object>>();
-
-            for (Document document : documents) {
-                Map<String, Object> documentMap = document.toDocumentMap();
-                data.add(documentMap);
-            }
+            if (null == documents)
+                throw new IllegalArgumentException("documents can not be null");
+            return addDocumentsOnce(documents.iterator());
+        }
 
+        @Override
+        public BatchResults addDocumentsOnce(Iterator<Document> documents)
+                throws IOException, IndexDoesNotExistException {
+            if (null == documents)
+                throw new IllegalArgumentException("documents can not be null");
+            SeenDocuments seen = new SeenDocuments(documents);
             try {
                 List<Map<String, Object>> results = (List<Map<String, Object>>) callAPI(
-                        PUT_METHOD, indexUrl + DOCS_URL, null, data,
-                        privatePass);
-
-                List<Boolean> addeds = new ArrayList<Boolean>(results.size());
-                List<String> errors = new ArrayList<String>(results.size());
-                boolean hasErrors = false;
-
-                for (int i = 0; i < results.size(); i++) {
-                    Map<String, Object> result = results.get(i);
-                    Boolean added = (Boolean) result.get("added");
-
-                    addeds.add(i, added);
-                    errors.add(i, null);    // populate every index position to avoid IndexOutOfBoundsException below
-
-                    if (!added) {
-                        hasErrors = true;
-                        errors.set(i, (String) result.get("error"));
-                    }
-                }
+                        PUT_METHOD, indexUrl + DOCS_URL, null,
+                        new DocumentsRequestBody(seen, jsonCodec), privatePass);
 
-                ArrayList<Document> documentsList = new ArrayList<Document>();
-
-                for (Document document : documents) {
-                    documentsList.add(document);
-                }
-
-                return new BatchResults(addeds, errors, documentsList,
-                        hasErrors);
+                return BatchResults.fromResponse(results, seen.documents);
 
             } catch (HttpCodeException e) {
                 if (e.getHttpCode() == 400) {
@@ -961,46 +1860,70 @@ public class IndexTankClient implements ApiClient {
         		throws IOException, IndexDoesNotExistException {
             if (null == documentIds)
                 throw new IllegalArgumentException("documentIds can not be null");
-            
-            ParameterMap params = new ParameterMap();
-            params.addAll("docid", documentIds);
-            
-            try {
-            	List<Map<String, Object>> results = (List<Map<String, Object>>) 
-            		callAPI(DELETE_METHOD, indexUrl + DOCS_URL, params, privatePass);
-            	
-                List<Boolean> deleted = new ArrayList<Boolean>(results.size());
-                List<String> errors = new ArrayList<String>(results.size());
-                boolean hasErrors = false;
-
-                for (int i = 0; i < results.size(); i++) {
-                    Map<String, Object> result = results.get(i);
-                    Boolean wasDeleted = (Boolean) result.get("deleted");
-
-                    deleted.add(i, wasDeleted);
-
-                    if (!wasDeleted) {
-                        hasErrors = true;
-                        errors.add(i, (String) result.get("error"));
-                    }
-                }
-
-                ArrayList<String> docidList = new ArrayList<String>();
 
-                for (String docid : documentIds) {
-                	docidList.add(docid);
+            // split the docids so no query string goes past the URL limit
+            int baseLength = (indexUrl + DOCS_URL + "?").length();
+            List<Callable<BulkDeleteResults>> chunks = new ArrayList<Callable<BulkDeleteResults>>();
+            List<String> chunk = new ArrayList<String>();
+            int length = baseLength;
+            for (String docid : documentIds) {
+                if (null == docid)
+                    throw new IllegalArgumentException("documentId can not be null");
+                int docidLength = "docid=&".length() + encodedLength(docid);
+                if (!chunk.isEmpty() && length + docidLength > MAX_URL_LENGTH) {
+                    chunks.add(deleteChunk(chunk));
+                    chunk = new ArrayList<String>();
+                    length = baseLength;
                 }
+                chunk.add(docid);
+                length += docidLength;
+            }
+            if (!chunk.isEmpty()) {
+                chunks.add(deleteChunk(chunk));
+            }
+            if (chunks.isEmpty()) {
+                return new BulkDeleteResults(new ArrayList<Boolean>(),
+                        new ArrayList<String>(), new ArrayList<String>(), false);
+            }
 
-                return new BulkDeleteResults(deleted, errors, docidList,
-                        hasErrors);
-            
-            } catch (HttpCodeException e) {
-                if (e.getHttpCode() == 404) {
-                    throw new IndexDoesNotExistException(e);
-                } else {
-                    throw new UnexpectedCodeException(e);
+            List<Boolean> results = new ArrayList<Boolean>();
+            List<String> errors = new ArrayList<String>();
+            List<String> docids = new ArrayList<String>();
+            boolean hasErrors = false;
+            for (BulkDeleteResults chunkResults : runConcurrently(chunks)) {
+                for (int i = 0; i < chunkResults.size(); i++) {
+                    results.add(chunkResults.getResult(i));
+                    errors.add(chunkResults.getErrorMessage(i));
+                    docids.add(chunkResults.getDocid(i));
                 }
+                hasErrors |= chunkResults.hasErrors();
             }
+            return new BulkDeleteResults(results, errors, docids, hasErrors);
+        }
+
+        private Callable<BulkDeleteResults> deleteChunk(final List<String> docids) {
+            return new Callable<BulkDeleteResults>() {
+                @Override
+                public BulkDeleteResults call() throws IOException,
+                        IndexDoesNotExistException {
+                    ParameterMap params = new ParameterMap();
+                    params.addAll("docid", docids);
+
+                    try {
+                        List<Map<String, Object>> results = (List<Map<String, Object>>)
+                            callAPI(DELETE_METHOD, indexUrl + DOCS_URL, params, privatePass);
+
+                        return BulkDeleteResults.fromResponse(results, docids);
+
+                    } catch (HttpCodeException e) {
+                        if (e.getHttpCode() == 404) {
+                            throw new IndexDoesNotExistException(e);
+                        } else {
+                            throw new UnexpectedCodeException(e);
+                        }
+                    }
+                }
+            };
         }
 
         @Override
@@ -1045,6 +1968,176 @@ public class IndexTankClient implements ApiClient {
             }
         }
 
+        @Override
+        public BulkUpdateResults updateVariables(
+                Iterable<Entry<String, Map<Integer, Float>>> updates)
+                throws IOException, IndexDoesNotExistException {
+            return updateInBulk(VARIABLES_URL, "variables", updates);
+        }
+
+        @Override
+        public BulkUpdateResults updateCategories(
+                Iterable<Entry<String, Map<String, String>>> updates)
+                throws IOException, IndexDoesNotExistException {
+            return updateInBulk(CATEGORIES_URL, "categories", updates);
+        }
+
+        /**
+         * Sends the updates in batches, several at a time, and merges their
+         * results in order.
+         */
+        private <V> BulkUpdateResults updateInBulk(final String url,
+                final String key, Iterable<Entry<String, V>> updates)
+                throws IOException, IndexDoesNotExistException {
+            if (null == updates)
+                throw new IllegalArgumentException("updates can not be null");
+
+            List<Callable<BulkUpdateResults>> batches = new ArrayList<Callable<BulkUpdateResults>>();
+            List<Entry<String, V>> batch = new ArrayList<Entry<String, V>>();
+            for (Entry<String, V> update : updates) {
+                if (null == update.getKey())
+                    throw new IllegalArgumentException("documentId can not be null");
+                batch.add(update);
+                if (batch.size() == BULK_BATCH_SIZE) {
+                    batches.add(updateBatch(url, key, batch));
+                    batch = new ArrayList<Entry<String, V>>();
+                }
+            }
+            if (!batch.isEmpty() || batches.isEmpty()) {
+                batches.add(updateBatch(url, key, batch));
+            }
+
+            List<Boolean> results = new ArrayList<Boolean>();
+            List<String> errors = new ArrayList<String>();
+            List<String> docids = new ArrayList<String>();
+            boolean hasErrors = false;
+            for (BulkUpdateResults batchResults : runConcurrently(batches)) {
+                for (int i = 0; i < batchResults.size(); i++) {
+                    results.add(batchResults.getResult(i));
+                    errors.add(batchResults.getErrorMessage(i));
+                    docids.add(batchResults.getDocid(i));
+                }
+                hasErrors |= batchResults.hasErrors();
+            }
+            return new BulkUpdateResults(results, errors, docids, hasErrors);
+        }
+
+        private <V> Callable<BulkUpdateResults> updateBatch(final String url,
+                final String key, final List<Entry<String, V>> batch) {
+            return new Callable<BulkUpdateResults>() {
+                @Override
+                public BulkUpdateResults call() throws IOException,
+                        IndexDoesNotExistException {
+                    if (batch.size() > 1 && bulkUpdatesSupported()) {
+                        try {
+                            return sendUpdates(url, key, batch);
+                        } catch (HttpCodeException e) {
+                            if (e.getHttpCode() == 404) {
+                                throw new IndexDoesNotExistException(e);
+                            } else if (e.getHttpCode() != 400) {
+                                throw new UnexpectedCodeException(e);
+                            }
+                        }
+                        // either an update is invalid or the server only
+                        // takes them one by one, which it does if they all
+                        // go through on their own
+                        BulkUpdateResults results = sendUpdatesOneByOne(url, key, batch);
+                        if (!results.hasErrors()) {
+                            bulkUpdatesUnsupportedUntil.put(indexUrl,
+                                    System.nanoTime() + BULK_UPDATES_RECHECK_NANOS);
+                        }
+                        return results;
+                    }
+                    return sendUpdatesOneByOne(url, key, batch);
+                }
+            };
+        }
+
+        /**
+         * @return false if the server rejected a list of updates that went
+         *         through one by one, until it's time to try lists again.
+         */
+        private boolean bulkUpdatesSupported() {
+            Long until = bulkUpdatesUnsupportedUntil.get(indexUrl);
+            if (until == null) {
+                return true;
+            }
+            if (System.nanoTime() - until >= 0) {
+                bulkUpdatesUnsupportedUntil.remove(indexUrl, until);
+                return true;
+            }
+            return false;
+        }
+
+        private <V> BulkUpdateResults sendUpdates(String url, String key,
+                List<Entry<String, V>> batch) throws IOException,
+                HttpCodeException {
+            List<Map<String, Object>> data = new ArrayList<Map<String, Object>>(batch.size());
+            List<String> docids = new ArrayList<String>(batch.size());
+            for (Entry<String, V> update : batch) {
+                Map<String, Object> element = new HashMap<String, Object>();
+                element.put("docid", update.getKey());
+                element.put(key, update.getValue());
+                data.add(element);
+                docids.add(update.getKey());
+            }
+
+            Object response = callAPI(PUT_METHOD, indexUrl + url, null,
+                    (Object) data, privatePass);
+
+            List<Boolean> results = new ArrayList<Boolean>(batch.size());
+            List<String> errors = new ArrayList<String>(batch.size());
+            boolean hasErrors = false;
+            for (int i = 0; i < batch.size(); i++) {
+                Boolean updated = Boolean.FALSE;
+                String error = "No result for this update in the response";
+                if (response instanceof List && i < ((List<?>) response).size()
+                        && ((List<?>) response).get(i) instanceof Map) {
+                    Map<?, ?> result = (Map<?, ?>) ((List<?>) response).get(i);
+                    Object outcome = result.containsKey("updated") ? result.get("updated")
+                            : result.get("added");
+                    if (Boolean.TRUE.equals(outcome)) {
+                        updated = Boolean.TRUE;
+                        error = null;
+                    } else if (result.get("error") != null) {
+                        error = String.valueOf(result.get("error"));
+                    }
+                }
+                results.add(updated);
+                errors.add(error);
+                hasErrors |= !updated;
+            }
+            return new BulkUpdateResults(results, errors, docids, hasErrors);
+        }
+
+        private <V> BulkUpdateResults sendUpdatesOneByOne(String url,
+                String key, List<Entry<String, V>> batch) throws IOException,
+                IndexDoesNotExistException {
+            List<Boolean> results = new ArrayList<Boolean>(batch.size());
+            List<String> errors = new ArrayList<String>(batch.size());
+            List<String> docids = new ArrayList<String>(batch.size());
+            boolean hasErrors = false;
+            for (Entry<String, V> update : batch) {
+                Map<String, Object> data = new HashMap<String, Object>();
+                data.put("docid", update.getKey());
+                data.put(key, update.getValue());
+                docids.add(update.getKey());
+                try {
+                    callAPI(PUT_METHOD, indexUrl + url, null, data, privatePass);
+                    results.add(Boolean.TRUE);
+                    errors.add(null);
+                } catch (HttpCodeException e) {
+                    if (e.getHttpCode() == 404) {
+                        throw new IndexDoesNotExistException(e);
+                    }
+                    results.add(Boolean.FALSE);
+                    errors.add(e.getMessage());
+                    hasErrors = true;
+                }
+            }
+            return new BulkUpdateResults(results, errors, docids, hasErrors);
+        }
+
         @Override
         public void promote(String documentId, String query)
                 throws IOException, IndexDoesNotExistException {
@@ -1127,7 +2220,11 @@ public class IndexTankClient implements ApiClient {
         @Override
         public boolean exists() throws IOException {
             try {
-                refreshMetadata();
+                if (metadataCache != null) {
+                    getMetadata();
+                } else {
+                    refreshMetadata();
+                }
                 return true;
             } catch (IndexDoesNotExistException e) {
                 return false;
@@ -1141,6 +2238,11 @@ public class IndexTankClient implements ApiClient {
             return (Boolean) getMetadata().get("started");
         }
 
+        @Override
+        public CompletableFuture<Void> onStarted() {
+            return startPoller.onStarted(indexUrl, this::hasStarted);
+        }
+
         @Override
         public String getStatus() throws IOException, IndexDoesNotExistException {
             return (String) getMetadata().get("status");
@@ -1170,8 +2272,24 @@ public class IndexTankClient implements ApiClient {
         @Override
         public void refreshMetadata() throws IOException,
                 IndexDoesNotExistException {
+            IndexMetadataCache cache = metadataCache;
+            try {
+                metadata = fetchMetadata();
+            } catch (IndexDoesNotExistException e) {
+                if (cache != null) {
+                    cache.putMissing(indexUrl);
+                }
+                throw e;
+            }
+            if (cache != null) {
+                cache.put(indexUrl, metadata);
+            }
+        }
+
+        private Map<String, Object> fetchMetadata() throws IOException,
+                IndexDoesNotExistException {
             try {
-                metadata = (Map<String, Object>) callAPI(GET_METHOD, indexUrl,
+                return (Map<String, Object>) callAPI(GET_METHOD, indexUrl,
                         privatePass);
             } catch (HttpCodeException e) {
                 if (e.getHttpCode() == 404) {
@@ -1182,10 +2300,18 @@ public class IndexTankClient implements ApiClient {
             }
         }
 
+        /**
+         * With a metadata cache, the metadata is served from it and so may be
+         * up to its time to live old. Otherwise it's fetched once and kept
+         * until {@link #refreshMetadata()} is called.
+         */
         @Override
         public Map<String, Object> getMetadata() throws IOException,
                 IndexDoesNotExistException {
-            if (metadata == null) {
+            IndexMetadataCache cache = metadataCache;
+            if (cache != null) {
+                metadata = cache.get(indexUrl, this::fetchMetadata);
+            } else if (metadata == null) {
                 this.refreshMetadata();
             }
 
@@ -1193,11 +2319,37 @@ public class IndexTankClient implements ApiClient {
         }
     }
 
+    private static HttpTransport defaultTransport;
+
     private final String apiUrl;
     private final String privatePass;
+    private final HttpTransport transport;
+    private volatile SearchResultCache searchCache;
+    private volatile SearchCoalescer searchCoalescer;
+    private volatile IndexMetadataCache metadataCache;
+    private volatile RetryPolicy retryPolicy;
+    private volatile Compression compression;
+    private volatile JsonCodec jsonCodec = JsonCodec.DEFAULT;
+    private final Map<String, Long> bulkUpdatesUnsupportedUntil = new ConcurrentHashMap<String, Long>();
+    private ThreadPoolExecutor bulkExecutor;
+    private final StartPoller startPoller = new StartPoller();
 
     public IndexTankClient(String apiUrl) {
+        this(apiUrl, getDefaultTransport());
+    }
+
+    /**
+     * @param apiUrl
+     *            the private api url, including the credentials.
+     * @param transport
+     *            the {@link HttpTransport} used for every call made by this
+     *            client and the {@link Index} objects it creates.
+     */
+    public IndexTankClient(String apiUrl, HttpTransport transport) {
+        if (transport == null)
+            throw new IllegalArgumentException("transport can not be null");
         this.apiUrl = appendTrailingSlash(apiUrl);
+        this.transport = transport;
         try {
             this.privatePass = new URL(apiUrl).getUserInfo();
         } catch (MalformedURLException e) {
@@ -1216,9 +2368,162 @@ public class IndexTankClient implements ApiClient {
     public IndexTankClient(String apiUrl, String privatePass) {
         this.apiUrl = appendTrailingSlash(apiUrl);
         this.privatePass = privatePass;
+        this.transport = new UrlConnectionTransport();
+    }
+
+    /**
+     * The transport shared by every client that wasn't given one explicitly,
+     * so that they all draw from the same connection pool.
+     */
+    private static synchronized HttpTransport getDefaultTransport() {
+        if (defaultTransport == null) {
+            defaultTransport = new PooledHttpTransport();
+        }
+        return defaultTransport;
+    }
+
+    /**
+     * Answers repeated searches made through this client's indexes from the
+     * given cache. Pass null to stop caching.
+     */
+    public IndexTankClient withSearchCache(SearchResultCache searchCache) {
+        this.searchCache = searchCache;
+        return this;
+    }
+
+    /**
+     * Makes identical searches made at the same time through this client's
+     * indexes share a single call. Pass null to stop coalescing.
+     */
+    public IndexTankClient withSearchCoalescer(SearchCoalescer searchCoalescer) {
+        this.searchCoalescer = searchCoalescer;
+        return this;
+    }
+
+    /**
+     * Serves the metadata of this client's indexes, and whether they exist,
+     * from the given cache. Pass null to stop caching.
+     */
+    public IndexTankClient withMetadataCache(IndexMetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+        return this;
+    }
+
+    /**
+     * Sends failed calls made through this client and its indexes again, as
+     * the given policy says. Pass null to stop retrying.
+     */
+    public IndexTankClient withRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Compresses the bodies of the calls made through this client and its
+     * indexes, and asks for compressed responses, as the given compression
+     * says. Pass null to stop compressing.
+     */
+    public IndexTankClient withCompression(Compression compression) {
+        this.compression = compression;
+        return this;
     }
 
-    private static String appendTrailingSlash(String apiUrl) {
+    /**
+     * Writes and reads the JSON of the calls made through this client and
+     * its indexes with the given codec, {@link JsonCodec#DEFAULT} unless
+     * set.
+     */
+    public IndexTankClient withJsonCodec(JsonCodec jsonCodec) {
+        if (jsonCodec == null)
+            throw new IllegalArgumentException("jsonCodec can not be null");
+        this.jsonCodec = jsonCodec;
+        return this;
+    }
+
+    /**
+     * The threads bulk calls are split across, created on first use.
+     */
+    private synchronized ThreadPoolExecutor getBulkExecutor() {
+        if (bulkExecutor == null) {
+            bulkExecutor = new ThreadPoolExecutor(BULK_PARALLELISM - 1,
+                    BULK_PARALLELISM - 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "indextank-bulk-"
+                                    + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            bulkExecutor.allowCoreThreadTimeOut(true);
+        }
+        return bulkExecutor;
+    }
+
+    /**
+     * Runs the calls of a bulk operation, up to {@link #BULK_PARALLELISM} at
+     * a time, the first one in the calling thread.
+     * 
+     * @return their results, in the same order.
+     */
+    private <T> List<T> runConcurrently(List<Callable<T>> calls)
+            throws IOException, IndexDoesNotExistException {
+        if (calls.size() == 1) {
+            try {
+                return Collections.singletonList(calls.get(0).call());
+            } catch (IOException e) {
+                throw e;
+            } catch (IndexDoesNotExistException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        List<FutureTask<T>> tasks = new ArrayList<FutureTask<T>>(calls.size());
+        for (Callable<T> call : calls) {
+            tasks.add(new FutureTask<T>(call));
+        }
+        ThreadPoolExecutor executor = getBulkExecutor();
+        for (int i = 1; i < tasks.size(); i++) {
+            executor.execute(tasks.get(i));
+        }
+        tasks.get(0).run();
+
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            for (FutureTask<T> task : tasks) {
+                results.add(task.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a bulk call");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof IndexDoesNotExistException) {
+                throw (IndexDoesNotExistException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            for (FutureTask<T> task : tasks) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    static String appendTrailingSlash(String apiUrl) {
         if (!apiUrl.endsWith("/")) {
             apiUrl += "/";
         }
@@ -1257,9 +2562,14 @@ public class IndexTankClient implements ApiClient {
             Map<String, Object> responseMap = (Map<String, Object>) callAPI(
                     GET_METHOD, getIndexesUrl(), privatePass);
 
+            IndexMetadataCache cache = metadataCache;
             for (Entry<String, Object> entry : responseMap.entrySet()) {
-                result.add(new Index(getIndexUrl(entry.getKey()),
-                        (Map<String, Object>) entry.getValue()));
+                String indexUrl = getIndexUrl(entry.getKey());
+                Map<String, Object> metadata = (Map<String, Object>) entry.getValue();
+                if (cache != null) {
+                    cache.put(indexUrl, metadata);
+                }
+                result.add(new Index(indexUrl, metadata));
             }
 
             return result;
@@ -1272,7 +2582,7 @@ public class IndexTankClient implements ApiClient {
         return getIndexesUrl() + encodeIndexName(indexName);
     }
 
-    private static String encodeIndexName(String indexName) {
+    static String encodeIndexName(String indexName) {
         java.net.URI url;
         try {
             url = new java.net.URI("http", "none.com", "/" + indexName, null);
@@ -1287,7 +2597,7 @@ public class IndexTankClient implements ApiClient {
         return indexesUrl;
     }
     
-    private static class ParameterMap {
+    static class ParameterMap {
     	private Map<String, List<String>> innerMap;
     	
     	ParameterMap() {
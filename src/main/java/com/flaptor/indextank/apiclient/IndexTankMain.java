@@ -7,6 +7,13 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 
@@ -60,6 +67,14 @@ public class IndexTankMain {
                     System.exit(1);
                 }
                 
+            } else if ("bench".equals(args[0])) {
+                Map<String, String> options = parseOptions(args);
+                if (options == null) {
+                    printUsage();
+                    System.exit(1);
+                }
+                bench(options);
+
             } else {
                 printUsage();
                 System.exit(1);
@@ -72,13 +87,53 @@ public class IndexTankMain {
     
     private static void printUsage() {
         System.out.println("Usage options:\n");
-        System.out.println("java -jar indextank.jar [config|index|search] options");
+        System.out.println("java -jar indextank.jar [config|index|search|bench] options");
         System.out.println("config options: <private_apiurl> <index_name>");
         System.out.println("index options: <doc_id> <fields>");
         System.out.println("search options: <query> [start] [length]");
+        System.out.println("bench options: [--name=value ...]");
         System.out.println();
         System.out.println("fields: a json map with fields for this document");
         System.out.println("start,length: optional parameters");
+        System.out.println();
+        System.out.println("bench makes searches and adds batches of documents with ids bench-N to the");
+        System.out.println("configured index, and reports latencies, throughput, errors and traffic:");
+        System.out.println("  --duration=<seconds>     time measured (30)");
+        System.out.println("  --warmup=<seconds>       time before measuring (5)");
+        System.out.println("  --threads=<n>            threads making calls (8)");
+        System.out.println("  --rate=<calls/s>         target rate, as fast as possible if not given");
+        System.out.println("  --mix=<searches:batches> proportion of each kind of call (9:1)");
+        System.out.println("  --batch=<n>              documents per batch (100)");
+        System.out.println("  --docids=<n>             distinct document ids written (100000)");
+        System.out.println("  --words=<n>              words per document (50)");
+        System.out.println("  --queries=<file>         queries to search for, one per line");
+        System.out.println("  --connections=<n>        connections to the api (threads)");
+        System.out.println("  --attempts=<n>           attempts per call, retrying failures (1)");
+        System.out.println("  --compression=<gzip|deflate>");
+        System.out.println("  --codec=<default|json-simple>");
+        System.out.println("  --apiurl=<url> --index=<name>  instead of the configuration file");
+        System.out.println("  --mock                   against an embedded mock server instead, with");
+        System.out.println("  --mock-latency=<ms> --mock-errors=<rate> --mock-max-rate=<calls/s>");
+    }
+
+    /**
+     * @return the --name=value options after the command, or null if there
+     *         is anything else.
+     */
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].startsWith("--") || args[i].length() == 2) {
+                return null;
+            }
+            int equals = args[i].indexOf('=');
+            if (equals < 0) {
+                options.put(args[i].substring(2), "true");
+            } else {
+                options.put(args[i].substring(2, equals), args[i].substring(equals + 1));
+            }
+        }
+        return options;
     }
 
     private static void config(String apiUrl, String indexName) {
@@ -217,4 +272,127 @@ public class IndexTankMain {
             e.printStackTrace();
         }
     }
+
+    private static void bench(Map<String, String> options) {
+        MockIndexTankServer server = null;
+        MeteredTransport transport = null;
+        try {
+            LoadGenerator.Configuration conf = new LoadGenerator.Configuration();
+            int threads = 8;
+            if (options.containsKey("threads"))
+                conf.withThreads(threads = Integer.parseInt(options.get("threads")));
+            if (options.containsKey("duration"))
+                conf.withDuration(Math.round(Double.parseDouble(options.get("duration")) * 1000));
+            if (options.containsKey("warmup"))
+                conf.withWarmup(Math.round(Double.parseDouble(options.get("warmup")) * 1000));
+            if (options.containsKey("rate"))
+                conf.withRate(Double.parseDouble(options.get("rate")));
+            if (options.containsKey("mix")) {
+                String[] weights = options.get("mix").split(":");
+                if (weights.length != 2)
+                    throw new IllegalArgumentException("mix must be <searches>:<batches>");
+                conf.withMix(Integer.parseInt(weights[0]), Integer.parseInt(weights[1]));
+            }
+            if (options.containsKey("batch"))
+                conf.withBatchSize(Integer.parseInt(options.get("batch")));
+            if (options.containsKey("docids"))
+                conf.withDocumentIds(Integer.parseInt(options.get("docids")));
+            if (options.containsKey("words"))
+                conf.withDocumentWords(Integer.parseInt(options.get("words")));
+            if (options.containsKey("queries")) {
+                List<String> queries = new ArrayList<String>();
+                for (String line : Files.readAllLines(Paths.get(options.get("queries")),
+                        StandardCharsets.UTF_8)) {
+                    if (!line.trim().isEmpty())
+                        queries.add(line.trim());
+                }
+                conf.withQueries(queries);
+            }
+
+            String apiUrl;
+            String indexName;
+            if (options.containsKey("mock")) {
+                MockIndexTankServer.Configuration mockConf = new MockIndexTankServer.Configuration();
+                if (options.containsKey("mock-latency"))
+                    mockConf.withLatency(Long.parseLong(options.get("mock-latency")), 0);
+                if (options.containsKey("mock-errors"))
+                    mockConf.withErrorRate(Double.parseDouble(options.get("mock-errors")), 503);
+                if (options.containsKey("mock-max-rate"))
+                    mockConf.withMaxRequestsPerSecond(Double.parseDouble(options.get("mock-max-rate")));
+                server = new MockIndexTankServer(mockConf);
+                apiUrl = server.getApiUrl();
+                indexName = "bench";
+            } else if (options.containsKey("apiurl") || options.containsKey("index")) {
+                apiUrl = options.get("apiurl");
+                indexName = options.get("index");
+                if (apiUrl == null || indexName == null) {
+                    System.err.println("Both --apiurl and --index are needed.");
+                    System.exit(1);
+                }
+            } else {
+                File configFile = new File(INDEXTANK_CONFIG_FILENAME);
+                if (!configFile.exists() || !configFile.canRead()) {
+                    System.err.println("File " + INDEXTANK_CONFIG_FILENAME + " doesn't exist or can't be read.");
+                    System.err.println("Run 'config' first, or use --apiurl and --index or --mock.");
+                    System.exit(1);
+                }
+                Properties prop = new Properties();
+                Reader reader = new FileReader(configFile);
+                prop.load(reader);
+                reader.close();
+                apiUrl = prop.getProperty(APIURL);
+                indexName = prop.getProperty(INDEX_NAME);
+            }
+
+            int connections = options.containsKey("connections")
+                    ? Integer.parseInt(options.get("connections")) : threads;
+            transport = new MeteredTransport(new PooledHttpTransport(
+                    new PooledHttpTransport.Configuration().withMaxConnectionsPerHost(connections)));
+            IndexTankClient client = new IndexTankClient(apiUrl, transport);
+            if (options.containsKey("attempts"))
+                client.withRetryPolicy(new RetryPolicy(new RetryPolicy.Configuration()
+                        .withMaxAttempts(Integer.parseInt(options.get("attempts")))));
+            if (options.containsKey("compression"))
+                client.withCompression(new Compression(new Compression.Configuration()
+                        .withEncoding(Compression.Encoding.valueOf(
+                                options.get("compression").toUpperCase(Locale.ROOT)))));
+            if ("json-simple".equals(options.get("codec")))
+                client.withJsonCodec(JsonCodec.JSON_SIMPLE);
+            else if (options.containsKey("codec") && !"default".equals(options.get("codec")))
+                throw new IllegalArgumentException("codec must be default or json-simple");
+
+            Index index = client.getIndex(indexName);
+            if (server != null) {
+                index.create();
+            } else if (!index.exists()) {
+                System.err.println("Index " + indexName + " doesn't exist. Please run 'config' option first");
+                System.exit(1);
+            }
+
+            System.out.println("Benchmarking index " + indexName
+                    + (server != null ? " on a mock server" : ""));
+            LoadGenerator.Report report = new LoadGenerator(index, transport, conf).run();
+            System.out.print(report);
+
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid option: " + e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Unexpected exception");
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted");
+        } catch (IndexAlreadyExistsException e) {
+            System.err.println("Unexpected exception");
+            e.printStackTrace();
+        } catch (MaximumIndexesExceededException e) {
+            System.err.println("Unexpected exception");
+            e.printStackTrace();
+        } finally {
+            if (transport != null)
+                transport.close();
+            if (server != null)
+                server.close();
+        }
+    }
 }
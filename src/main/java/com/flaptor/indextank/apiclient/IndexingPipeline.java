@@ -0,0 +1,209 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+
+/**
+ * Sends batches of documents to an index using a fixed number of concurrent
+ * {@link Index#addDocuments(Iterable)} calls. Batches waiting for a free slot
+ * are held in a bounded queue; what happens when it's full is decided by the
+ * {@link OverflowPolicy}.
+ *
+ * It can be fed directly with {@link #submit(List)} or through a
+ * {@link BulkIndexer}.
+ *
+ * @author flaptor
+ */
+public class IndexingPipeline implements Closeable {
+
+    public enum OverflowPolicy {
+        /**
+         * The submitting thread waits until there's room in the queue.
+         */
+        BLOCK,
+        /**
+         * The batch is rejected with a {@link RejectedExecutionException}.
+         */
+        REJECT,
+        /**
+         * The submitting thread sends the batch itself.
+         */
+        CALLER_RUNS
+    }
+
+    public static class Configuration {
+        protected int maxInFlightBatches = 4;
+        protected int queueCapacity = 16;
+        protected OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+        /**
+         * Maximum number of batches being sent at the same time.
+         */
+        public Configuration withMaxInFlightBatches(int maxInFlightBatches) {
+            if (maxInFlightBatches <= 0)
+                throw new IllegalArgumentException("maxInFlightBatches must be positive");
+            this.maxInFlightBatches = maxInFlightBatches;
+            return this;
+        }
+
+        /**
+         * Maximum number of batches waiting to be sent.
+         */
+        public Configuration withQueueCapacity(int queueCapacity) {
+            if (queueCapacity <= 0)
+                throw new IllegalArgumentException("queueCapacity must be positive");
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public Configuration withOverflowPolicy(OverflowPolicy overflowPolicy) {
+            if (overflowPolicy == null)
+                throw new IllegalArgumentException("overflowPolicy can not be null");
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+    }
+
+    private final Index index;
+    private final BulkIndexer.Listener listener;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public IndexingPipeline(Index index, BulkIndexer.Listener listener) {
+        this(index, new Configuration(), listener);
+    }
+
+    public IndexingPipeline(Index index, Configuration conf,
+            BulkIndexer.Listener listener) {
+        if (index == null)
+            throw new IllegalArgumentException("index can not be null");
+        if (listener == null)
+            throw new IllegalArgumentException("listener can not be null");
+        this.index = index;
+        this.listener = listener;
+        this.executor = new ThreadPoolExecutor(conf.maxInFlightBatches,
+                conf.maxInFlightBatches, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(conf.queueCapacity),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "indextank-pipeline-"
+                                + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, overflowHandler(conf.overflowPolicy));
+    }
+
+    /**
+     * Queues a batch to be sent. Its outcome is reported to the listener.
+     *
+     * @throws RejectedExecutionException
+     *             if the queue is full and the policy is
+     *             {@link OverflowPolicy#REJECT}, or the pipeline has been
+     *             closed. The batch is reported to the listener as failed too.
+     */
+    public void submit(List<Document> batch) {
+        submit(batch, null);
+    }
+
+    /**
+     * Queues a batch to be sent, reporting how it went to the given sizer.
+     */
+    void submit(final List<Document> batch, final AdaptiveBatchSizer sizer) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    inFlight.incrementAndGet();
+                    try {
+                        BulkIndexer.send(index, batch, listener, sizer);
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            listener.onBatchFailed(batch, e);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of batches waiting for a free slot.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of batches being sent right now.
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    BulkIndexer.Listener getListener() {
+        return listener;
+    }
+
+    /**
+     * Stops accepting batches and waits until the queued ones have been sent.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static RejectedExecutionHandler overflowHandler(OverflowPolicy policy) {
+        switch (policy) {
+        case REJECT:
+            return new ThreadPoolExecutor.AbortPolicy();
+        case CALLER_RUNS:
+            return new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    checkOpen(executor);
+                    r.run();
+                }
+            };
+        default:
+            return new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    checkOpen(executor);
+                    try {
+                        executor.getQueue().put(r);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(
+                                "Interrupted while waiting for room in the queue");
+                    }
+                }
+            };
+        }
+    }
+
+    private static void checkOpen(ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("IndexingPipeline has been closed");
+        }
+    }
+
+}
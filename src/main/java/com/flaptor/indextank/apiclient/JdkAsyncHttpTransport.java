@@ -0,0 +1,455 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link AsyncHttpTransport} backed by the JDK's {@link HttpClient}. Requests
+ * beyond the configured in-flight limit are queued, without blocking the
+ * caller, until a previous one completes.
+ *
+ * Request bodies are streamed in chunks, written as the client asks for
+ * them, so they are never held whole in memory. A few threads write the
+ * bodies being sent; requests waiting for their response hold none.
+ *
+ * @author flaptor
+ */
+public class JdkAsyncHttpTransport implements AsyncHttpTransport {
+
+    private static final int BODY_CHUNK_SIZE = 16 * 1024;
+    // chunks written ahead of what the client asked for, per body
+    private static final int MAX_CHUNKS_AHEAD = 4;
+    private static final int BODY_WRITERS = Math.max(4,
+            Runtime.getRuntime().availableProcessors() * 2);
+
+    private final HttpClient httpClient;
+    private final int requestTimeout;
+    private final int maxInFlight;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+    private final ThreadPoolExecutor bodyWriters;
+
+    public JdkAsyncHttpTransport() {
+        this(10000, 60000, 1024);
+    }
+
+    /**
+     * @param connectTimeout
+     *            milliseconds to wait for a connection to be established. 0
+     *            means no timeout.
+     * @param requestTimeout
+     *            milliseconds to wait for each response. 0 means no timeout.
+     * @param maxInFlight
+     *            maximum number of requests sent concurrently.
+     */
+    public JdkAsyncHttpTransport(int connectTimeout, int requestTimeout,
+            int maxInFlight) {
+        this(buildHttpClient(connectTimeout), requestTimeout, maxInFlight);
+    }
+
+    public JdkAsyncHttpTransport(HttpClient httpClient, int requestTimeout,
+            int maxInFlight) {
+        if (maxInFlight <= 0)
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        this.httpClient = httpClient;
+        this.requestTimeout = requestTimeout;
+        this.maxInFlight = maxInFlight;
+        this.bodyWriters = new ThreadPoolExecutor(BODY_WRITERS, BODY_WRITERS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "indextank-body-writer-"
+                                + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.bodyWriters.allowCoreThreadTimeOut(true);
+    }
+
+    private static HttpClient buildHttpClient(int connectTimeout) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NEVER);
+        if (connectTimeout > 0) {
+            builder.connectTimeout(Duration.ofMillis(connectTimeout));
+        }
+        return builder.build();
+    }
+
+    @Override
+    public CompletableFuture<HttpTransport.Response> executeAsync(
+            HttpTransport.Request request) {
+        final CompletableFuture<HttpTransport.Response> result = new CompletableFuture<HttpTransport.Response>();
+        final HttpRequest httpRequest;
+        try {
+            httpRequest = toHttpRequest(request);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        pending.add(() -> send(httpRequest, result));
+        dispatch();
+        return result;
+    }
+
+    /**
+     * @return the number of requests sent and waiting for a response.
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the number of requests waiting for an in-flight slot.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public void close() {
+        // the JDK client releases its resources once it's unreachable
+        bodyWriters.shutdown();
+    }
+
+    private void dispatch() {
+        while (!pending.isEmpty()) {
+            int current = inFlight.get();
+            if (current >= maxInFlight) {
+                return;
+            }
+            if (!inFlight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Runnable task = pending.poll();
+            if (task == null) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            task.run();
+        }
+    }
+
+    private void send(HttpRequest httpRequest,
+            final CompletableFuture<HttpTransport.Response> result) {
+        CompletableFuture<HttpResponse<byte[]>> response;
+        try {
+            response = httpClient.sendAsync(httpRequest, BodyHandlers.ofByteArray());
+        } catch (RuntimeException e) {
+            inFlight.decrementAndGet();
+            result.completeExceptionally(e);
+            return;
+        }
+
+        response.whenComplete((httpResponse, error) -> {
+            inFlight.decrementAndGet();
+            dispatch();
+            if (error != null) {
+                if (error instanceof CompletionException && error.getCause() != null) {
+                    error = error.getCause();
+                }
+                // how the client reports a body stream that failed
+                if (error instanceof UncheckedIOException) {
+                    error = error.getCause();
+                }
+                result.completeExceptionally(error);
+            } else {
+                result.complete(new BufferedResponse(httpResponse));
+            }
+        });
+    }
+
+    private HttpRequest toHttpRequest(HttpTransport.Request request)
+            throws IOException {
+        HttpRequest.Builder builder;
+        try {
+            builder = HttpRequest.newBuilder(request.getUrl().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid url: " + request.getUrl(), e);
+        }
+        if (requestTimeout > 0) {
+            builder.timeout(Duration.ofMillis(requestTimeout));
+        }
+        for (Entry<String, String> header : request.getHeaders().entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+
+        BodyPublisher publisher = BodyPublishers.noBody();
+        HttpTransport.RequestBody body = request.getBody();
+        if (body != null) {
+            long length = body.contentLength();
+            if (length >= 0 && length <= BODY_CHUNK_SIZE) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) length);
+                body.writeTo(out);
+                publisher = BodyPublishers.ofByteArray(out.toByteArray());
+            } else {
+                publisher = new StreamedBody(body);
+            }
+        }
+        builder.method(request.getMethod(), publisher);
+
+        return builder.build();
+    }
+
+    /**
+     * Publishes a body as it's written, in chunks. The body is written again
+     * for every subscription, that is, for every attempt the client makes.
+     */
+    private class StreamedBody implements BodyPublisher {
+        private final HttpTransport.RequestBody body;
+
+        StreamedBody(HttpTransport.RequestBody body) {
+            this.body = body;
+        }
+
+        @Override
+        public long contentLength() {
+            return body.contentLength();
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            subscriber.onSubscribe(new ChunkSubscription(body, subscriber));
+        }
+    }
+
+    /**
+     * Hands the chunks of a body to the client as it asks for them. The body
+     * is written from a body writer thread, that waits while the client has
+     * {@link #MAX_CHUNKS_AHEAD} chunks it hasn't asked for yet, and gives up
+     * when the subscription is cancelled.
+     */
+    private class ChunkSubscription extends OutputStream implements Flow.Subscription {
+        private final HttpTransport.RequestBody body;
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        // guarded by this
+        private final ArrayDeque<ByteBuffer> ready = new ArrayDeque<ByteBuffer>();
+        private long demand;
+        private boolean started;
+        private boolean written;
+        private boolean cancelled;
+        private boolean delivering;
+        private boolean signalled;
+        private Throwable failure;
+        // only used by the writer thread
+        private byte[] chunk = new byte[BODY_CHUNK_SIZE];
+        private int count;
+
+        ChunkSubscription(HttpTransport.RequestBody body,
+                Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.body = body;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            boolean start = false;
+            synchronized (this) {
+                if (cancelled || signalled) {
+                    return;
+                }
+                if (n <= 0) {
+                    failure = new IllegalArgumentException("non-positive request: " + n);
+                    written = true;
+                    ready.clear();
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    if (!started) {
+                        started = start = true;
+                    }
+                }
+            }
+            if (start) {
+                try {
+                    bodyWriters.execute(this::writeBody);
+                } catch (RuntimeException e) {
+                    finished(e);
+                }
+            }
+            deliver();
+        }
+
+        @Override
+        public synchronized void cancel() {
+            cancelled = true;
+            ready.clear();
+            notifyAll();
+        }
+
+        private void writeBody() {
+            try {
+                body.writeTo(this);
+                if (count > 0) {
+                    offer(ByteBuffer.wrap(chunk, 0, count));
+                }
+                finished(null);
+            } catch (IOException | RuntimeException e) {
+                finished(e);
+            }
+        }
+
+        private void finished(Throwable error) {
+            synchronized (this) {
+                written = true;
+                failure = error;
+            }
+            deliver();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            chunk[count++] = (byte) b;
+            if (count == chunk.length) {
+                flushChunk();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == chunk.length) {
+                    flushChunk();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            // the transport ends the body once writeTo returns
+        }
+
+        private void flushChunk() throws IOException {
+            offer(ByteBuffer.wrap(chunk, 0, count));
+            chunk = new byte[BODY_CHUNK_SIZE];
+            count = 0;
+        }
+
+        private void offer(ByteBuffer buffer) throws IOException {
+            synchronized (this) {
+                try {
+                    while (ready.size() >= MAX_CHUNKS_AHEAD && !cancelled && !signalled) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while writing the request body");
+                }
+                if (cancelled || signalled) {
+                    throw new IOException("Request body cancelled");
+                }
+                ready.add(buffer);
+            }
+            deliver();
+        }
+
+        /**
+         * Passes the subscriber the chunks it asked for, and the end of the
+         * body once they are all passed. Only one thread does it at a time,
+         * so the subscriber's calls are never concurrent.
+         */
+        private void deliver() {
+            synchronized (this) {
+                if (delivering) {
+                    return;
+                }
+                delivering = true;
+            }
+            while (true) {
+                ByteBuffer buffer = null;
+                Throwable error = null;
+                synchronized (this) {
+                    if (cancelled || signalled) {
+                        delivering = false;
+                        return;
+                    }
+                    if (demand > 0 && !ready.isEmpty()) {
+                        buffer = ready.poll();
+                        demand--;
+                        notifyAll();
+                    } else if (written && ready.isEmpty()) {
+                        signalled = true;
+                        error = failure;
+                        notifyAll();
+                    } else {
+                        delivering = false;
+                        return;
+                    }
+                }
+                if (buffer != null) {
+                    subscriber.onNext(buffer);
+                } else if (error != null) {
+                    subscriber.onError(error);
+                } else {
+                    subscriber.onComplete();
+                }
+            }
+        }
+    }
+
+    private static class BufferedResponse implements HttpTransport.Response {
+        private final HttpResponse<byte[]> response;
+        private final InputStream body;
+
+        BufferedResponse(HttpResponse<byte[]> response) {
+            this.response = response;
+            byte[] bytes = response.body();
+            this.body = new ByteArrayInputStream(bytes != null ? bytes : new byte[0]);
+        }
+
+        @Override
+        public int getStatus() {
+            return response.statusCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return response.headers().firstValue(name).orElse(null);
+        }
+
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
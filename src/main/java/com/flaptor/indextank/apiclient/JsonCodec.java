@@ -0,0 +1,53 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes and reads the JSON sent to and received from the API.
+ *
+ * Values are written from {@link java.util.Map}s, {@link Iterable}s,
+ * Strings, Numbers, Booleans and null; keys of maps are written with
+ * {@link String#valueOf(Object)}. Values are read into the types json-simple
+ * produces: {@link org.json.simple.JSONObject},
+ * {@link org.json.simple.JSONArray}, String, Long, Double, Boolean and null.
+ *
+ * It's set on a client with {@link IndexTankClient#withJsonCodec(JsonCodec)}
+ * or {@link AsyncIndexTankClient#withJsonCodec(JsonCodec)}. Implementations
+ * must be safe for concurrent use by multiple threads.
+ *
+ * @author flaptor
+ */
+public interface JsonCodec {
+
+    /**
+     * Writes and reads UTF-8 bytes directly, without intermediate Strings.
+     * Used unless configured otherwise.
+     */
+    JsonCodec DEFAULT = new Utf8JsonCodec();
+
+    /**
+     * Goes through json-simple, as earlier versions of the client did.
+     */
+    JsonCodec JSON_SIMPLE = new JsonSimpleCodec();
+
+    /**
+     * Writes the value as UTF-8 encoded JSON. The stream isn't closed.
+     */
+    void write(Object value, OutputStream out) throws IOException;
+
+    /**
+     * @return the value as UTF-8 encoded JSON.
+     */
+    byte[] toBytes(Object value);
+
+    /**
+     * Reads a UTF-8 encoded JSON value, up to the end of the stream. The
+     * stream isn't closed.
+     *
+     * @return the value read, or null if the stream is empty
+     */
+    Object read(InputStream in) throws IOException;
+
+}
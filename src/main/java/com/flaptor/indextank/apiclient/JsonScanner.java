@@ -0,0 +1,407 @@
+package com.flaptor.indextank.apiclient;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Reads JSON straight from a UTF-8 byte array. Values are decoded into the
+ * same types json-simple produces, but a value can also be skipped without
+ * decoding it, so its bounds can be recorded and decoded later.
+ *
+ * Object keys are interned in a small shared table, so the keys repeated in
+ * every search result share a single String.
+ *
+ * Malformed input throws a RuntimeException wrapping a json-simple
+ * {@link ParseException}, like the rest of the client does.
+ *
+ * @author flaptor
+ */
+final class JsonScanner {
+
+    private static final int KEYS_SIZE = 1024;
+    private static final String[] KEYS = new String[KEYS_SIZE];
+
+    private final byte[] data;
+    private final int end;
+    private int pos;
+
+    JsonScanner(byte[] data, int start, int end) {
+        this.data = data;
+        this.pos = start;
+        this.end = end;
+    }
+
+    /**
+     * @return the offset of the next unread byte
+     */
+    int position() {
+        return pos;
+    }
+
+    void skipWhitespace() {
+        while (pos < end) {
+            byte b = data[pos];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * @return whether only whitespace is left.
+     */
+    boolean atEnd() {
+        skipWhitespace();
+        return pos >= end;
+    }
+
+    /**
+     * Consumes the given character if it's the next one, ignoring
+     * whitespace.
+     */
+    boolean consume(char c) {
+        skipWhitespace();
+        if (pos < end && data[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    void expect(char c) {
+        if (!consume(c)) {
+            throw error();
+        }
+    }
+
+    /**
+     * Reads an object key, sharing the String with previous reads of the same
+     * key when possible.
+     */
+    String readKey() {
+        skipWhitespace();
+        if (pos >= end || data[pos] != '"') {
+            throw error();
+        }
+        int start = pos + 1;
+        int hash = 0;
+        int i = start;
+        while (i < end) {
+            byte b = data[i];
+            if (b == '"') {
+                break;
+            }
+            if (b == '\\' || b < 0) {
+                // escaped or non-ASCII keys are rare, don't bother sharing them
+                return readString();
+            }
+            hash = 31 * hash + b;
+            i++;
+        }
+        if (i >= end) {
+            throw error();
+        }
+        int length = i - start;
+        pos = i + 1;
+
+        int slot = (hash ^ (hash >>> 16)) & (KEYS_SIZE - 1);
+        String key = KEYS[slot];
+        if (key != null && matches(key, start, length)) {
+            return key;
+        }
+        key = new String(data, start, length, StandardCharsets.ISO_8859_1);
+        KEYS[slot] = key;
+        return key;
+    }
+
+    private boolean matches(String key, int start, int length) {
+        if (key.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key.charAt(i) != data[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads and decodes the next value.
+     */
+    Object readValue() {
+        skipWhitespace();
+        if (pos >= end) {
+            throw error();
+        }
+        switch (data[pos]) {
+        case '{':
+            return readObject();
+        case '[':
+            return readArray();
+        case '"':
+            return readString();
+        case 't':
+            readLiteral("true");
+            return Boolean.TRUE;
+        case 'f':
+            readLiteral("false");
+            return Boolean.FALSE;
+        case 'n':
+            readLiteral("null");
+            return null;
+        default:
+            return readNumber();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject readObject() {
+        expect('{');
+        JSONObject object = new JSONObject();
+        if (consume('}')) {
+            return object;
+        }
+        do {
+            String key = readKey();
+            expect(':');
+            object.put(key, readValue());
+        } while (consume(','));
+        expect('}');
+        return object;
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONArray readArray() {
+        expect('[');
+        JSONArray array = new JSONArray();
+        if (consume(']')) {
+            return array;
+        }
+        do {
+            array.add(readValue());
+        } while (consume(','));
+        expect(']');
+        return array;
+    }
+
+    String readString() {
+        skipWhitespace();
+        if (pos >= end || data[pos] != '"') {
+            throw error();
+        }
+        int start = ++pos;
+        while (pos < end) {
+            byte b = data[pos];
+            if (b == '"') {
+                return new String(data, start, pos++ - start, StandardCharsets.ISO_8859_1);
+            }
+            if (b == '\\' || b < 0) {
+                return readEscapedString(start);
+            }
+            pos++;
+        }
+        throw error();
+    }
+
+    /**
+     * Slow path for strings with escapes or non-ASCII characters.
+     */
+    private String readEscapedString(int start) {
+        StringBuilder text = new StringBuilder(pos - start + 16);
+        int segment = start;
+        while (pos < end) {
+            byte b = data[pos];
+            if (b == '"') {
+                text.append(new String(data, segment, pos - segment, StandardCharsets.UTF_8));
+                pos++;
+                return text.toString();
+            }
+            if (b != '\\') {
+                pos++;
+                continue;
+            }
+            text.append(new String(data, segment, pos - segment, StandardCharsets.UTF_8));
+            if (++pos >= end) {
+                break;
+            }
+            byte escaped = data[pos++];
+            switch (escaped) {
+            case '"':
+            case '\\':
+            case '/':
+                text.append((char) escaped);
+                break;
+            case 'b':
+                text.append('\b');
+                break;
+            case 'f':
+                text.append('\f');
+                break;
+            case 'n':
+                text.append('\n');
+                break;
+            case 'r':
+                text.append('\r');
+                break;
+            case 't':
+                text.append('\t');
+                break;
+            case 'u':
+                if (pos + 4 > end) {
+                    throw error();
+                }
+                int c = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(data[pos++], 16);
+                    if (digit < 0) {
+                        throw error();
+                    }
+                    c = (c << 4) | digit;
+                }
+                text.append((char) c);
+                break;
+            default:
+                throw error();
+            }
+            segment = pos;
+        }
+        throw error();
+    }
+
+    private Number readNumber() {
+        int start = pos;
+        boolean integer = true;
+        while (pos < end) {
+            byte b = data[pos];
+            if (b == '.' || b == 'e' || b == 'E' || b == '+') {
+                integer = false;
+            } else if (b != '-' && (b < '0' || b > '9')) {
+                break;
+            }
+            pos++;
+        }
+        int length = pos - start;
+        if (length == 0) {
+            throw error();
+        }
+        if (integer && length < 19) {
+            return Long.valueOf(parseLong(start, length));
+        }
+        String number = new String(data, start, length, StandardCharsets.ISO_8859_1);
+        try {
+            return integer ? (Number) Long.valueOf(number) : (Number) Double.valueOf(number);
+        } catch (NumberFormatException e) {
+            pos = start;
+            throw error();
+        }
+    }
+
+    private long parseLong(int start, int length) {
+        int i = start;
+        boolean negative = data[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == start + length) {
+            pos = start;
+            throw error();
+        }
+        long value = 0;
+        for (; i < start + length; i++) {
+            byte b = data[i];
+            if (b < '0' || b > '9') {
+                pos = i;
+                throw error();
+            }
+            value = value * 10 + (b - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private void readLiteral(String literal) {
+        if (pos + literal.length() > end) {
+            throw error();
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (data[pos + i] != literal.charAt(i)) {
+                pos += i;
+                throw error();
+            }
+        }
+        pos += literal.length();
+    }
+
+    /**
+     * Moves past the next value without decoding it.
+     */
+    void skipValue() {
+        skipWhitespace();
+        if (pos >= end) {
+            throw error();
+        }
+        byte b = data[pos];
+        if (b == '{' || b == '[') {
+            int depth = 0;
+            while (pos < end) {
+                b = data[pos];
+                if (b == '"') {
+                    skipString();
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    if (--depth == 0) {
+                        pos++;
+                        return;
+                    }
+                }
+                pos++;
+            }
+            throw error();
+        } else if (b == '"') {
+            skipString();
+        } else {
+            // numbers and literals end at the next delimiter
+            int start = pos;
+            while (pos < end) {
+                b = data[pos];
+                if (b == ',' || b == '}' || b == ']' || b == ':' || b == ' '
+                        || b == '\n' || b == '\r' || b == '\t') {
+                    break;
+                }
+                pos++;
+            }
+            if (pos == start) {
+                throw error();
+            }
+        }
+    }
+
+    private void skipString() {
+        pos++;
+        while (pos < end) {
+            byte b = data[pos++];
+            if (b == '"') {
+                return;
+            }
+            if (b == '\\') {
+                pos++;
+            }
+        }
+        throw error();
+    }
+
+    RuntimeException error() {
+        Object unexpected = pos < end ? Character.valueOf((char) (data[pos] & 0xFF)) : null;
+        return new RuntimeException(new ParseException(pos,
+                unexpected != null ? ParseException.ERROR_UNEXPECTED_CHAR
+                        : ParseException.ERROR_UNEXPECTED_TOKEN, unexpected));
+    }
+
+}
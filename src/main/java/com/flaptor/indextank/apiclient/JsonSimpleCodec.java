@@ -0,0 +1,68 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONValue;
+
+/**
+ * {@link JsonCodec} going through json-simple: values are written with
+ * {@link JSONValue} and read with its parser, through the
+ * {@link ResponseParser}.
+ *
+ * @author flaptor
+ */
+final class JsonSimpleCodec implements JsonCodec {
+
+    @Override
+    public void write(Object value, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        write(value, writer);
+        writer.flush();
+    }
+
+    @Override
+    public byte[] toBytes(Object value) {
+        StringWriter writer = new StringWriter();
+        try {
+            write(value, writer);
+        } catch (IOException e) {
+            // a StringWriter doesn't throw
+            throw new RuntimeException(e);
+        }
+        return writer.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void write(Object value, Writer writer) throws IOException {
+        if (value instanceof Iterable && !(value instanceof List)
+                && !(value instanceof Map)) {
+            // json-simple only writes lists, write other iterables one by one
+            writer.write('[');
+            boolean first = true;
+            for (Object element : (Iterable<?>) value) {
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                JSONValue.writeJSONString(element, writer);
+            }
+            writer.write(']');
+        } else {
+            JSONValue.writeJSONString(value, writer);
+        }
+    }
+
+    @Override
+    public Object read(InputStream in) throws IOException {
+        return ResponseParser.parse(in);
+    }
+
+}
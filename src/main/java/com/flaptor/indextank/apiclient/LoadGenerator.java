@@ -0,0 +1,660 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.HttpCodeException;
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+
+/**
+ * Drives a mix of searches and batches of documents against an index, for
+ * a given time, and reports how it went: throughput, latency percentiles
+ * and errors by HTTP code for each kind of call, and, when the client's
+ * transport is a {@link MeteredTransport}, the bytes sent and received and
+ * the responses by status.
+ *
+ * Calls are made from a number of threads, either one after the other
+ * (closed loop) or at a target rate (open loop). At a target rate, latency
+ * is measured from the time each call was due, so the time calls spend
+ * waiting for a free thread, when the index can't keep up, is reported too.
+ *
+ * Documents are generated with ids "bench-N", from a range of them so
+ * writes overwrite each other, and text made of common words the searches
+ * look for.
+ *
+ * @author flaptor
+ */
+public class LoadGenerator {
+
+    public static class Configuration {
+        protected int threads = 8;
+        protected double rate = 0;
+        protected long duration = 30000;
+        protected long warmup = 5000;
+        protected int searchWeight = 9;
+        protected int writeWeight = 1;
+        protected int batchSize = 100;
+        protected int documentIds = 100000;
+        protected int documentWords = 50;
+        protected List<String> queries;
+
+        /**
+         * Number of threads making calls. With no target rate, it's the
+         * number of calls in flight at any time.
+         */
+        public Configuration withThreads(int threads) {
+            if (threads <= 0)
+                throw new IllegalArgumentException("threads must be positive");
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Calls per second to make, between searches and batches. As fast as
+         * the threads can by default.
+         */
+        public Configuration withRate(double rate) {
+            if (rate <= 0)
+                throw new IllegalArgumentException("rate must be positive");
+            this.rate = rate;
+            return this;
+        }
+
+        /**
+         * Time, in milliseconds, calls are measured for.
+         */
+        public Configuration withDuration(long duration) {
+            if (duration <= 0)
+                throw new IllegalArgumentException("duration must be positive");
+            this.duration = duration;
+            return this;
+        }
+
+        /**
+         * Time, in milliseconds, calls are made before they start being
+         * measured, to open connections and warm up the JVM.
+         */
+        public Configuration withWarmup(long warmup) {
+            if (warmup < 0)
+                throw new IllegalArgumentException("warmup can not be negative");
+            this.warmup = warmup;
+            return this;
+        }
+
+        /**
+         * Proportion of searches and batches of documents. For example, 9 and
+         * 1 makes one batch every ten calls.
+         */
+        public Configuration withMix(int searchWeight, int writeWeight) {
+            if (searchWeight < 0 || writeWeight < 0)
+                throw new IllegalArgumentException("weights can not be negative");
+            if (searchWeight + writeWeight == 0)
+                throw new IllegalArgumentException("one of the weights must be positive");
+            this.searchWeight = searchWeight;
+            this.writeWeight = writeWeight;
+            return this;
+        }
+
+        /**
+         * Number of documents in each batch.
+         */
+        public Configuration withBatchSize(int batchSize) {
+            if (batchSize <= 0)
+                throw new IllegalArgumentException("batchSize must be positive");
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Number of distinct document ids written.
+         */
+        public Configuration withDocumentIds(int documentIds) {
+            if (documentIds <= 0)
+                throw new IllegalArgumentException("documentIds must be positive");
+            this.documentIds = documentIds;
+            return this;
+        }
+
+        /**
+         * Number of words in the text of each document.
+         */
+        public Configuration withDocumentWords(int documentWords) {
+            if (documentWords <= 0)
+                throw new IllegalArgumentException("documentWords must be positive");
+            this.documentWords = documentWords;
+            return this;
+        }
+
+        /**
+         * Queries to search for, picked at random. Single words and pairs of
+         * the words in the documents by default.
+         */
+        public Configuration withQueries(List<String> queries) {
+            if (queries == null || queries.isEmpty())
+                throw new IllegalArgumentException("queries can not be empty");
+            this.queries = new ArrayList<String>(queries);
+            return this;
+        }
+    }
+
+    /**
+     * How the calls of one kind went.
+     */
+    public static class Stats {
+        private final long calls;
+        private final long errors;
+        private final Map<String, Long> errorsByCode;
+        private final Histogram latencies;
+
+        Stats(long calls, long errors, Map<String, Long> errorsByCode, Histogram latencies) {
+            this.calls = calls;
+            this.errors = errors;
+            this.errorsByCode = errorsByCode;
+            this.latencies = latencies;
+        }
+
+        /**
+         * @return the number of calls made, failed or not.
+         */
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return the number of calls that failed.
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return the number of failed calls by HTTP code, or by exception
+         *         name when there was no response.
+         */
+        public Map<String, Long> getErrorsByCode() {
+            return errorsByCode;
+        }
+
+        /**
+         * @return the latency, in microseconds, under which the given
+         *         percentage of the calls finished.
+         */
+        public long getLatencyPercentile(double percentile) {
+            return latencies.percentile(percentile);
+        }
+
+        /**
+         * @return the mean latency, in microseconds.
+         */
+        public double getMeanLatency() {
+            return latencies.mean();
+        }
+
+        /**
+         * @return the highest latency, in microseconds.
+         */
+        public long getMaxLatency() {
+            return latencies.max();
+        }
+    }
+
+    /**
+     * How the measured part of a run went.
+     */
+    public static class Report {
+        private final long elapsed;
+        private final Stats searches;
+        private final Stats writes;
+        private final long documents;
+        private final long failedDocuments;
+        private final long missedCalls;
+        private final MeteredTransport.Snapshot traffic;
+
+        Report(long elapsed, Stats searches, Stats writes, long documents,
+                long failedDocuments, long missedCalls, MeteredTransport.Snapshot traffic) {
+            this.elapsed = elapsed;
+            this.searches = searches;
+            this.writes = writes;
+            this.documents = documents;
+            this.failedDocuments = failedDocuments;
+            this.missedCalls = missedCalls;
+            this.traffic = traffic;
+        }
+
+        /**
+         * @return the time, in milliseconds, calls were measured for.
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        public Stats getSearches() {
+            return searches;
+        }
+
+        /**
+         * @return how the batches of documents went.
+         */
+        public Stats getWrites() {
+            return writes;
+        }
+
+        /**
+         * @return the number of documents sent in the batches that didn't
+         *         fail.
+         */
+        public long getDocuments() {
+            return documents;
+        }
+
+        /**
+         * @return the number of documents the index rejected in batches that
+         *         didn't fail.
+         */
+        public long getFailedDocuments() {
+            return failedDocuments;
+        }
+
+        /**
+         * @return the number of calls due at the target rate that weren't
+         *         made before the end of the run.
+         */
+        public long getMissedCalls() {
+            return missedCalls;
+        }
+
+        /**
+         * @return what went through the transport, or null if it wasn't a
+         *         {@link MeteredTransport}.
+         */
+        public MeteredTransport.Snapshot getTraffic() {
+            return traffic;
+        }
+
+        /**
+         * @return calls made per second, between searches and batches.
+         */
+        public double getThroughput() {
+            return (searches.getCalls() + writes.getCalls()) * 1000.0 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            double seconds = elapsed / 1000.0;
+            out.append(String.format(Locale.ROOT, "Elapsed: %.1f s, %.1f calls/s%n",
+                    seconds, getThroughput()));
+            append(out, "Searches", searches, seconds);
+            append(out, "Batches", writes, seconds);
+            if (writes.getCalls() > 0) {
+                out.append(String.format(Locale.ROOT,
+                        "  documents: %d indexed (%.1f/s), %d rejected%n",
+                        documents, documents / seconds, failedDocuments));
+            }
+            if (missedCalls > 0) {
+                out.append(String.format(Locale.ROOT,
+                        "Missed calls: %d due at the target rate weren't made%n", missedCalls));
+            }
+            if (traffic != null) {
+                out.append(String.format(Locale.ROOT,
+                        "Traffic: %d bytes sent (%.1f KB/s), %d bytes received (%.1f KB/s)%n",
+                        traffic.getBytesSent(), traffic.getBytesSent() / 1024.0 / seconds,
+                        traffic.getBytesReceived(), traffic.getBytesReceived() / 1024.0 / seconds));
+                out.append("  responses: ").append(traffic.getResponses());
+                if (traffic.getFailures() > 0) {
+                    out.append(", no response: ").append(traffic.getFailures());
+                }
+                out.append(String.format("%n"));
+            }
+            return out.toString();
+        }
+
+        private static void append(StringBuilder out, String name, Stats stats, double seconds) {
+            if (stats.getCalls() == 0) {
+                return;
+            }
+            out.append(String.format(Locale.ROOT, "%s: %d calls (%.1f/s), %d errors%n",
+                    name, stats.getCalls(), stats.getCalls() / seconds, stats.getErrors()));
+            out.append(String.format(Locale.ROOT,
+                    "  latency ms: mean %.2f, p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+                    stats.getMeanLatency() / 1000.0,
+                    stats.getLatencyPercentile(50) / 1000.0,
+                    stats.getLatencyPercentile(90) / 1000.0,
+                    stats.getLatencyPercentile(99) / 1000.0,
+                    stats.getLatencyPercentile(99.9) / 1000.0,
+                    stats.getMaxLatency() / 1000.0));
+            if (!stats.getErrorsByCode().isEmpty()) {
+                out.append("  errors: ").append(stats.getErrorsByCode()).append(String.format("%n"));
+            }
+        }
+    }
+
+    private static final List<String> WORDS = Collections.unmodifiableList(Arrays.asList(
+            "time", "year", "people", "way", "day", "man", "thing", "woman", "life", "child",
+            "world", "school", "state", "family", "student", "group", "country", "problem",
+            "hand", "part", "place", "case", "week", "company", "system", "program",
+            "question", "work", "government", "number", "night", "point", "home", "water",
+            "room", "mother", "area", "money", "story", "fact", "month", "lot", "right",
+            "study", "book", "eye", "job", "word", "business", "issue", "side", "kind",
+            "head", "house", "service", "friend", "father", "power", "hour", "game", "line",
+            "end", "member", "law", "car", "city", "community", "name", "president", "team",
+            "minute", "idea", "kid", "body", "information", "back", "parent", "face",
+            "others", "level", "office", "door", "health", "person", "art", "war", "history",
+            "party", "result", "change", "morning", "reason", "research", "girl", "guy",
+            "moment", "air", "teacher", "force", "education"));
+
+    private static final String DOCID_PREFIX = "bench-";
+
+    private final IndexTankClient.Index index;
+    private final MeteredTransport transport;
+    private final int threads;
+    private final double rate;
+    private final long duration;
+    private final long warmup;
+    private final int searchWeight;
+    private final int writeWeight;
+    private final int batchSize;
+    private final int documentIds;
+    private final int documentWords;
+    private final List<String> queries;
+
+    /**
+     * @param index
+     *            the index the calls are made to. Documents with ids
+     *            starting with "bench-" are added to it.
+     * @param transport
+     *            the transport of the index's client, to report the traffic
+     *            through it, or null.
+     */
+    public LoadGenerator(IndexTankClient.Index index, MeteredTransport transport,
+            Configuration conf) {
+        if (index == null)
+            throw new IllegalArgumentException("index can not be null");
+        this.index = index;
+        this.transport = transport;
+        this.threads = conf.threads;
+        this.rate = conf.rate;
+        this.duration = conf.duration;
+        this.warmup = conf.warmup;
+        this.searchWeight = conf.searchWeight;
+        this.writeWeight = conf.writeWeight;
+        this.batchSize = conf.batchSize;
+        this.documentIds = conf.documentIds;
+        this.documentWords = conf.documentWords;
+        this.queries = conf.queries != null ? conf.queries : defaultQueries();
+    }
+
+    private static List<String> defaultQueries() {
+        List<String> queries = new ArrayList<String>(WORDS);
+        for (int i = 0; i < WORDS.size(); i++) {
+            queries.add(WORDS.get(i) + " " + WORDS.get((i * 7 + 3) % WORDS.size()));
+        }
+        return queries;
+    }
+
+    /**
+     * Makes calls for the warmup time and then for the duration, and waits
+     * for the calls in flight to finish.
+     *
+     * @return how the calls made after the warmup went.
+     */
+    public Report run() throws InterruptedException {
+        final Recorder searches = new Recorder();
+        final Recorder writes = new Recorder();
+        final AtomicLong documents = new AtomicLong();
+        final AtomicLong failedDocuments = new AtomicLong();
+        final AtomicLong slots = new AtomicLong();
+        final AtomicLong missed = new AtomicLong();
+        final AtomicBoolean measuring = new AtomicBoolean();
+
+        final long start = System.nanoTime();
+        final long measureFrom = start + TimeUnit.MILLISECONDS.toNanos(warmup);
+        final long end = measureFrom + TimeUnit.MILLISECONDS.toNanos(duration);
+        final long interval = rate > 0 ? (long) (1e9 / rate) : 0;
+        final CountDownLatch finished = new CountDownLatch(threads);
+        final MeteredTransport.Snapshot[] traffic = new MeteredTransport.Snapshot[1];
+
+        List<Thread> workers = new ArrayList<Thread>(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            long due;
+                            if (interval > 0) {
+                                due = start + slots.getAndIncrement() * interval;
+                                if (due >= end) {
+                                    return;
+                                }
+                                long wait = due - System.nanoTime();
+                                if (wait > 0) {
+                                    LockSupport.parkNanos(wait);
+                                } else if (System.nanoTime() >= end) {
+                                    // too late to be made in time
+                                    missed.incrementAndGet();
+                                    continue;
+                                }
+                            } else {
+                                due = System.nanoTime();
+                                if (due >= end) {
+                                    return;
+                                }
+                            }
+                            if (due >= measureFrom && measuring.compareAndSet(false, true)
+                                    && transport != null) {
+                                synchronized (traffic) {
+                                    traffic[0] = transport.snapshot();
+                                }
+                            }
+
+                            ThreadLocalRandom random = ThreadLocalRandom.current();
+                            boolean search = random.nextInt(searchWeight + writeWeight) < searchWeight;
+                            Recorder recorder = search ? searches : writes;
+                            String error = null;
+                            int indexed = 0;
+                            int rejected = 0;
+                            try {
+                                if (search) {
+                                    index.search(Query.forString(
+                                            queries.get(random.nextInt(queries.size()))));
+                                } else {
+                                    BatchResults results = index.addDocuments(batch(random));
+                                    for (int j = 0; j < results.size(); j++) {
+                                        if (!results.getResult(j)) {
+                                            rejected++;
+                                        }
+                                    }
+                                    indexed = results.size() - rejected;
+                                }
+                            } catch (Exception e) {
+                                error = errorCode(e);
+                            }
+                            long latency = System.nanoTime() - due;
+                            if (due >= measureFrom) {
+                                recorder.record(latency, error);
+                                documents.addAndGet(indexed);
+                                failedDocuments.addAndGet(rejected);
+                            }
+                        }
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }, "indextank-load-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            throw e;
+        }
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - measureFrom);
+        MeteredTransport.Snapshot measured = null;
+        if (transport != null) {
+            synchronized (traffic) {
+                MeteredTransport.Snapshot now = transport.snapshot();
+                measured = traffic[0] == null ? null : now.since(traffic[0]);
+            }
+        }
+        return new Report(Math.max(1, elapsed), searches.stats(), writes.stats(),
+                documents.get(), failedDocuments.get(), missed.get(), measured);
+    }
+
+    private List<Document> batch(ThreadLocalRandom random) {
+        List<Document> documents = new ArrayList<Document>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            StringBuilder text = new StringBuilder(documentWords * 8);
+            for (int j = 0; j < documentWords; j++) {
+                if (j > 0) {
+                    text.append(' ');
+                }
+                text.append(WORDS.get(random.nextInt(WORDS.size())));
+            }
+            Map<String, String> fields = new HashMap<String, String>();
+            fields.put("text", text.toString());
+            documents.add(new Document(DOCID_PREFIX + random.nextInt(documentIds),
+                    fields, null, null));
+        }
+        return documents;
+    }
+
+    /**
+     * @return the HTTP code of a failed call, or the name of the exception
+     *         if it didn't get a response.
+     */
+    private static String errorCode(Exception e) {
+        if (e instanceof UnexpectedCodeException) {
+            return Integer.toString(((UnexpectedCodeException) e).httpCode);
+        } else if (e.getCause() instanceof HttpCodeException) {
+            // like batches rejected with a 400, thrown as IllegalArgumentException
+            return Integer.toString(((HttpCodeException) e.getCause()).getHttpCode());
+        } else if (e instanceof IndexDoesNotExistException) {
+            return "404";
+        } else if (e instanceof InvalidSyntaxException) {
+            return "400";
+        }
+        return e.getClass().getSimpleName();
+    }
+
+    /**
+     * Counts the calls of one kind and their latencies.
+     */
+    private static class Recorder {
+        private final Histogram latencies = new Histogram();
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final Map<String, AtomicLong> errorsByCode = new ConcurrentHashMap<String, AtomicLong>();
+
+        void record(long latency, String error) {
+            calls.incrementAndGet();
+            latencies.record(TimeUnit.NANOSECONDS.toMicros(latency));
+            if (error != null) {
+                errors.incrementAndGet();
+                errorsByCode.computeIfAbsent(error, code -> new AtomicLong()).incrementAndGet();
+            }
+        }
+
+        Stats stats() {
+            Map<String, Long> counts = new TreeMap<String, Long>();
+            for (Map.Entry<String, AtomicLong> entry : errorsByCode.entrySet()) {
+                counts.put(entry.getKey(), entry.getValue().get());
+            }
+            return new Stats(calls.get(), errors.get(), counts, latencies);
+        }
+    }
+
+    /**
+     * Counts values in buckets 1/64th of a power of two wide, so percentiles
+     * are off by less than 2%, in constant space.
+     */
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 6;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(
+                2 * SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(bucket(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        static int bucket(long value) {
+            if (value < 2 * SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS
+                    + (int) ((value >>> shift) - SUB_BUCKETS);
+        }
+
+        /**
+         * @return the highest value that falls in the bucket.
+         */
+        static long highest(int bucket) {
+            if (bucket < 2 * SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+            long first = (long) ((bucket - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+            return first + (1L << shift) - 1;
+        }
+
+        long percentile(double percentile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(highest(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        double mean() {
+            long total = count.get();
+            return total == 0 ? 0 : (double) sum.get() / total;
+        }
+
+        long max() {
+            return max.get();
+        }
+    }
+
+}
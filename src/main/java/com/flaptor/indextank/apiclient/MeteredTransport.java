@@ -0,0 +1,235 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link HttpTransport} that counts what goes through another one: the bytes
+ * of request and response bodies, as they travel (compressed, if they are),
+ * the responses received by HTTP status and the calls that failed without
+ * one.
+ *
+ * Every attempt of a retried call is counted.
+ *
+ * @author flaptor
+ */
+public class MeteredTransport implements HttpTransport {
+
+    /**
+     * The counts at a point in time.
+     */
+    public static class Snapshot {
+        private final long bytesSent;
+        private final long bytesReceived;
+        private final long failures;
+        private final Map<Integer, Long> responses;
+
+        Snapshot(long bytesSent, long bytesReceived, long failures,
+                Map<Integer, Long> responses) {
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.failures = failures;
+            this.responses = responses;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        /**
+         * @return the number of requests that got no response.
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return the number of responses by HTTP status, sorted by status.
+         */
+        public Map<Integer, Long> getResponses() {
+            return responses;
+        }
+
+        /**
+         * @return what was counted from the given snapshot to this one.
+         */
+        public Snapshot since(Snapshot earlier) {
+            Map<Integer, Long> responses = new TreeMap<Integer, Long>(this.responses);
+            for (Map.Entry<Integer, Long> entry : earlier.responses.entrySet()) {
+                long count = responses.get(entry.getKey()) - entry.getValue();
+                if (count == 0) {
+                    responses.remove(entry.getKey());
+                } else {
+                    responses.put(entry.getKey(), count);
+                }
+            }
+            return new Snapshot(bytesSent - earlier.bytesSent,
+                    bytesReceived - earlier.bytesReceived,
+                    failures - earlier.failures, responses);
+        }
+    }
+
+    private final HttpTransport transport;
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final ConcurrentHashMap<Integer, AtomicLong> responses = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    /**
+     * @param transport
+     *            the transport the calls are made with.
+     */
+    public MeteredTransport(HttpTransport transport) {
+        if (transport == null)
+            throw new IllegalArgumentException("transport can not be null");
+        this.transport = transport;
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        final RequestBody body = request.getBody();
+        if (body != null) {
+            Request metered = new Request(request.getMethod(), request.getUrl(),
+                    new RequestBody() {
+                        @Override
+                        public long contentLength() {
+                            return body.contentLength();
+                        }
+
+                        @Override
+                        public boolean isRepeatable() {
+                            return body.isRepeatable();
+                        }
+
+                        @Override
+                        public void writeTo(OutputStream out) throws IOException {
+                            body.writeTo(new CountingOutputStream(out));
+                        }
+                    });
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                metered.withHeader(header.getKey(), header.getValue());
+            }
+            request = metered;
+        }
+
+        final Response response;
+        try {
+            response = transport.execute(request);
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+        responses.computeIfAbsent(response.getStatus(), status -> new AtomicLong())
+                .incrementAndGet();
+
+        return new Response() {
+            private InputStream body;
+
+            @Override
+            public int getStatus() {
+                return response.getStatus();
+            }
+
+            @Override
+            public String getHeader(String name) {
+                return response.getHeader(name);
+            }
+
+            @Override
+            public InputStream getBody() throws IOException {
+                if (body == null) {
+                    body = new CountingInputStream(response.getBody());
+                }
+                return body;
+            }
+
+            @Override
+            public void close() {
+                response.close();
+            }
+        };
+    }
+
+    /**
+     * @return the counts so far.
+     */
+    public Snapshot snapshot() {
+        Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, AtomicLong> entry : responses.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return new Snapshot(bytesSent.get(), bytesReceived.get(), failures.get(), counts);
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+    }
+
+    private class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytesSent.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytesSent.addAndGet(len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the transport owns the stream
+            flush();
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                bytesReceived.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                bytesReceived.addAndGet(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            bytesReceived.addAndGet(skipped);
+            return skipped;
+        }
+    }
+
+}
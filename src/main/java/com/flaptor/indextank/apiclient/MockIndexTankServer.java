@@ -0,0 +1,1081 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for the IndexTank API, served from this process, to load test
+ * the client without the hosted service or a network.
+ *
+ * It implements the calls {@link IndexTankClient} makes: listing, creating,
+ * updating and deleting indexes, adding and deleting documents one by one
+ * or in batches, updating variables and categories, searching, deleting by
+ * search, promoting and managing functions. Documents are kept in memory
+ * and searched for all the terms of the query in any of their fields;
+ * results are sorted newest first. Any password is accepted.
+ *
+ * Latency, errors and a throughput limit can be injected to see how the
+ * client behaves when the service is slow, failing or overloaded:
+ *
+ * <pre>
+ * MockIndexTankServer server = new MockIndexTankServer(
+ *         new MockIndexTankServer.Configuration()
+ *                 .withLatency(20, 10)
+ *                 .withErrorRate(0.01, 503)
+ *                 .withMaxRequestsPerSecond(2000));
+ * IndexTankClient client = new IndexTankClient(server.getApiUrl());
+ * ...
+ * server.close();
+ * </pre>
+ *
+ * @author flaptor
+ */
+public class MockIndexTankServer implements Closeable {
+
+    public static class Configuration {
+        protected int port = 0;
+        protected int threads = 32;
+        protected long latency = 0;
+        protected long latencyJitter = 0;
+        protected double errorRate = 0;
+        protected int errorCode = 503;
+        protected double maxRequestsPerSecond = 0;
+        protected int maxBatchDocuments = 0;
+        protected int maxIndexes = 0;
+        protected long startDelay = 0;
+
+        /**
+         * Port to listen on, on the loopback address. A free one is chosen
+         * by default.
+         */
+        public Configuration withPort(int port) {
+            if (port < 0)
+                throw new IllegalArgumentException("port can not be negative");
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * Number of threads serving requests.
+         */
+        public Configuration withThreads(int threads) {
+            if (threads <= 0)
+                throw new IllegalArgumentException("threads must be positive");
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Time, in milliseconds, every request takes, plus a random amount up
+         * to the given jitter.
+         */
+        public Configuration withLatency(long latency, long jitter) {
+            if (latency < 0)
+                throw new IllegalArgumentException("latency can not be negative");
+            if (jitter < 0)
+                throw new IllegalArgumentException("jitter can not be negative");
+            this.latency = latency;
+            this.latencyJitter = jitter;
+            return this;
+        }
+
+        /**
+         * Fraction of the requests answered with the given HTTP code instead
+         * of being served.
+         */
+        public Configuration withErrorRate(double errorRate, int errorCode) {
+            if (errorRate < 0 || errorRate > 1)
+                throw new IllegalArgumentException("errorRate must be between 0 and 1");
+            if (errorCode < 400)
+                throw new IllegalArgumentException("errorCode must be an error code");
+            this.errorRate = errorRate;
+            this.errorCode = errorCode;
+            return this;
+        }
+
+        /**
+         * Maximum number of requests served per second. The ones over it are
+         * answered with 429 right away. Unlimited by default.
+         */
+        public Configuration withMaxRequestsPerSecond(double maxRequestsPerSecond) {
+            if (maxRequestsPerSecond <= 0)
+                throw new IllegalArgumentException("maxRequestsPerSecond must be positive");
+            this.maxRequestsPerSecond = maxRequestsPerSecond;
+            return this;
+        }
+
+        /**
+         * Maximum number of documents in a batch. Bigger ones are answered
+         * with 413. Unlimited by default.
+         */
+        public Configuration withMaxBatchDocuments(int maxBatchDocuments) {
+            if (maxBatchDocuments <= 0)
+                throw new IllegalArgumentException("maxBatchDocuments must be positive");
+            this.maxBatchDocuments = maxBatchDocuments;
+            return this;
+        }
+
+        /**
+         * Maximum number of indexes. Creating more is answered with 409.
+         * Unlimited by default.
+         */
+        public Configuration withMaxIndexes(int maxIndexes) {
+            if (maxIndexes <= 0)
+                throw new IllegalArgumentException("maxIndexes must be positive");
+            this.maxIndexes = maxIndexes;
+            return this;
+        }
+
+        /**
+         * Time, in milliseconds, new indexes take to start.
+         */
+        public Configuration withStartDelay(long startDelay) {
+            if (startDelay < 0)
+                throw new IllegalArgumentException("startDelay can not be negative");
+            this.startDelay = startDelay;
+            return this;
+        }
+    }
+
+    static {
+        // without it small responses wait for delayed ACKs, adding 40ms to
+        // every call. Read once, by the first server created in the JVM.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private static final String INDEXES_PATH = "/v1/indexes";
+    private static final int COMPRESS_FROM = 1024;
+
+    /**
+     * Answers a request with an HTTP code and a message, like the API does
+     * for bad requests.
+     */
+    private static class Failure extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        Failure(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    private static class StoredDocument {
+        final long timestamp;
+        final Map<String, String> fields;
+        final Map<String, Object> variables;
+        final Map<String, String> categories;
+
+        StoredDocument(long timestamp, Map<String, String> fields,
+                Map<String, Object> variables, Map<String, String> categories) {
+            this.timestamp = timestamp;
+            this.fields = fields;
+            this.variables = variables;
+            this.categories = categories;
+        }
+    }
+
+    private static class StoredIndex {
+        final String code;
+        final long createdAt;
+        volatile boolean publicSearch;
+        // guarded by this
+        final Map<String, StoredDocument> documents = new HashMap<String, StoredDocument>();
+        final Map<String, Set<String>> postings = new HashMap<String, Set<String>>();
+        final Map<String, String> functions = new HashMap<String, String>();
+
+        StoredIndex(String code, long createdAt, boolean publicSearch) {
+            this.code = code;
+            this.createdAt = createdAt;
+            this.publicSearch = publicSearch;
+            this.functions.put("0", "-age");
+        }
+    }
+
+    private final Configuration conf;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, StoredIndex> indexes = new ConcurrentHashMap<String, StoredIndex>();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicInteger codes = new AtomicInteger();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    // guarded by this
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    public MockIndexTankServer() throws IOException {
+        this(new Configuration());
+    }
+
+    /**
+     * Starts serving right away.
+     */
+    public MockIndexTankServer(Configuration conf) throws IOException {
+        this.conf = conf;
+        this.tokens = conf.maxRequestsPerSecond;
+        this.server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), conf.port), 256);
+        this.executor = Executors.newFixedThreadPool(conf.threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "indextank-mock-server-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.server.setExecutor(executor);
+        this.server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        this.server.start();
+    }
+
+    /**
+     * @return the port the server listens on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return the url to build an {@link IndexTankClient} with.
+     */
+    public String getApiUrl() {
+        return "http://:mock@" + server.getAddress().getHostString() + ":" + getPort() + "/";
+    }
+
+    /**
+     * @return the number of requests received.
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests answered with the injected error.
+     */
+    public long getInjectedErrorCount() {
+        return injectedErrors.get();
+    }
+
+    /**
+     * @return the number of requests answered with 429 for going over the
+     *         throughput limit.
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * @return the number of request body bytes received, as sent.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return the number of response body bytes sent.
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * @return the number of documents in the given index, or -1 if it
+     *         doesn't exist.
+     */
+    public int getDocumentCount(String indexName) {
+        StoredIndex index = indexes.get(indexName);
+        if (index == null) {
+            return -1;
+        }
+        synchronized (index) {
+            return index.documents.size();
+        }
+    }
+
+    /**
+     * Stops serving, closing the open connections.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            if (!acquire()) {
+                throttled.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 429, "Too many requests");
+                return;
+            }
+            delay();
+            if (conf.errorRate > 0 && ThreadLocalRandom.current().nextDouble() < conf.errorRate) {
+                injectedErrors.incrementAndGet();
+                respond(exchange, conf.errorCode, "Injected error");
+                return;
+            }
+
+            Object body = readBody(exchange);
+            Object response = route(exchange.getRequestMethod(),
+                    exchange.getRequestURI().getRawPath(),
+                    parseQuery(exchange.getRequestURI().getRawQuery()), body);
+            if (response == NO_CONTENT) {
+                respond(exchange, 204, null);
+            } else if (response instanceof Created) {
+                respond(exchange, 201, ((Created) response).metadata);
+            } else {
+                respond(exchange, 200, response);
+            }
+        } catch (Failure e) {
+            respond(exchange, e.code, e.getMessage());
+        } catch (RuntimeException e) {
+            respond(exchange, 500, String.valueOf(e));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Takes a token from the throughput limit bucket, which holds up to a
+     * second worth of requests.
+     */
+    private synchronized boolean acquire() {
+        if (conf.maxRequestsPerSecond <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(conf.maxRequestsPerSecond, tokens
+                + (now - refilledAt) / 1e9 * conf.maxRequestsPerSecond);
+        refilledAt = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    private void delay() {
+        long delay = conf.latency;
+        if (conf.latencyJitter > 0) {
+            delay += ThreadLocalRandom.current().nextLong(conf.latencyJitter + 1);
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Object readBody(HttpExchange exchange) throws IOException, Failure {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            raw.write(buffer, 0, read);
+        }
+        bytesReceived.addAndGet(raw.size());
+        if (raw.size() == 0) {
+            return null;
+        }
+
+        InputStream body = new ByteArrayInputStream(raw.toByteArray());
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        if (encoding != null) {
+            encoding = encoding.trim().toLowerCase(Locale.ROOT);
+            if (encoding.equals("gzip")) {
+                body = new GZIPInputStream(body);
+            } else if (encoding.equals("deflate")) {
+                body = new InflaterInputStream(body);
+            } else {
+                throw new Failure(415, "Unsupported Content-Encoding: " + encoding);
+            }
+        }
+        try {
+            return JsonCodec.DEFAULT.read(body);
+        } catch (RuntimeException e) {
+            throw new Failure(400, "Invalid or missing argument");
+        }
+    }
+
+    private void respond(HttpExchange exchange, int code, Object body) throws IOException {
+        byte[] bytes = body == null ? new byte[0]
+                : JsonCodec.DEFAULT.toBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accepted != null && accepted.contains("gzip") && bytes.length >= COMPRESS_FROM) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(bytes);
+            gzip.close();
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        // a length of -1 means no body
+        exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+            bytesSent.addAndGet(bytes.length);
+        }
+    }
+
+    /**
+     * Answered with 204, like updates of existing indexes.
+     */
+    private static final Object NO_CONTENT = new Object();
+
+    /**
+     * The metadata of an index that was just created, answered with 201.
+     */
+    private static class Created {
+        final Map<String, Object> metadata;
+
+        Created(Map<String, Object> metadata) {
+            this.metadata = metadata;
+        }
+    }
+
+    private Object route(String method, String path, Map<String, List<String>> params,
+            Object body) throws Failure {
+        if (!path.startsWith(INDEXES_PATH)) {
+            throw new Failure(404, "Not found");
+        }
+        String rest = path.substring(INDEXES_PATH.length());
+        if (rest.isEmpty() || rest.equals("/")) {
+            if (!method.equals("GET")) {
+                throw new Failure(405, "Method not allowed");
+            }
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            for (Entry<String, StoredIndex> entry : indexes.entrySet()) {
+                result.put(entry.getKey(), metadata(entry.getValue()));
+            }
+            return result;
+        }
+
+        int slash = rest.indexOf('/', 1);
+        String name = decode(slash < 0 ? rest.substring(1) : rest.substring(1, slash));
+        String resource = slash < 0 ? "" : rest.substring(slash);
+
+        if (resource.isEmpty()) {
+            return index(method, name, body);
+        }
+
+        StoredIndex index = indexes.get(name);
+        if (index == null) {
+            throw new Failure(404, "No index existed for the given name");
+        }
+        if (resource.equals(IndexTankClient.DOCS_URL)) {
+            if (method.equals("PUT")) {
+                return addDocuments(index, body);
+            } else if (method.equals("DELETE")) {
+                return deleteDocuments(index, params, body);
+            }
+        } else if (resource.equals(IndexTankClient.VARIABLES_URL)
+                || resource.equals(IndexTankClient.CATEGORIES_URL)) {
+            if (method.equals("PUT")) {
+                return update(index, resource.equals(IndexTankClient.VARIABLES_URL)
+                        ? "variables" : "categories", body);
+            }
+        } else if (resource.equals(IndexTankClient.SEARCH_URL)) {
+            if (method.equals("GET")) {
+                return search(index, params);
+            } else if (method.equals("DELETE")) {
+                deleteBySearch(index, params);
+                return null;
+            }
+        } else if (resource.equals(IndexTankClient.PROMOTE_URL)) {
+            if (method.equals("PUT")) {
+                Map<?, ?> data = object(body);
+                if (!(data.get("docid") instanceof String) || !(data.get("query") instanceof String)) {
+                    throw new Failure(400, "Invalid or missing argument");
+                }
+                return null;
+            }
+        } else if (resource.equals(IndexTankClient.FUNCTIONS_URL)) {
+            if (method.equals("GET")) {
+                synchronized (index) {
+                    return new HashMap<String, String>(index.functions);
+                }
+            }
+        } else if (resource.startsWith(IndexTankClient.FUNCTIONS_URL + "/")) {
+            return function(index, method,
+                    resource.substring(IndexTankClient.FUNCTIONS_URL.length() + 1), body);
+        } else {
+            throw new Failure(404, "Not found");
+        }
+        throw new Failure(405, "Method not allowed");
+    }
+
+    private Object index(String method, String name, Object body) throws Failure {
+        if (method.equals("GET")) {
+            StoredIndex index = indexes.get(name);
+            if (index == null) {
+                throw new Failure(404, "No index existed for the given name");
+            }
+            return metadata(index);
+        } else if (method.equals("PUT")) {
+            Boolean publicSearch = null;
+            if (body != null) {
+                Object value = object(body).get("public_search");
+                if (value != null && !(value instanceof Boolean)) {
+                    throw new Failure(400, "Invalid or missing argument");
+                }
+                publicSearch = (Boolean) value;
+            }
+            synchronized (indexes) {
+                StoredIndex index = indexes.get(name);
+                if (index != null) {
+                    if (publicSearch != null) {
+                        index.publicSearch = publicSearch;
+                    }
+                    return NO_CONTENT;
+                }
+                if (conf.maxIndexes > 0 && indexes.size() >= conf.maxIndexes) {
+                    throw new Failure(409, "Too many indexes for this account");
+                }
+                index = new StoredIndex(Integer.toString(codes.incrementAndGet(), 36),
+                        System.currentTimeMillis(), Boolean.TRUE.equals(publicSearch));
+                indexes.put(name, index);
+                return new Created(metadata(index));
+            }
+        } else if (method.equals("DELETE")) {
+            if (indexes.remove(name) == null) {
+                throw new Failure(404, "No index existed for the given name");
+            }
+            return null;
+        }
+        throw new Failure(405, "Method not allowed");
+    }
+
+    private Map<String, Object> metadata(StoredIndex index) {
+        boolean started = System.currentTimeMillis() - index.createdAt >= conf.startDelay;
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssz");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Map<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put("started", started);
+        metadata.put("status", started ? "LIVE" : "LOADING");
+        metadata.put("code", index.code);
+        metadata.put("creation_time", format.format(new Date(index.createdAt)));
+        metadata.put("public_search", index.publicSearch);
+        synchronized (index) {
+            metadata.put("size", (long) index.documents.size());
+        }
+        return metadata;
+    }
+
+    private Object addDocuments(StoredIndex index, Object body) throws Failure {
+        if (body instanceof List) {
+            List<?> batch = (List<?>) body;
+            if (conf.maxBatchDocuments > 0 && batch.size() > conf.maxBatchDocuments) {
+                throw new Failure(413, "Too many documents in the batch");
+            }
+            List<Map<String, Object>> results = new ArrayList<Map<String, Object>>(batch.size());
+            for (Object element : batch) {
+                Map<String, Object> result = new HashMap<String, Object>();
+                try {
+                    addDocument(index, element);
+                    result.put("added", true);
+                } catch (Failure e) {
+                    result.put("added", false);
+                    result.put("error", e.getMessage());
+                }
+                results.add(result);
+            }
+            return results;
+        }
+        addDocument(index, body);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addDocument(StoredIndex index, Object element) throws Failure {
+        Map<?, ?> data = object(element);
+        Object docid = data.get("docid");
+        Object fields = data.get("fields");
+        if (!(docid instanceof String) || !(fields instanceof Map)) {
+            throw new Failure(400, "Invalid or missing argument");
+        }
+        if (((String) docid).getBytes(StandardCharsets.UTF_8).length > 1024) {
+            throw new Failure(400, "Invalid argument: docid too long");
+        }
+        Object variables = data.get("variables");
+        Object categories = data.get("categories");
+        if ((variables != null && !(variables instanceof Map))
+                || (categories != null && !(categories instanceof Map))) {
+            throw new Failure(400, "Invalid or missing argument");
+        }
+        StoredDocument document = new StoredDocument(clock.incrementAndGet(),
+                strings((Map<String, Object>) fields),
+                variables == null ? new HashMap<String, Object>()
+                        : new HashMap<String, Object>((Map<String, Object>) variables),
+                categories == null ? new HashMap<String, String>()
+                        : strings((Map<String, Object>) categories));
+        synchronized (index) {
+            remove(index, (String) docid);
+            index.documents.put((String) docid, document);
+            for (String term : terms(document)) {
+                Set<String> docids = index.postings.get(term);
+                if (docids == null) {
+                    docids = new HashSet<String>();
+                    index.postings.put(term, docids);
+                }
+                docids.add((String) docid);
+            }
+        }
+    }
+
+    private Object deleteDocuments(StoredIndex index, Map<String, List<String>> params,
+            Object body) throws Failure {
+        List<String> docids = params.get("docid");
+        if (docids == null) {
+            Object docid = body == null ? null : object(body).get("docid");
+            if (!(docid instanceof String)) {
+                throw new Failure(400, "Invalid or missing argument");
+            }
+            synchronized (index) {
+                remove(index, (String) docid);
+            }
+            return null;
+        }
+        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>(docids.size());
+        synchronized (index) {
+            for (String docid : docids) {
+                remove(index, docid);
+                results.add(Collections.<String, Object>singletonMap("deleted", true));
+            }
+        }
+        return results;
+    }
+
+    private Object update(StoredIndex index, String key, Object body) throws Failure {
+        if (body instanceof List) {
+            List<?> batch = (List<?>) body;
+            List<Map<String, Object>> results = new ArrayList<Map<String, Object>>(batch.size());
+            for (Object element : batch) {
+                Map<String, Object> result = new HashMap<String, Object>();
+                try {
+                    update(index, key, object(element));
+                    result.put("updated", true);
+                } catch (Failure e) {
+                    result.put("updated", false);
+                    result.put("error", e.getMessage());
+                }
+                results.add(result);
+            }
+            return results;
+        }
+        update(index, key, object(body));
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void update(StoredIndex index, String key, Map<?, ?> data) throws Failure {
+        Object docid = data.get("docid");
+        Object values = data.get(key);
+        if (!(docid instanceof String) || !(values instanceof Map)) {
+            throw new Failure(400, "Invalid or missing argument");
+        }
+        synchronized (index) {
+            StoredDocument document = index.documents.get(docid);
+            if (document == null) {
+                // the API keeps them for when the document is added
+                return;
+            }
+            if (key.equals("variables")) {
+                document.variables.putAll((Map<String, Object>) values);
+            } else {
+                for (Entry<String, Object> category : ((Map<String, Object>) values).entrySet()) {
+                    String value = String.valueOf(category.getValue());
+                    if (category.getValue() == null || value.isEmpty()) {
+                        document.categories.remove(category.getKey());
+                    } else {
+                        document.categories.put(category.getKey(), value);
+                    }
+                }
+            }
+        }
+    }
+
+    private Object search(StoredIndex index, Map<String, List<String>> params) throws Failure {
+        long startedAt = System.nanoTime();
+        String query = first(params, "q");
+        if (query == null) {
+            throw new Failure(400, "Invalid or missing argument");
+        }
+        int start = integer(params, "start", 0);
+        int length = integer(params, "len", 10);
+        Set<String> fetch = names(first(params, "fetch"));
+        Set<String> snippets = names(first(params, "snippet"));
+        boolean fetchVariables = flag(first(params, "fetch_variables"));
+        boolean fetchCategories = flag(first(params, "fetch_categories"));
+        Map<?, ?> categoryFilters = null;
+        String filters = first(params, "category_filters");
+        if (filters != null) {
+            try {
+                categoryFilters = object(JsonCodec.DEFAULT.read(
+                        new ByteArrayInputStream(filters.getBytes(StandardCharsets.UTF_8))));
+            } catch (IOException | RuntimeException e) {
+                throw new Failure(400, "Invalid argument: category_filters");
+            }
+        }
+
+        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+        Map<String, Map<String, Long>> facets = new HashMap<String, Map<String, Long>>();
+        long matches;
+        synchronized (index) {
+            final List<String> docids = matching(index, query);
+            final Map<String, StoredDocument> documents = index.documents;
+            if (categoryFilters != null) {
+                for (Iterator<String> it = docids.iterator(); it.hasNext();) {
+                    if (!accepts(categoryFilters, documents.get(it.next()).categories)) {
+                        it.remove();
+                    }
+                }
+            }
+            matches = docids.size();
+            Collections.sort(docids, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    return Long.compare(documents.get(b).timestamp, documents.get(a).timestamp);
+                }
+            });
+            for (String docid : docids) {
+                for (Entry<String, String> category : documents.get(docid).categories.entrySet()) {
+                    Map<String, Long> counts = facets.get(category.getKey());
+                    if (counts == null) {
+                        counts = new HashMap<String, Long>();
+                        facets.put(category.getKey(), counts);
+                    }
+                    Long count = counts.get(category.getValue());
+                    counts.put(category.getValue(), count == null ? 1L : count + 1);
+                }
+            }
+            for (int i = start; i < docids.size() && i < start + length; i++) {
+                String docid = docids.get(i);
+                StoredDocument document = documents.get(docid);
+                Map<String, Object> result = new LinkedHashMap<String, Object>();
+                result.put("docid", docid);
+                result.put("query_relevance_score", (double) document.timestamp);
+                for (String field : fetch) {
+                    if (field.equals("*")) {
+                        result.putAll(document.fields);
+                    } else if (document.fields.containsKey(field)) {
+                        result.put(field, document.fields.get(field));
+                    }
+                }
+                for (String field : snippets) {
+                    String text = document.fields.get(field);
+                    if (text != null) {
+                        result.put("snippet_" + field, text.length() > 200
+                                ? text.substring(0, 200) : text);
+                    }
+                }
+                if (fetchVariables) {
+                    for (Entry<String, Object> variable : document.variables.entrySet()) {
+                        result.put("variable_" + variable.getKey(), variable.getValue());
+                    }
+                }
+                if (fetchCategories) {
+                    for (Entry<String, String> category : document.categories.entrySet()) {
+                        result.put("category_" + category.getKey(), category.getValue());
+                    }
+                }
+                results.add(result);
+            }
+        }
+
+        Map<String, Object> response = new LinkedHashMap<String, Object>();
+        response.put("matches", matches);
+        response.put("facets", facets);
+        response.put("search_time", String.format(Locale.ROOT, "%.3f",
+                (System.nanoTime() - startedAt) / 1e9));
+        response.put("results", results);
+        return response;
+    }
+
+    /**
+     * @return whether the categories have one of the accepted values for
+     *         every filtered category.
+     */
+    private static boolean accepts(Map<?, ?> filters, Map<String, String> categories) {
+        for (Entry<?, ?> filter : filters.entrySet()) {
+            String value = categories.get(String.valueOf(filter.getKey()));
+            Object accepted = filter.getValue();
+            if (value == null || !(accepted instanceof List ? ((List<?>) accepted).contains(value)
+                    : value.equals(accepted))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void deleteBySearch(StoredIndex index, Map<String, List<String>> params)
+            throws Failure {
+        String query = first(params, "q");
+        if (query == null) {
+            throw new Failure(400, "Invalid or missing argument");
+        }
+        synchronized (index) {
+            for (String docid : matching(index, query)) {
+                remove(index, docid);
+            }
+        }
+    }
+
+    private Object function(StoredIndex index, String method, String number, Object body)
+            throws Failure {
+        try {
+            Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            throw new Failure(400, "Invalid or missing argument");
+        }
+        if (method.equals("PUT")) {
+            Object definition = body == null ? null : object(body).get("definition");
+            if (!(definition instanceof String) || ((String) definition).trim().isEmpty()) {
+                throw new Failure(400, "Invalid or missing argument");
+            }
+            synchronized (index) {
+                index.functions.put(number, (String) definition);
+            }
+            return null;
+        } else if (method.equals("DELETE")) {
+            synchronized (index) {
+                index.functions.remove(number);
+            }
+            return null;
+        }
+        throw new Failure(405, "Method not allowed");
+    }
+
+    /**
+     * @return the docids of the documents holding every term of the query,
+     *         in any field. Must be called holding the index lock.
+     */
+    private static List<String> matching(StoredIndex index, String query) {
+        List<Set<String>> lists = new ArrayList<Set<String>>();
+        for (String term : tokens(query)) {
+            if (term.equals("and") || term.equals("or") || term.equals("not")) {
+                continue;
+            }
+            Set<String> docids = index.postings.get(term);
+            if (docids == null) {
+                return new ArrayList<String>();
+            }
+            lists.add(docids);
+        }
+        if (lists.isEmpty()) {
+            return new ArrayList<String>();
+        }
+        Collections.sort(lists, new Comparator<Set<String>>() {
+            @Override
+            public int compare(Set<String> a, Set<String> b) {
+                return Integer.compare(a.size(), b.size());
+            }
+        });
+        List<String> result = new ArrayList<String>();
+        candidates: for (String docid : lists.get(0)) {
+            for (int i = 1; i < lists.size(); i++) {
+                if (!lists.get(i).contains(docid)) {
+                    continue candidates;
+                }
+            }
+            result.add(docid);
+        }
+        return result;
+    }
+
+    /**
+     * Must be called holding the index lock.
+     */
+    private static void remove(StoredIndex index, String docid) {
+        StoredDocument previous = index.documents.remove(docid);
+        if (previous == null) {
+            return;
+        }
+        for (String term : terms(previous)) {
+            Set<String> docids = index.postings.get(term);
+            if (docids != null) {
+                docids.remove(docid);
+                if (docids.isEmpty()) {
+                    index.postings.remove(term);
+                }
+            }
+        }
+    }
+
+    private static Set<String> terms(StoredDocument document) {
+        Set<String> terms = new HashSet<String>();
+        for (String value : document.fields.values()) {
+            terms.addAll(tokens(value));
+        }
+        return terms;
+    }
+
+    /**
+     * Splits text in lowercase words, dropping field prefixes like
+     * "title:" from query terms.
+     */
+    private static List<String> tokens(String text) {
+        List<String> tokens = new ArrayList<String>();
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean letter = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                if (i == length || text.charAt(i) != ':') {
+                    tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static Map<String, String> strings(Map<String, Object> values) {
+        Map<String, String> strings = new HashMap<String, String>();
+        for (Entry<String, Object> entry : values.entrySet()) {
+            if (entry.getValue() != null) {
+                strings.put(entry.getKey(), String.valueOf(entry.getValue()));
+            }
+        }
+        return strings;
+    }
+
+    private static Map<?, ?> object(Object body) throws Failure {
+        if (!(body instanceof Map)) {
+            throw new Failure(400, "Invalid or missing argument");
+        }
+        return (Map<?, ?>) body;
+    }
+
+    private static Set<String> names(String list) {
+        Set<String> names = new HashSet<String>();
+        if (list != null) {
+            for (String name : list.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    names.add(name.trim());
+                }
+            }
+        }
+        return names;
+    }
+
+    private static boolean flag(String value) {
+        return value != null && (value.equals("*") || value.equals("true"));
+    }
+
+    private static String first(Map<String, List<String>> params, String name) {
+        List<String> values = params.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static int integer(Map<String, List<String>> params, String name, int otherwise)
+            throws Failure {
+        String value = first(params, name);
+        if (value == null) {
+            return otherwise;
+        }
+        try {
+            int number = Integer.parseInt(value);
+            if (number < 0) {
+                throw new Failure(400, "Invalid argument: " + name);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new Failure(400, "Invalid argument: " + name);
+        }
+    }
+
+    private static Map<String, List<String>> parseQuery(String query) {
+        Map<String, List<String>> params = new HashMap<String, List<String>>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String name = decode(equals < 0 ? pair : pair.substring(0, equals));
+            String value = equals < 0 ? "" : decode(pair.substring(equals + 1));
+            List<String> values = params.get(name);
+            if (values == null) {
+                values = new ArrayList<String>();
+                params.put(name, values);
+            }
+            values.add(value);
+        }
+        return params;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,895 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * {@link HttpTransport} that keeps a bounded pool of persistent HTTP/1.1
+ * connections per host, so consecutive requests reuse warm sockets instead of
+ * paying the TCP and TLS handshakes every time.
+ *
+ * Connections that stay idle for longer than the configured time are closed
+ * by a background thread.
+ *
+ * @author flaptor
+ */
+public class PooledHttpTransport implements HttpTransport {
+
+    public static class Configuration {
+        protected int maxConnectionsPerHost = 20;
+        protected int connectTimeout = 10000;
+        protected int readTimeout = 60000;
+        protected long maxIdleTime = 30000;
+        protected long acquireTimeout = 30000;
+        protected long validateAfterInactivity = 2000;
+        protected SSLSocketFactory sslSocketFactory;
+
+        /**
+         * Maximum number of connections, idle or in use, to a single host. Once
+         * reached, further requests wait for a connection to be released.
+         */
+        public Configuration withMaxConnectionsPerHost(int maxConnectionsPerHost) {
+            if (maxConnectionsPerHost <= 0)
+                throw new IllegalArgumentException("maxConnectionsPerHost must be positive");
+            this.maxConnectionsPerHost = maxConnectionsPerHost;
+            return this;
+        }
+
+        /**
+         * Milliseconds to wait for a connection to be established. 0 means no
+         * timeout.
+         */
+        public Configuration withConnectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        /**
+         * Milliseconds to wait for data when reading a response. 0 means no
+         * timeout.
+         */
+        public Configuration withReadTimeout(int readTimeout) {
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        /**
+         * Milliseconds an idle connection is kept in the pool before it's
+         * closed.
+         */
+        public Configuration withMaxIdleTime(long maxIdleTime) {
+            if (maxIdleTime <= 0)
+                throw new IllegalArgumentException("maxIdleTime must be positive");
+            this.maxIdleTime = maxIdleTime;
+            return this;
+        }
+
+        /**
+         * Milliseconds to wait for a connection when the per host limit has
+         * been reached.
+         */
+        public Configuration withAcquireTimeout(long acquireTimeout) {
+            this.acquireTimeout = acquireTimeout;
+            return this;
+        }
+
+        /**
+         * Idle connections older than this (in milliseconds) are checked
+         * before being reused, in case the server has closed them.
+         */
+        public Configuration withValidateAfterInactivity(long validateAfterInactivity) {
+            this.validateAfterInactivity = validateAfterInactivity;
+            return this;
+        }
+
+        public Configuration withSslSocketFactory(SSLSocketFactory sslSocketFactory) {
+            this.sslSocketFactory = sslSocketFactory;
+            return this;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 65536;
+    private static final int MAX_DRAIN_BYTES = 65536;
+
+    private final Configuration conf;
+    private final SSLSocketFactory sslSocketFactory;
+    private final ConcurrentMap<String, HostPool> pools = new ConcurrentHashMap<String, HostPool>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    public PooledHttpTransport() {
+        this(new Configuration());
+    }
+
+    public PooledHttpTransport(Configuration conf) {
+        this.conf = conf;
+        this.sslSocketFactory = conf.sslSocketFactory != null ? conf.sslSocketFactory
+                : (SSLSocketFactory) SSLSocketFactory.getDefault();
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "indextank-connection-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1000, conf.maxIdleTime / 2);
+        this.evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleConnections();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        if (closed)
+            throw new IllegalStateException("Transport has been closed");
+
+        HostPool pool = getPool(request.getUrl());
+
+        try {
+            if (!pool.permits.tryAcquire(conf.acquireTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a connection to " + pool.key);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to " + pool.key);
+        }
+
+        boolean leased = false;
+        Connection connection = null;
+        try {
+            connection = pool.takeIdle();
+            boolean reused = connection != null;
+            if (connection == null) {
+                connection = connect(pool);
+            }
+
+            try {
+                Response response = exchange(pool, connection, request);
+                leased = true;
+                return response;
+            } catch (NoResponseException e) {
+                if (!reused || (request.getBody() != null && !request.getBody().isRepeatable())) {
+                    throw e.failure;
+                }
+            }
+
+            // the server most likely closed the pooled connection while it
+            // was idle, before the request got to it. It can be resent if its
+            // body can be written again.
+            connection.closeQuietly();
+            connection = connect(pool);
+            try {
+                Response response = exchange(pool, connection, request);
+                leased = true;
+                return response;
+            } catch (NoResponseException e) {
+                throw e.failure;
+            }
+        } finally {
+            if (!leased) {
+                // whatever failed may have left a request half written on it
+                if (connection != null) {
+                    connection.closeQuietly();
+                }
+                pool.permits.release();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        for (HostPool pool : pools.values()) {
+            pool.closeIdle(Long.MAX_VALUE);
+        }
+    }
+
+    private HostPool getPool(URL url) {
+        String scheme = url.getProtocol().toLowerCase(Locale.ENGLISH);
+        if (!"http".equals(scheme) && !"https".equals(scheme)) {
+            throw new IllegalArgumentException("Unsupported protocol: " + scheme);
+        }
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String key = scheme + "://" + url.getHost() + ":" + port;
+
+        HostPool pool = pools.get(key);
+        if (pool == null) {
+            HostPool newPool = new HostPool(key, scheme, url.getHost(), port,
+                    conf.maxConnectionsPerHost);
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+        return pool;
+    }
+
+    private void evictIdleConnections() {
+        long idleSince = System.currentTimeMillis() - conf.maxIdleTime;
+        for (HostPool pool : pools.values()) {
+            pool.closeIdle(idleSince);
+        }
+    }
+
+    private Connection connect(HostPool pool) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(pool.host, pool.port),
+                    conf.connectTimeout);
+            socket.setSoTimeout(conf.readTimeout);
+
+            if (pool.secure) {
+                SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(
+                        socket, pool.host, pool.port, true);
+                SSLParameters parameters = sslSocket.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                sslSocket.setSSLParameters(parameters);
+                sslSocket.startHandshake();
+                socket = sslSocket;
+            }
+
+            return new Connection(socket);
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @throws NoResponseException
+     *             if the connection failed before the server answered
+     *             anything: while the request was written, or with an EOF or
+     *             a reset in place of the response. A timeout isn't one of
+     *             them, the server may be working on the request.
+     */
+    private Response exchange(HostPool pool, Connection connection,
+            Request request) throws IOException {
+        try {
+            writeRequest(pool, connection, request);
+        } catch (SocketException e) {
+            throw new NoResponseException(e);
+        }
+        try {
+            connection.in.mark(1);
+            if (connection.in.read() == -1) {
+                throw new NoResponseException(new EOFException(
+                        "Connection closed by " + pool.key));
+            }
+            connection.in.reset();
+        } catch (SocketException e) {
+            throw new NoResponseException(e);
+        }
+
+        int status;
+        Map<String, String> headers;
+        boolean http10;
+        do {
+            String statusLine = readLine(connection.in);
+            if (statusLine == null) {
+                throw new EOFException("Connection closed by " + pool.key);
+            }
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            try {
+                status = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            http10 = "HTTP/1.0".equals(parts[0]);
+            headers = readHeaders(connection.in);
+        } while (status >= 100 && status < 200);
+
+        String connectionHeader = headers.get("connection");
+        boolean keepAlive = http10 ? "keep-alive".equalsIgnoreCase(connectionHeader)
+                : !"close".equalsIgnoreCase(connectionHeader);
+
+        String transferEncoding = headers.get("transfer-encoding");
+        String contentLength = headers.get("content-length");
+        InputStream body;
+        if ("HEAD".equals(request.getMethod()) || status == 204 || status == 304) {
+            body = new FixedLengthInputStream(connection.in, 0);
+        } else if (transferEncoding != null
+                && transferEncoding.toLowerCase(Locale.ENGLISH).contains("chunked")) {
+            body = new ChunkedInputStream(connection.in);
+        } else if (contentLength != null) {
+            try {
+                body = new FixedLengthInputStream(connection.in,
+                        Long.parseLong(contentLength.trim()));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length: " + contentLength);
+            }
+        } else {
+            // delimited by the end of the connection
+            body = connection.in;
+            keepAlive = false;
+        }
+
+        return new PooledResponse(pool, connection, status, headers, body,
+                keepAlive);
+    }
+
+    private static void writeRequest(HostPool pool, Connection connection,
+            Request request) throws IOException {
+        URL url = request.getUrl();
+        String target = url.getFile();
+        if (target.isEmpty()) {
+            target = "/";
+        }
+
+        StringBuilder head = new StringBuilder(256);
+        head.append(request.getMethod()).append(' ').append(target)
+                .append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(pool.host);
+        if (pool.port != (pool.secure ? 443 : 80)) {
+            head.append(':').append(pool.port);
+        }
+        head.append("\r\n");
+        for (Entry<String, String> header : request.getHeaders().entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue())
+                    .append("\r\n");
+        }
+
+        RequestBody body = request.getBody();
+        long length = body == null ? 0 : body.contentLength();
+        if (length >= 0) {
+            if (body != null || "PUT".equals(request.getMethod())
+                    || "POST".equals(request.getMethod())) {
+                head.append("Content-Length: ").append(length).append("\r\n");
+            }
+        } else {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+        head.append("\r\n");
+
+        OutputStream out = connection.out;
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        if (body != null) {
+            if (length >= 0) {
+                body.writeTo(new NonClosingOutputStream(out));
+            } else {
+                ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+                body.writeTo(chunked);
+                chunked.finish();
+            }
+        }
+        out.flush();
+    }
+
+    private static Map<String, String> readHeaders(InputStream in)
+            throws IOException {
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+            String value = line.substring(colon + 1).trim();
+            String previous = headers.get(name);
+            headers.put(name, previous == null ? value : previous + ", " + value);
+        }
+        if (line == null) {
+            throw new EOFException("Unexpected end of stream reading headers");
+        }
+        return headers;
+    }
+
+    /**
+     * Reads a CRLF (or LF) terminated line.
+     *
+     * @return the line without its terminator, or null if the stream ended
+     *         before anything could be read.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Line too long");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The connection failed before any of the response arrived, so the
+     * server didn't get the request or dropped it unanswered.
+     */
+    private static class NoResponseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final IOException failure;
+
+        NoResponseException(IOException failure) {
+            super(failure);
+            this.failure = failure;
+        }
+    }
+
+    private static class HostPool {
+        final String key;
+        final String host;
+        final int port;
+        final boolean secure;
+        final Semaphore permits;
+        // most recently used first, guarded by this
+        final Deque<Connection> idle = new ArrayDeque<Connection>();
+
+        HostPool(String key, String scheme, String host, int port,
+                int maxConnections) {
+            this.key = key;
+            this.host = host;
+            this.port = port;
+            this.secure = "https".equals(scheme);
+            this.permits = new Semaphore(maxConnections, true);
+        }
+
+        Connection takeIdle() {
+            Connection connection;
+            while ((connection = poll()) != null) {
+                if (connection.isReusable()) {
+                    return connection;
+                }
+                connection.closeQuietly();
+            }
+            return null;
+        }
+
+        private synchronized Connection poll() {
+            return idle.pollFirst();
+        }
+
+        synchronized void release(Connection connection) {
+            connection.lastUsed = System.currentTimeMillis();
+            idle.addFirst(connection);
+        }
+
+        void closeIdle(long idleSince) {
+            Deque<Connection> expired = new ArrayDeque<Connection>();
+            synchronized (this) {
+                Iterator<Connection> it = idle.descendingIterator();
+                while (it.hasNext()) {
+                    Connection connection = it.next();
+                    if (connection.lastUsed > idleSince) {
+                        break;
+                    }
+                    it.remove();
+                    expired.add(connection);
+                }
+            }
+            for (Connection connection : expired) {
+                connection.closeQuietly();
+            }
+        }
+    }
+
+    private class Connection {
+        final Socket socket;
+        final BufferedInputStream in;
+        final OutputStream out;
+        long lastUsed;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        }
+
+        /**
+         * Checks whether an idle connection can be used for a new request.
+         */
+        boolean isReusable() {
+            long idleTime = System.currentTimeMillis() - lastUsed;
+            if (idleTime > conf.maxIdleTime || socket.isClosed()
+                    || socket.isInputShutdown() || socket.isOutputShutdown()) {
+                return false;
+            }
+            if (idleTime <= conf.validateAfterInactivity) {
+                return true;
+            }
+
+            // nothing should be readable on an idle connection. EOF means the
+            // server closed it, and anything else is out of protocol.
+            try {
+                if (in.available() > 0) {
+                    return false;
+                }
+                int timeout = socket.getSoTimeout();
+                try {
+                    socket.setSoTimeout(1);
+                    in.read();
+                    return false;
+                } catch (SocketTimeoutException e) {
+                    return true;
+                } finally {
+                    socket.setSoTimeout(timeout);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private class PooledResponse implements Response {
+        private final HostPool pool;
+        private final Connection connection;
+        private final int status;
+        private final Map<String, String> headers;
+        private final InputStream framedBody;
+        private final InputStream body;
+        private final boolean keepAlive;
+        private boolean closed;
+
+        PooledResponse(HostPool pool, Connection connection, int status,
+                Map<String, String> headers, InputStream framedBody,
+                boolean keepAlive) {
+            this.pool = pool;
+            this.connection = connection;
+            this.status = status;
+            this.headers = headers;
+            this.framedBody = framedBody;
+            this.keepAlive = keepAlive;
+            this.body = new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    return PooledResponse.this.framedBody.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return PooledResponse.this.framedBody.read(b, off, len);
+                }
+
+                @Override
+                public int available() throws IOException {
+                    return PooledResponse.this.framedBody.available();
+                }
+
+                @Override
+                public void close() {
+                    PooledResponse.this.close();
+                }
+            };
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ENGLISH));
+        }
+
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            try {
+                if (keepAlive && !PooledHttpTransport.this.closed && drain()) {
+                    pool.release(connection);
+                } else {
+                    connection.closeQuietly();
+                }
+            } finally {
+                pool.permits.release();
+            }
+        }
+
+        /**
+         * Consumes what's left of the body, so the connection can be reused.
+         *
+         * @return false if the body could not be consumed or was too long.
+         */
+        private boolean drain() {
+            byte[] buffer = new byte[1024];
+            long drained = 0;
+            try {
+                int read;
+                while ((read = framedBody.read(buffer)) != -1) {
+                    drained += read;
+                    if (drained > MAX_DRAIN_BYTES) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Body of a response with a known length.
+     */
+    private static class FixedLengthInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Premature end of response body");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read == -1) {
+                throw new EOFException("Premature end of response body");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+
+    /**
+     * Body of a response sent with chunked transfer encoding.
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private long chunkRemaining;
+        private boolean eof;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (eof) {
+                return false;
+            }
+            if (chunkRemaining == 0) {
+                String line = readLine(in);
+                if (line != null && line.isEmpty()) {
+                    // CRLF closing the previous chunk
+                    line = readLine(in);
+                }
+                if (line == null) {
+                    throw new EOFException("Premature end of chunked response body");
+                }
+                int extension = line.indexOf(';');
+                String size = (extension >= 0 ? line.substring(0, extension) : line).trim();
+                try {
+                    chunkRemaining = Long.parseLong(size, 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + line);
+                }
+                if (chunkRemaining == 0) {
+                    // trailers
+                    readHeaders(in);
+                    eof = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Premature end of chunked response body");
+            }
+            chunkRemaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (read == -1) {
+                throw new EOFException("Premature end of chunked response body");
+            }
+            chunkRemaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return eof ? 0 : (int) Math.min(in.available(), chunkRemaining);
+        }
+    }
+
+    /**
+     * Writes the request body as a sequence of chunks. Data is buffered so
+     * that small writes don't turn into small chunks.
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int count;
+        private boolean finished;
+
+        ChunkedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= buffer.length) {
+                flushChunk();
+                writeChunk(b, off, len);
+                return;
+            }
+            if (len > buffer.length - count) {
+                flushChunk();
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushChunk();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+
+        void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            flushChunk();
+            out.write(new byte[] { '0', '\r', '\n', '\r', '\n' });
+        }
+
+        private void flushChunk() throws IOException {
+            if (count > 0) {
+                writeChunk(buffer, 0, count);
+                count = 0;
+            }
+        }
+
+        private void writeChunk(byte[] b, int off, int len) throws IOException {
+            out.write((Integer.toHexString(len) + "\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.write(b, off, len);
+            out.write('\r');
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Keeps request bodies from closing the connection's stream.
+     */
+    private static class NonClosingOutputStream extends OutputStream {
+        private final OutputStream out;
+
+        NonClosingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+
+}
@@ -0,0 +1,258 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Parses JSON responses incrementally, straight from the response stream.
+ *
+ * Nothing proportional to the response size is buffered besides the parsed
+ * result itself. The byte buffers used to decode the stream and the parsers
+ * (each of which holds a 32K lexer buffer) are pooled and reused across
+ * calls.
+ *
+ * @author flaptor
+ */
+final class ResponseParser {
+
+    static final int BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED = 64;
+
+    private static final Pool<byte[]> BUFFERS = new Pool<byte[]>();
+    private static final Pool<JSONParser> PARSERS = new Pool<JSONParser>();
+
+    private ResponseParser() {
+    }
+
+    /**
+     * Parses a UTF-8 encoded JSON document.
+     *
+     * @return the parsed value, or null if the stream is empty
+     */
+    static Object parse(InputStream in) throws IOException {
+        Utf8Reader reader = new Utf8Reader(in);
+        try {
+            if (!reader.hasContent()) {
+                return null;
+            }
+            JSONParser parser = PARSERS.take();
+            if (parser == null) {
+                parser = new JSONParser();
+            }
+            try {
+                return parser.parse(reader);
+            } catch (ParseException e) {
+                throw new RuntimeException(e);
+            } finally {
+                // don't keep the stream reachable from the pool
+                parser.reset(null);
+                PARSERS.give(parser);
+            }
+        } finally {
+            reader.release();
+        }
+    }
+
+    /**
+     * Reads the whole stream as UTF-8 text. Meant for error bodies, which
+     * are short.
+     */
+    static String readString(InputStream in) throws IOException {
+        Utf8Reader reader = new Utf8Reader(in);
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] chars = new char[512];
+            int read;
+            while ((read = reader.read(chars, 0, chars.length)) != -1) {
+                text.append(chars, 0, read);
+            }
+            return text.toString();
+        } finally {
+            reader.release();
+        }
+    }
+
+    /**
+     * A bounded, lock-free pool. When it's empty callers create a new
+     * instance, and when it's full returned instances are dropped.
+     */
+    private static class Pool<T> {
+        private final Queue<T> items = new ConcurrentLinkedQueue<T>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        T take() {
+            T item = items.poll();
+            if (item != null) {
+                size.decrementAndGet();
+            }
+            return item;
+        }
+
+        void give(T item) {
+            if (size.incrementAndGet() <= MAX_POOLED) {
+                items.offer(item);
+            } else {
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Decodes UTF-8 from a stream through a pooled byte buffer. Malformed
+     * input is replaced with U+FFFD, like {@link java.io.InputStreamReader}
+     * does. It doesn't close the underlying stream.
+     */
+    static class Utf8Reader extends Reader {
+        private static final char REPLACEMENT = '\uFFFD';
+
+        private final InputStream in;
+        private byte[] buffer;
+        private int position;
+        private int limit;
+        private boolean eof;
+        private char pendingLowSurrogate;
+
+        Utf8Reader(InputStream in) {
+            this.in = in;
+            byte[] pooled = BUFFERS.take();
+            this.buffer = pooled != null ? pooled : new byte[BUFFER_SIZE];
+        }
+
+        /**
+         * Blocks until the first byte arrives.
+         *
+         * @return false if the stream is empty
+         */
+        boolean hasContent() throws IOException {
+            return position < limit || fill(1);
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int count = 0;
+            if (pendingLowSurrogate != 0) {
+                cbuf[off + count++] = pendingLowSurrogate;
+                pendingLowSurrogate = 0;
+            }
+            while (count < len) {
+                if (position >= limit) {
+                    // only block for more input when nothing was decoded yet
+                    if (count > 0 || !fill(1)) {
+                        break;
+                    }
+                }
+                int b = buffer[position];
+                if (b >= 0) {
+                    cbuf[off + count++] = (char) b;
+                    position++;
+                    continue;
+                }
+
+                int trailing;
+                int codePoint;
+                int min;
+                if ((b & 0xE0) == 0xC0) {
+                    trailing = 1;
+                    codePoint = b & 0x1F;
+                    min = 0x80;
+                } else if ((b & 0xF0) == 0xE0) {
+                    trailing = 2;
+                    codePoint = b & 0x0F;
+                    min = 0x800;
+                } else if ((b & 0xF8) == 0xF0) {
+                    trailing = 3;
+                    codePoint = b & 0x07;
+                    min = 0x10000;
+                } else {
+                    cbuf[off + count++] = REPLACEMENT;
+                    position++;
+                    continue;
+                }
+
+                if (limit - position <= trailing && !fill(trailing + 1)) {
+                    // truncated sequence at the end of the stream
+                    cbuf[off + count++] = REPLACEMENT;
+                    position++;
+                    continue;
+                }
+
+                int i = 1;
+                for (; i <= trailing; i++) {
+                    int next = buffer[position + i];
+                    if ((next & 0xC0) != 0x80) {
+                        break;
+                    }
+                    codePoint = (codePoint << 6) | (next & 0x3F);
+                }
+                if (i <= trailing || codePoint < min || codePoint > Character.MAX_CODE_POINT
+                        || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                    cbuf[off + count++] = REPLACEMENT;
+                    position += i;
+                    continue;
+                }
+                position += trailing + 1;
+
+                if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                    cbuf[off + count++] = (char) codePoint;
+                } else {
+                    cbuf[off + count++] = Character.highSurrogate(codePoint);
+                    if (count < len) {
+                        cbuf[off + count++] = Character.lowSurrogate(codePoint);
+                    } else {
+                        pendingLowSurrogate = Character.lowSurrogate(codePoint);
+                    }
+                }
+            }
+            return count == 0 ? -1 : count;
+        }
+
+        /**
+         * Makes sure at least {@code needed} unread bytes are buffered, moving
+         * the unread ones to the front of the buffer.
+         *
+         * @return false if the stream ended first
+         */
+        private boolean fill(int needed) throws IOException {
+            if (position > 0) {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+            }
+            while (limit < needed && !eof) {
+                int read = in.read(buffer, limit, buffer.length - limit);
+                if (read == -1) {
+                    eof = true;
+                } else {
+                    limit += read;
+                }
+            }
+            return limit >= needed;
+        }
+
+        /**
+         * Returns the buffer to the pool. The reader can't be used after this.
+         */
+        void release() {
+            if (buffer != null) {
+                BUFFERS.give(buffer);
+                buffer = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+
+}
@@ -0,0 +1,295 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which failed calls are sent again, and when. Calls are retried on
+ * connection failures and on the configured HTTP codes, after an
+ * exponentially growing delay with full jitter, up to a maximum number of
+ * attempts.
+ *
+ * Only idempotent methods are retried after the request may have reached the
+ * server, unless configured otherwise. Every call deposits a fraction of a
+ * token in a retry budget shared by everyone using the policy, and every
+ * retry takes a whole token, so retries can't grow beyond that fraction of
+ * the calls made, plus a small reserve, however many calls fail.
+ *
+ * It's enabled on a client with
+ * {@link IndexTankClient#withRetryPolicy(RetryPolicy)}, and can be shared by
+ * several clients.
+ *
+ * @author flaptor
+ */
+public class RetryPolicy {
+
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<String>(
+            Arrays.asList("GET", "HEAD", "PUT", "DELETE", "OPTIONS"));
+
+    public static class Configuration {
+        protected int maxAttempts = 3;
+        protected long initialDelay = 100;
+        protected long maxDelay = 5000;
+        protected Set<Integer> retriableCodes = new HashSet<Integer>(
+                Arrays.asList(429, 502, 503, 504));
+        protected boolean retryNonIdempotent = false;
+        protected List<String> retriableErrors = Arrays.asList("timeout",
+                "timed out", "temporar", "unavailable", "try again", "overload");
+        protected double budgetRatio = 0.1;
+        protected int budgetReserve = 10;
+
+        /**
+         * Maximum number of times a call is sent, including the first one.
+         */
+        public Configuration withMaxAttempts(int maxAttempts) {
+            if (maxAttempts <= 0)
+                throw new IllegalArgumentException("maxAttempts must be positive");
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Upper bound, in milliseconds, of the delay before the first retry.
+         * It doubles for every following retry.
+         */
+        public Configuration withInitialDelay(long initialDelay) {
+            if (initialDelay <= 0)
+                throw new IllegalArgumentException("initialDelay must be positive");
+            this.initialDelay = initialDelay;
+            return this;
+        }
+
+        /**
+         * Maximum delay, in milliseconds, before a retry, including the one
+         * asked for by the server with a Retry-After header.
+         */
+        public Configuration withMaxDelay(long maxDelay) {
+            if (maxDelay <= 0)
+                throw new IllegalArgumentException("maxDelay must be positive");
+            this.maxDelay = maxDelay;
+            return this;
+        }
+
+        /**
+         * HTTP codes for which a call is retried.
+         */
+        public Configuration withRetriableCodes(Integer... retriableCodes) {
+            if (retriableCodes == null)
+                throw new IllegalArgumentException("retriableCodes can not be null");
+            this.retriableCodes = new HashSet<Integer>(Arrays.asList(retriableCodes));
+            return this;
+        }
+
+        /**
+         * Fragments of the per-document error messages of a batch for which
+         * the document is sent again by
+         * {@link Index#addDocumentsWithRetry(Iterable, RetryPolicy)}. They
+         * are matched ignoring case; any other error is permanent.
+         */
+        public Configuration withRetriableErrors(String... retriableErrors) {
+            if (retriableErrors == null)
+                throw new IllegalArgumentException("retriableErrors can not be null");
+            this.retriableErrors = Arrays.asList(retriableErrors);
+            return this;
+        }
+
+        /**
+         * Whether calls with non-idempotent methods are retried when they may
+         * have reached the server. They are always retried when the
+         * connection couldn't be established.
+         */
+        public Configuration withRetryNonIdempotent(boolean retryNonIdempotent) {
+            this.retryNonIdempotent = retryNonIdempotent;
+            return this;
+        }
+
+        /**
+         * Sets the retry budget: retries are limited to the given fraction of
+         * the calls made, plus a reserve that allows some retries before
+         * enough calls have been made.
+         */
+        public Configuration withRetryBudget(double ratio, int reserve) {
+            if (ratio < 0)
+                throw new IllegalArgumentException("ratio can not be negative");
+            if (reserve < 0)
+                throw new IllegalArgumentException("reserve can not be negative");
+            this.budgetRatio = ratio;
+            this.budgetReserve = reserve;
+            return this;
+        }
+    }
+
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final Set<Integer> retriableCodes;
+    private final boolean retryNonIdempotent;
+    private final String[] retriableErrors;
+    private final double budgetRatio;
+    private final double budgetCapacity;
+
+    // guarded by this
+    private double tokens;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong budgetExhausted = new AtomicLong();
+
+    public RetryPolicy() {
+        this(new Configuration());
+    }
+
+    public RetryPolicy(Configuration conf) {
+        this.maxAttempts = conf.maxAttempts;
+        this.initialDelay = conf.initialDelay;
+        this.maxDelay = conf.maxDelay;
+        this.retriableCodes = new HashSet<Integer>(conf.retriableCodes);
+        this.retryNonIdempotent = conf.retryNonIdempotent;
+        this.retriableErrors = new String[conf.retriableErrors.size()];
+        for (int i = 0; i < retriableErrors.length; i++) {
+            retriableErrors[i] = conf.retriableErrors.get(i).toLowerCase(Locale.ROOT);
+        }
+        this.budgetRatio = conf.budgetRatio;
+        this.budgetCapacity = Math.max(conf.budgetReserve, 1);
+        this.tokens = conf.budgetReserve;
+    }
+
+    /**
+     * Called once for every call, before sending it the first time.
+     */
+    synchronized void called() {
+        tokens = Math.min(budgetCapacity, tokens + budgetRatio);
+    }
+
+    /**
+     * @return whether a call answered with the given code is sent again.
+     */
+    boolean retry(String method, int attempt, int httpCode) {
+        if (!retriableCodes.contains(httpCode)) {
+            return false;
+        }
+        return retry(attempt, isIdempotent(method) || retryNonIdempotent);
+    }
+
+    /**
+     * @return whether a call that failed with the given exception is sent
+     *         again.
+     */
+    boolean retry(String method, int attempt, IOException error) {
+        if (error instanceof ConnectException) {
+            // the request never reached the server
+            return retry(attempt, true);
+        }
+        if (error instanceof UnknownHostException
+                || error instanceof MalformedURLException
+                || (error instanceof InterruptedIOException
+                        && !(error instanceof SocketTimeoutException))) {
+            return false;
+        }
+        return retry(attempt, isIdempotent(method) || retryNonIdempotent);
+    }
+
+    /**
+     * @return whether the failed documents of a batch are sent again after
+     *         the given attempt.
+     */
+    boolean retry(int attempt) {
+        return retry(attempt, true);
+    }
+
+    /**
+     * @return whether a document that failed with the given error may
+     *         succeed if sent again.
+     */
+    boolean isRetriable(String error) {
+        if (error == null) {
+            return false;
+        }
+        error = error.toLowerCase(Locale.ROOT);
+        for (String fragment : retriableErrors) {
+            if (error.contains(fragment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean retry(int attempt, boolean safe) {
+        if (!safe || attempt >= maxAttempts || Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        synchronized (this) {
+            if (tokens < 1) {
+                budgetExhausted.incrementAndGet();
+                return false;
+            }
+            tokens -= 1;
+        }
+        retries.incrementAndGet();
+        return true;
+    }
+
+    private static boolean isIdempotent(String method) {
+        return IDEMPOTENT_METHODS.contains(method);
+    }
+
+    /**
+     * @param retryAfter
+     *            the Retry-After header of the failed response, or null
+     * @return the time to wait, in milliseconds, before sending a call again
+     *         after the given attempt.
+     */
+    long delay(int attempt, String retryAfter) {
+        if (retryAfter != null) {
+            try {
+                long seconds = Long.parseLong(retryAfter.trim());
+                if (seconds >= 0) {
+                    return Math.min(seconds * 1000, maxDelay);
+                }
+            } catch (NumberFormatException e) {
+                // an HTTP date, use our own delay
+            }
+        }
+        long delay = initialDelay << Math.min(attempt - 1, 30);
+        delay = Math.min(delay, maxDelay);
+        return ThreadLocalRandom.current().nextLong(delay + 1);
+    }
+
+    /**
+     * Waits before sending a call again.
+     */
+    void sleep(long delay) throws InterruptedIOException {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry a call");
+        }
+    }
+
+    /**
+     * @return the number of calls sent again.
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return the number of calls that weren't retried because the retry
+     *         budget was exhausted.
+     */
+    public long getBudgetExhaustedCount() {
+        return budgetExhausted.get();
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+
+/**
+ * Makes identical searches that run at the same time share a single API call.
+ * The first search is sent, and the ones made while it's in flight wait for
+ * it and get the same {@link SearchResults}, which must be treated as
+ * read-only.
+ *
+ * It's enabled on a client with
+ * {@link IndexTankClient#withSearchCoalescer(SearchCoalescer)}, and can be
+ * shared by several clients. A write to an index made through one of them
+ * keeps later searches from joining calls sent before it.
+ *
+ * @author flaptor
+ */
+public class SearchCoalescer {
+
+    private static class Flight {
+        final String indexUrl;
+        final CompletableFuture<SearchResults> future = new CompletableFuture<SearchResults>();
+
+        Flight(String indexUrl) {
+            this.indexUrl = indexUrl;
+        }
+    }
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong collapsed = new AtomicLong();
+
+    /**
+     * Joins the search in flight for the key, or starts it with the given
+     * call if there's none.
+     *
+     * @return a future for the results, owned by the caller.
+     */
+    CompletableFuture<SearchResults> search(String indexUrl, String key,
+            Supplier<CompletableFuture<SearchResults>> call) {
+        final Flight flight = new Flight(indexUrl);
+        Flight existing = flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            collapsed.incrementAndGet();
+            return copyOf(existing.future);
+        }
+
+        sent.incrementAndGet();
+        CompletableFuture<SearchResults> result;
+        try {
+            result = call.get();
+        } catch (Throwable e) {
+            result = new CompletableFuture<SearchResults>();
+            result.completeExceptionally(e);
+        }
+        result.whenComplete((results, error) -> {
+            flights.remove(key, flight);
+            if (error != null) {
+                flight.future.completeExceptionally(error);
+            } else {
+                flight.future.complete(results);
+            }
+        });
+        return copyOf(flight.future);
+    }
+
+    /**
+     * Called after every write to an index made through a client using this
+     * coalescer. Searches in flight for the index are left to complete, but
+     * no new search joins them.
+     */
+    void written(String indexUrl) {
+        for (Iterator<Flight> it = flights.values().iterator(); it.hasNext();) {
+            if (it.next().indexUrl.equals(indexUrl)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A future that completes like the shared one, so a caller cancelling
+     * its future doesn't affect the others.
+     */
+    private static CompletableFuture<SearchResults> copyOf(
+            CompletableFuture<SearchResults> shared) {
+        final CompletableFuture<SearchResults> copy = new CompletableFuture<SearchResults>();
+        shared.whenComplete((results, error) -> {
+            if (error != null) {
+                copy.completeExceptionally(error);
+            } else {
+                copy.complete(results);
+            }
+        });
+        return copy;
+    }
+
+    /**
+     * @return the number of searches that were sent to the API.
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * @return the number of searches that joined one already in flight
+     *         instead of being sent.
+     */
+    public long getCollapsedCount() {
+        return collapsed.get();
+    }
+
+    /**
+     * @return the number of distinct searches in flight right now.
+     */
+    public int getInFlightCount() {
+        return flights.size();
+    }
+
+}
@@ -0,0 +1,335 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+
+/**
+ * Keeps recent search results in memory, so repeated searches are answered
+ * without calling the API. Results are evicted in least recently used order
+ * once the configured number of entries or bytes is exceeded, and expire
+ * after a fixed time to live.
+ *
+ * A cache is enabled on a client with
+ * {@link IndexTankClient#withSearchCache(SearchResultCache)}, and can be
+ * shared by several clients. Cached {@link SearchResults} are shared by every
+ * caller that gets them, so they must be treated as read-only.
+ *
+ * Writes made to an index through a client using the cache invalidate the
+ * results cached for that index, as set by {@link Invalidation}. Writes made
+ * by other clients or processes are only seen once results expire.
+ *
+ * @author flaptor
+ */
+public class SearchResultCache {
+
+    public enum Invalidation {
+        /**
+         * Results are only dropped when their time to live is over.
+         */
+        NONE,
+        /**
+         * Every write to an index starts a new generation for it, and results
+         * fetched in a previous generation are dropped.
+         */
+        GENERATION,
+        /**
+         * Like {@link #GENERATION}, and searches on an index also skip the
+         * cache for a while after each write, while the write may still not
+         * be visible in search results.
+         */
+        READ_YOUR_WRITES
+    }
+
+    public static class Configuration {
+        protected int maxEntries = 1000;
+        protected long maxBytes = 16 * 1024 * 1024;
+        protected long timeToLive = 60000;
+        protected Invalidation invalidation = Invalidation.GENERATION;
+        protected long readYourWritesWindow = 1000;
+
+        /**
+         * Maximum number of cached searches.
+         */
+        public Configuration withMaxEntries(int maxEntries) {
+            if (maxEntries <= 0)
+                throw new IllegalArgumentException("maxEntries must be positive");
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * Maximum estimated size of the cached results, in bytes. Results
+         * bigger than this are never cached.
+         */
+        public Configuration withMaxBytes(long maxBytes) {
+            if (maxBytes <= 0)
+                throw new IllegalArgumentException("maxBytes must be positive");
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Time, in milliseconds, a result is served from the cache after it
+         * was fetched.
+         */
+        public Configuration withTimeToLive(long timeToLive) {
+            if (timeToLive <= 0)
+                throw new IllegalArgumentException("timeToLive must be positive");
+            this.timeToLive = timeToLive;
+            return this;
+        }
+
+        public Configuration withInvalidation(Invalidation invalidation) {
+            if (invalidation == null)
+                throw new IllegalArgumentException("invalidation can not be null");
+            this.invalidation = invalidation;
+            return this;
+        }
+
+        /**
+         * Time, in milliseconds, searches on an index skip the cache after a
+         * write, when using {@link Invalidation#READ_YOUR_WRITES}.
+         */
+        public Configuration withReadYourWritesWindow(long readYourWritesWindow) {
+            if (readYourWritesWindow <= 0)
+                throw new IllegalArgumentException("readYourWritesWindow must be positive");
+            this.readYourWritesWindow = readYourWritesWindow;
+            return this;
+        }
+    }
+
+    /**
+     * A snapshot of the cache counters.
+     */
+    public static class Stats {
+        public final long hits;
+        public final long misses;
+        /**
+         * Entries removed to make room for new ones.
+         */
+        public final long evictions;
+        /**
+         * Entries removed because their time to live was over.
+         */
+        public final long expirations;
+        /**
+         * Entries removed because their index was written to.
+         */
+        public final long invalidations;
+        /**
+         * Searches that skipped the cache because their index was recently
+         * written to. They are counted as misses too.
+         */
+        public final long bypasses;
+        public final int entries;
+        public final long bytes;
+
+        Stats(long hits, long misses, long evictions, long expirations,
+                long invalidations, long bypasses, int entries, long bytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.expirations = expirations;
+            this.invalidations = invalidations;
+            this.bypasses = bypasses;
+            this.entries = entries;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the fraction of lookups answered from the cache, or 0 if
+         *         there were none.
+         */
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return "Hits: " + hits + "\nMisses: " + misses + "\nEvictions: "
+                    + evictions + "\nExpirations: " + expirations
+                    + "\nInvalidations: " + invalidations + "\nBypasses: "
+                    + bypasses + "\nEntries: " + entries + "\nBytes: " + bytes;
+        }
+    }
+
+    private static class CacheEntry {
+        final SearchResults results;
+        final long size;
+        final long expiresAt;
+        final long generation;
+
+        CacheEntry(SearchResults results, long size, long expiresAt,
+                long generation) {
+            this.results = results;
+            this.size = size;
+            this.expiresAt = expiresAt;
+            this.generation = generation;
+        }
+    }
+
+    private static class IndexState {
+        final AtomicLong generation = new AtomicLong();
+        volatile long lastWrite;
+        volatile boolean written;
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long timeToLive;
+    private final Invalidation invalidation;
+    private final long readYourWritesWindow;
+    private final ConcurrentMap<String, IndexState> indexes = new ConcurrentHashMap<String, IndexState>();
+
+    // guarded by this; iteration order is least recently used first
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(
+            16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+    private long invalidations;
+    private long bypasses;
+
+    public SearchResultCache() {
+        this(new Configuration());
+    }
+
+    public SearchResultCache(Configuration conf) {
+        this.maxEntries = conf.maxEntries;
+        this.maxBytes = conf.maxBytes;
+        this.timeToLive = TimeUnit.MILLISECONDS.toNanos(conf.timeToLive);
+        this.invalidation = conf.invalidation;
+        this.readYourWritesWindow = TimeUnit.MILLISECONDS.toNanos(conf.readYourWritesWindow);
+    }
+
+    /**
+     * @return the current generation of an index. It must be read before
+     *         searching, and handed to {@link #put} with the results.
+     */
+    long generation(String indexUrl) {
+        return index(indexUrl).generation.get();
+    }
+
+    /**
+     * Called after every write to an index made through a client using this
+     * cache, whether it succeeded or not.
+     */
+    void written(String indexUrl) {
+        if (invalidation == Invalidation.NONE) {
+            return;
+        }
+        IndexState index = index(indexUrl);
+        index.lastWrite = System.nanoTime();
+        index.written = true;
+        index.generation.incrementAndGet();
+    }
+
+    private IndexState index(String indexUrl) {
+        IndexState index = indexes.get(indexUrl);
+        if (index == null) {
+            IndexState created = new IndexState();
+            index = indexes.putIfAbsent(indexUrl, created);
+            if (index == null) {
+                index = created;
+            }
+        }
+        return index;
+    }
+
+    private boolean recentlyWritten(IndexState index) {
+        return invalidation == Invalidation.READ_YOUR_WRITES && index.written
+                && System.nanoTime() - index.lastWrite < readYourWritesWindow;
+    }
+
+    /**
+     * @return the cached results for the key, or null if there are none, they
+     *         expired or their index was written to since.
+     */
+    synchronized SearchResults get(String indexUrl, String key) {
+        IndexState index = index(indexUrl);
+        if (recentlyWritten(index)) {
+            bypasses++;
+            misses++;
+            return null;
+        }
+        CacheEntry entry = entries.get(key);
+        if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+            remove(key);
+            expirations++;
+            entry = null;
+        } else if (entry != null && entry.generation != index.generation.get()) {
+            remove(key);
+            invalidations++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.results;
+    }
+
+    /**
+     * Caches results fetched while the index was in the given generation,
+     * unless it has been written to since.
+     */
+    synchronized void put(String indexUrl, String key, long generation,
+            SearchResults results) {
+        IndexState index = index(indexUrl);
+        if (generation != index.generation.get() || recentlyWritten(index)) {
+            return;
+        }
+        long size = results.estimateSize() + 2L * key.length();
+        remove(key);
+        if (size > maxBytes) {
+            return;
+        }
+        entries.put(key, new CacheEntry(results, size, System.nanoTime()
+                + timeToLive, generation));
+        bytes += size;
+
+        Iterator<Entry<String, CacheEntry>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+            CacheEntry evicted = eldest.next().getValue();
+            eldest.remove();
+            bytes -= evicted.size;
+            if (evicted.expiresAt - System.nanoTime() <= 0) {
+                expirations++;
+            } else {
+                evictions++;
+            }
+        }
+    }
+
+    private void remove(String key) {
+        CacheEntry removed = entries.remove(key);
+        if (removed != null) {
+            bytes -= removed.size;
+        }
+    }
+
+    /**
+     * Removes every cached result.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, evictions, expirations, invalidations,
+                bypasses, entries.size(), bytes);
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls indexes until they start, on behalf of everyone waiting for them.
+ * Waiters for the same index share a single poll, which checks again after
+ * an exponentially growing, jittered delay, and stops once the index starts,
+ * fails or nobody is waiting anymore.
+ *
+ * @author flaptor
+ */
+final class StartPoller {
+
+    private static final long INITIAL_DELAY = 250;
+    private static final long MAX_DELAY = 10000;
+    private static final int MAX_FAILURES = 5;
+    private static final int THREADS = 4;
+
+    /**
+     * Checks whether an index has started, calling the API.
+     */
+    interface Check {
+        boolean hasStarted() throws IOException, IndexDoesNotExistException;
+    }
+
+    /**
+     * Serves {@link Index} implementations that don't poll on their own.
+     */
+    static final StartPoller SHARED = new StartPoller();
+
+    private class Poll implements Runnable {
+        final Object key;
+        final Check check;
+        // guarded by StartPoller.this
+        final List<CompletableFuture<Void>> waiters = new ArrayList<CompletableFuture<Void>>();
+        int attempts;
+        int failures;
+
+        Poll(Object key, Check check) {
+            this.key = key;
+            this.check = check;
+        }
+
+        @Override
+        public void run() {
+            synchronized (StartPoller.this) {
+                for (Iterator<CompletableFuture<Void>> it = waiters.iterator(); it.hasNext();) {
+                    if (it.next().isDone()) {
+                        it.remove();
+                    }
+                }
+                if (waiters.isEmpty()) {
+                    polls.remove(key);
+                    return;
+                }
+            }
+
+            boolean started = false;
+            Throwable error = null;
+            try {
+                started = check.hasStarted();
+                failures = 0;
+            } catch (IOException e) {
+                // may be transient, give up only if it keeps happening
+                if (++failures >= MAX_FAILURES) {
+                    error = e;
+                }
+            } catch (Throwable e) {
+                error = e;
+            }
+
+            if (!started && error == null) {
+                schedule(this, delay(++attempts));
+                return;
+            }
+
+            List<CompletableFuture<Void>> done;
+            synchronized (StartPoller.this) {
+                polls.remove(key);
+                done = new ArrayList<CompletableFuture<Void>>(waiters);
+            }
+            for (CompletableFuture<Void> waiter : done) {
+                if (error != null) {
+                    waiter.completeExceptionally(error);
+                } else {
+                    waiter.complete(null);
+                }
+            }
+        }
+    }
+
+    // guarded by this
+    private final Map<Object, Poll> polls = new HashMap<Object, Poll>();
+    private ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * @param key
+     *            identifies the index, waiters with equal keys share a poll
+     * @return a future, owned by the caller, that completes when the index
+     *         starts. Cancelling it stops waiting.
+     */
+    synchronized CompletableFuture<Void> onStarted(Object key, Check check) {
+        Poll poll = polls.get(key);
+        if (poll == null) {
+            poll = new Poll(key, check);
+            polls.put(key, poll);
+            schedule(poll, 0);
+        }
+        CompletableFuture<Void> waiter = new CompletableFuture<Void>();
+        poll.waiters.add(waiter);
+        return waiter;
+    }
+
+    private synchronized void schedule(Poll poll, long delay) {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "indextank-start-poller");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduler.setKeepAliveTime(30, TimeUnit.SECONDS);
+            scheduler.allowCoreThreadTimeOut(true);
+        }
+        scheduler.schedule(poll, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Exponential backoff with jitter, so polls started together spread out.
+     */
+    private static long delay(int attempts) {
+        long delay = INITIAL_DELAY << Math.min(attempts - 1, 16);
+        delay = Math.min(delay, MAX_DELAY);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+}
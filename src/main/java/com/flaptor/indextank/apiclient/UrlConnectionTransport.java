@@ -0,0 +1,113 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Map.Entry;
+
+/**
+ * {@link HttpTransport} backed by {@link HttpURLConnection}. Connection reuse
+ * is left to the JDK, so it doesn't offer any pooling guarantees, but it works
+ * in environments where opening sockets directly is not allowed (such as
+ * Google App Engine).
+ *
+ * @author flaptor
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    public UrlConnectionTransport() {
+        this(0, 0);
+    }
+
+    /**
+     * @param connectTimeout
+     *            milliseconds to wait for a connection to be established. 0
+     *            means no timeout.
+     * @param readTimeout
+     *            milliseconds to wait for data when reading the response. 0
+     *            means no timeout.
+     */
+    public UrlConnectionTransport(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        final HttpURLConnection urlConnection = (HttpURLConnection) request
+                .getUrl().openConnection();
+
+        // GAE fix:
+        // http://code.google.com/p/googleappengine/issues/detail?id=1454
+        urlConnection.setInstanceFollowRedirects(false);
+        urlConnection.setConnectTimeout(connectTimeout);
+        urlConnection.setReadTimeout(readTimeout);
+        urlConnection.setRequestMethod(request.getMethod());
+        for (Entry<String, String> header : request.getHeaders().entrySet()) {
+            urlConnection.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        RequestBody body = request.getBody();
+        if (body != null) {
+            urlConnection.setDoOutput(true);
+            long length = body.contentLength();
+            if (length >= 0) {
+                urlConnection.setFixedLengthStreamingMode(length);
+            } else {
+                urlConnection.setChunkedStreamingMode(0);
+            }
+            OutputStream out = urlConnection.getOutputStream();
+            body.writeTo(out);
+            out.close();
+        }
+
+        final int status = urlConnection.getResponseCode();
+
+        return new Response() {
+            private InputStream stream;
+
+            @Override
+            public int getStatus() {
+                return status;
+            }
+
+            @Override
+            public String getHeader(String name) {
+                return urlConnection.getHeaderField(name);
+            }
+
+            @Override
+            public InputStream getBody() throws IOException {
+                if (stream == null) {
+                    stream = status >= 400 ? urlConnection.getErrorStream()
+                            : urlConnection.getInputStream();
+                    if (stream == null) {
+                        stream = new ByteArrayInputStream(new byte[0]);
+                    }
+                }
+                return stream;
+            }
+
+            @Override
+            public void close() {
+                try {
+                    // closing the stream (instead of disconnecting) lets the
+                    // JDK keep the connection alive
+                    getBody().close();
+                } catch (IOException e) {
+                    urlConnection.disconnect();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
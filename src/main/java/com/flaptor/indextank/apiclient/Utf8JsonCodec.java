@@ -0,0 +1,289 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.json.simple.JSONAware;
+
+/**
+ * {@link JsonCodec} that encodes straight into UTF-8 bytes, with no
+ * intermediate Strings or Writers, and reads with a {@link JsonScanner}.
+ *
+ * The output is the same as json-simple's, except that only the characters
+ * JSON requires are escaped, and values of unknown types are written as
+ * strings.
+ *
+ * Bodies up to 64K are read whole and scanned from memory, which is the
+ * fastest for the small responses of most calls. Bigger ones are parsed
+ * incrementally from the stream by the {@link ResponseParser}, so they are
+ * never held whole as bytes.
+ *
+ * @author flaptor
+ */
+final class Utf8JsonCodec implements JsonCodec {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_SCANNED = 64 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    @Override
+    public void write(Object value, OutputStream out) throws IOException {
+        Encoder encoder = new Encoder(out, new byte[BUFFER_SIZE]);
+        encoder.writeValue(value);
+        encoder.flush();
+    }
+
+    @Override
+    public byte[] toBytes(Object value) {
+        Encoder encoder = new Encoder(null, new byte[256]);
+        try {
+            encoder.writeValue(value);
+        } catch (IOException e) {
+            // only thrown when writing to a stream
+            throw new RuntimeException(e);
+        }
+        return Arrays.copyOf(encoder.buffer, encoder.count);
+    }
+
+    @Override
+    public Object read(InputStream in) throws IOException {
+        byte[] data = in.readNBytes(MAX_SCANNED + 1);
+        if (data.length > MAX_SCANNED) {
+            // too big to hold whole, parse the rest as it arrives
+            return ResponseParser.parse(new SequenceInputStream(
+                    new ByteArrayInputStream(data), in));
+        }
+        JsonScanner scanner = new JsonScanner(data, 0, data.length);
+        if (scanner.atEnd()) {
+            return null;
+        }
+        Object value = scanner.readValue();
+        if (!scanner.atEnd()) {
+            throw scanner.error();
+        }
+        return value;
+    }
+
+    /**
+     * Encodes into a buffer that is written to the stream when full, or that
+     * grows when there is no stream.
+     */
+    private static class Encoder {
+        private final OutputStream out;
+        byte[] buffer;
+        int count;
+
+        Encoder(OutputStream out, byte[] buffer) {
+            this.out = out;
+            this.buffer = buffer;
+        }
+
+        void writeValue(Object value) throws IOException {
+            if (value == null) {
+                writeAscii("null");
+            } else if (value instanceof String) {
+                writeString((String) value);
+            } else if (value instanceof Boolean) {
+                writeAscii(((Boolean) value) ? "true" : "false");
+            } else if (value instanceof Integer || value instanceof Long
+                    || value instanceof Short || value instanceof Byte) {
+                writeLong(((Number) value).longValue());
+            } else if (value instanceof Float || value instanceof Double) {
+                double number = ((Number) value).doubleValue();
+                // json-simple writes them as null too, JSON can't hold them
+                writeAscii(Double.isNaN(number) || Double.isInfinite(number) ? "null"
+                        : value.toString());
+            } else if (value instanceof Number) {
+                writeAscii(value.toString());
+            } else if (value instanceof Map) {
+                writeObject((Map<?, ?>) value);
+            } else if (value instanceof Iterable) {
+                writeArray((Iterable<?>) value);
+            } else if (value instanceof JSONAware) {
+                writeRaw(((JSONAware) value).toJSONString());
+            } else {
+                writeString(value.toString());
+            }
+        }
+
+        private void writeObject(Map<?, ?> map) throws IOException {
+            write('{');
+            boolean first = true;
+            for (Entry<?, ?> entry : map.entrySet()) {
+                if (!first) {
+                    write(',');
+                }
+                first = false;
+                Object key = entry.getKey();
+                if (key instanceof Integer) {
+                    // variable indexes
+                    write('"');
+                    writeLong((Integer) key);
+                    write('"');
+                } else {
+                    writeString(String.valueOf(key));
+                }
+                write(':');
+                writeValue(entry.getValue());
+            }
+            write('}');
+        }
+
+        private void writeArray(Iterable<?> values) throws IOException {
+            write('[');
+            boolean first = true;
+            for (Object value : values) {
+                if (!first) {
+                    write(',');
+                }
+                first = false;
+                writeValue(value);
+            }
+            write(']');
+        }
+
+        private void writeString(String value) throws IOException {
+            int length = value.length();
+            write('"');
+            byte[] buffer = this.buffer;
+            int count = this.count;
+            for (int i = 0; i < length; i++) {
+                if (count + 6 > buffer.length) {
+                    // room for the longest encoding of a character
+                    this.count = count;
+                    ensure(6);
+                    buffer = this.buffer;
+                    count = this.count;
+                }
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    if (c >= 0x20 && c != '"' && c != '\\') {
+                        buffer[count++] = (byte) c;
+                        continue;
+                    }
+                    buffer[count++] = '\\';
+                    switch (c) {
+                    case '"':
+                    case '\\':
+                        buffer[count++] = (byte) c;
+                        break;
+                    case '\n':
+                        buffer[count++] = 'n';
+                        break;
+                    case '\r':
+                        buffer[count++] = 'r';
+                        break;
+                    case '\t':
+                        buffer[count++] = 't';
+                        break;
+                    case '\b':
+                        buffer[count++] = 'b';
+                        break;
+                    case '\f':
+                        buffer[count++] = 'f';
+                        break;
+                    default:
+                        buffer[count++] = 'u';
+                        buffer[count++] = '0';
+                        buffer[count++] = '0';
+                        buffer[count++] = HEX[c >> 4];
+                        buffer[count++] = HEX[c & 0xf];
+                    }
+                } else if (c < 0x800) {
+                    buffer[count++] = (byte) (0xc0 | (c >> 6));
+                    buffer[count++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+                    buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    // unpaired, like String.getBytes does
+                    buffer[count++] = '?';
+                } else {
+                    buffer[count++] = (byte) (0xe0 | (c >> 12));
+                    buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buffer[count++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            this.count = count;
+            write('"');
+        }
+
+        private void writeLong(long value) throws IOException {
+            if (value == Long.MIN_VALUE) {
+                writeAscii(Long.toString(value));
+                return;
+            }
+            ensure(20);
+            if (value < 0) {
+                buffer[count++] = '-';
+                value = -value;
+            }
+            int digits = 1;
+            for (long rest = value / 10; rest != 0; rest /= 10) {
+                digits++;
+            }
+            int position = count + digits;
+            do {
+                buffer[--position] = (byte) ('0' + (value % 10));
+                value /= 10;
+            } while (value != 0);
+            count += digits;
+        }
+
+        private void writeAscii(String value) throws IOException {
+            int length = value.length();
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                buffer[count++] = (byte) value.charAt(i);
+            }
+        }
+
+        private void writeRaw(String json) throws IOException {
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, count, bytes.length);
+            count += bytes.length;
+        }
+
+        private void write(char c) throws IOException {
+            ensure(1);
+            buffer[count++] = (byte) c;
+        }
+
+        /**
+         * Makes room for the given number of bytes, writing out the buffer or
+         * growing it.
+         */
+        private void ensure(int needed) throws IOException {
+            if (count + needed <= buffer.length) {
+                return;
+            }
+            if (out != null) {
+                flush();
+                if (needed <= buffer.length) {
+                    return;
+                }
+            }
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + needed));
+        }
+
+        void flush() throws IOException {
+            if (count > 0) {
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+    }
+
+}
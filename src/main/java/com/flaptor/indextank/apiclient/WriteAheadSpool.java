@@ -0,0 +1,774 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.json.simple.JSONObject;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.BulkDeleteResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+
+/**
+ * Records indexing operations on disk before they are sent, so they survive
+ * the process dying and can be accepted while the API is unavailable.
+ *
+ * Operations are appended to a log of memory-mapped segment files in the
+ * given directory, and a background thread replays them in order, in batches,
+ * against the index. Its progress is saved in a checkpoint file after every
+ * batch, and segments are deleted once fully replayed. Operations that fail
+ * because the API can't be reached or answers with a server error are retried
+ * with a growing delay; operations the API rejects are dropped and reported
+ * to the {@link Listener}.
+ *
+ * Opening a spool on a directory left by a previous one resumes replaying
+ * from its checkpoint. Operations replayed after the last checkpoint may be
+ * sent twice, which is harmless for adds, deletes and updates.
+ *
+ * @author flaptor
+ */
+public class WriteAheadSpool implements Closeable {
+
+    /**
+     * Receives the operations that were rejected by the API. It's called from
+     * the replaying thread.
+     */
+    public interface Listener {
+        /**
+         * Called for every operation rejected by the API, which is dropped
+         * from the spool. Exceptions thrown from it are ignored.
+         */
+        void onRejected(String documentId, String error);
+    }
+
+    public static class Configuration {
+        protected int segmentSize = 16 * 1024 * 1024;
+        protected long maxBytes = 1024L * 1024 * 1024;
+        protected int maxBatchOperations = 500;
+        protected int maxBatchBytes = 1024 * 1024;
+        protected long maxRetryDelay = 30000;
+        protected boolean syncOnWrite = false;
+
+        /**
+         * Size of every segment file, in bytes. Operations bigger than this
+         * get a segment of their own.
+         */
+        public Configuration withSegmentSize(int segmentSize) {
+            if (segmentSize <= 0)
+                throw new IllegalArgumentException("segmentSize must be positive");
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Maximum size of the operations waiting to be replayed, in bytes.
+         * Recording more fails with an IOException until some are replayed.
+         */
+        public Configuration withMaxBytes(long maxBytes) {
+            if (maxBytes <= 0)
+                throw new IllegalArgumentException("maxBytes must be positive");
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Maximum number of operations replayed in a single batch.
+         */
+        public Configuration withMaxBatchOperations(int maxBatchOperations) {
+            if (maxBatchOperations <= 0)
+                throw new IllegalArgumentException("maxBatchOperations must be positive");
+            this.maxBatchOperations = maxBatchOperations;
+            return this;
+        }
+
+        /**
+         * Maximum size of the operations replayed in a single batch, in
+         * bytes. A single operation bigger than this is replayed on its own.
+         */
+        public Configuration withMaxBatchBytes(int maxBatchBytes) {
+            if (maxBatchBytes <= 0)
+                throw new IllegalArgumentException("maxBatchBytes must be positive");
+            this.maxBatchBytes = maxBatchBytes;
+            return this;
+        }
+
+        /**
+         * Maximum time, in milliseconds, to wait before retrying a batch
+         * while the API is unavailable.
+         */
+        public Configuration withMaxRetryDelay(long maxRetryDelay) {
+            if (maxRetryDelay <= 0)
+                throw new IllegalArgumentException("maxRetryDelay must be positive");
+            this.maxRetryDelay = maxRetryDelay;
+            return this;
+        }
+
+        /**
+         * Whether every operation, and every checkpoint, is forced to the
+         * storage device before returning. Without it, recorded operations
+         * survive the process dying, but not the machine crashing.
+         */
+        public Configuration withSyncOnWrite(boolean syncOnWrite) {
+            this.syncOnWrite = syncOnWrite;
+            return this;
+        }
+    }
+
+    private static final byte ADD = 1;
+    private static final byte DELETE = 2;
+    private static final byte UPDATE_VARIABLES = 3;
+    private static final byte UPDATE_CATEGORIES = 4;
+
+    // length, crc and type
+    private static final int HEADER_SIZE = 9;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final long INITIAL_RETRY_DELAY = 500;
+
+    private static class Segment {
+        final long number;
+        final File file;
+        MappedByteBuffer buffer;
+        // end of the valid records
+        int limit;
+
+        Segment(long number, File file) {
+            this.number = number;
+            this.file = file;
+        }
+    }
+
+    private static class Record {
+        final byte type;
+        final byte[] payload;
+        private JSONObject operation;
+
+        Record(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        /**
+         * Decodes the operation, outside the spool lock.
+         */
+        JSONObject getOperation() {
+            if (operation == null) {
+                operation = (JSONObject) new JsonScanner(payload, 0, payload.length).readValue();
+            }
+            return operation;
+        }
+
+        String getDocid() {
+            return (String) getOperation().get("docid");
+        }
+    }
+
+    private final Index index;
+    private final File directory;
+    private final Configuration conf;
+    private final Listener listener;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final Thread drainer;
+
+    // guarded by this; the first one holds the checkpoint, the last one is
+    // being written to
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private int checkpoint;
+    private long pendingCount;
+    private long pendingBytes;
+    private boolean closed;
+
+    public WriteAheadSpool(Index index, File directory, Listener listener)
+            throws IOException {
+        this(index, directory, new Configuration(), listener);
+    }
+
+    /**
+     * Opens the spool stored in the given directory, creating it if needed,
+     * and starts replaying the operations pending in it.
+     *
+     * @throws IOException
+     *             if the directory can't be used, or another spool is using it
+     */
+    public WriteAheadSpool(Index index, File directory, Configuration conf,
+            Listener listener) throws IOException {
+        if (index == null)
+            throw new IllegalArgumentException("index can not be null");
+        if (directory == null)
+            throw new IllegalArgumentException("directory can not be null");
+        if (listener == null)
+            throw new IllegalArgumentException("listener can not be null");
+        this.index = index;
+        this.directory = directory;
+        this.conf = conf;
+        this.listener = listener;
+
+        Files.createDirectories(directory.toPath());
+        this.lockChannel = FileChannel.open(new File(directory, "lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another spool in this process
+            lock = null;
+        }
+        this.lock = lock;
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Spool directory is in use: " + directory);
+        }
+        try {
+            recover();
+        } catch (IOException e) {
+            lock.release();
+            lockChannel.close();
+            throw e;
+        }
+
+        this.drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "indextank-spool-drainer");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    public void addDocument(Document document) throws IOException {
+        if (document == null)
+            throw new IllegalArgumentException("document can not be null");
+        append(ADD, document.toDocumentMap());
+    }
+
+    public void deleteDocument(String documentId) throws IOException {
+        append(DELETE, operation(documentId, null, null));
+    }
+
+    public void updateVariables(String documentId, Map<Integer, Float> variables)
+            throws IOException {
+        if (variables == null)
+            throw new IllegalArgumentException("variables can not be null");
+        append(UPDATE_VARIABLES, operation(documentId, "variables", variables));
+    }
+
+    public void updateCategories(String documentId, Map<String, String> categories)
+            throws IOException {
+        if (categories == null)
+            throw new IllegalArgumentException("categories can not be null");
+        append(UPDATE_CATEGORIES, operation(documentId, "categories", categories));
+    }
+
+    private static Map<String, Object> operation(String documentId, String key,
+            Object value) {
+        if (documentId == null)
+            throw new IllegalArgumentException("documentId can not be null");
+        Map<String, Object> operation = new HashMap<String, Object>();
+        operation.put("docid", documentId);
+        if (key != null) {
+            operation.put(key, value);
+        }
+        return operation;
+    }
+
+    /**
+     * @return the number of operations waiting to be replayed.
+     */
+    public synchronized long getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * @return the size of the operations waiting to be replayed, in bytes.
+     */
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Waits until every operation recorded so far has been replayed.
+     *
+     * @return false if the timeout elapsed first.
+     */
+    public synchronized boolean awaitDrained(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (pendingCount > 0) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Stops replaying, once the batch being sent completes, and releases the
+     * directory. Pending operations stay on disk, to be replayed by the next
+     * spool opened on it.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment.buffer != null) {
+                    segment.buffer.force();
+                    segment.buffer = null;
+                }
+            }
+        }
+        lock.release();
+        lockChannel.close();
+    }
+
+    private synchronized void append(byte type, Map<String, Object> operation)
+            throws IOException {
+        if (closed)
+            throw new IllegalStateException("WriteAheadSpool has been closed");
+
+        byte[] payload = JSONObject.toJSONString(operation).getBytes(StandardCharsets.UTF_8);
+        int size = HEADER_SIZE + payload.length;
+        if (pendingBytes + size > conf.maxBytes) {
+            throw new IOException("Spool is full (" + pendingBytes + " bytes pending)");
+        }
+
+        Segment segment = segments.getLast();
+        // leave room for the empty length that marks the end of the segment
+        if (segment.limit + size + 4 > segment.buffer.capacity()) {
+            segment.buffer.force();
+            if (segment != segments.getFirst()) {
+                segment.buffer = null;
+            }
+            segment = createSegment(segment.number + 1, Math.max(conf.segmentSize, size + 4));
+            segments.addLast(segment);
+        }
+
+        ByteBuffer buffer = segment.buffer;
+        buffer.position(segment.limit);
+        buffer.putInt(payload.length);
+        buffer.putInt(crc(type, payload));
+        buffer.put(type);
+        buffer.put(payload);
+        if (conf.syncOnWrite) {
+            segment.buffer.force();
+        }
+        segment.limit += size;
+        pendingCount++;
+        pendingBytes += size;
+        notifyAll();
+    }
+
+    private static int crc(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private Segment createSegment(long number, int size) throws IOException {
+        Segment segment = new Segment(number, segmentFile(number));
+        RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+        try {
+            file.setLength(size);
+            segment.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            file.close();
+        }
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File segmentFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile, "rw");
+        try {
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        } finally {
+            file.close();
+        }
+    }
+
+    private File segmentFile(long number) {
+        return new File(directory, String.format("%020d", number) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Loads the segments and checkpoint left in the directory, dropping any
+     * partially written record at the end of the log.
+     */
+    private void recover() throws IOException {
+        long checkpointSegment = 0;
+        int checkpointOffset = 0;
+        File checkpointFile = new File(directory, CHECKPOINT);
+        if (checkpointFile.exists()) {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(checkpointFile.toPath()));
+            if (data.remaining() != 16) {
+                throw new IOException("Corrupt spool checkpoint: " + checkpointFile);
+            }
+            checkpointSegment = data.getLong();
+            checkpointOffset = data.getInt();
+            if (data.getInt() != checkpointCrc(checkpointSegment, checkpointOffset)) {
+                throw new IOException("Corrupt spool checkpoint: " + checkpointFile);
+            }
+        }
+
+        List<Long> numbers = new ArrayList<Long>();
+        String[] names = directory.list();
+        for (String name : names != null ? names : new String[0]) {
+            if (name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    numbers.add(Long.valueOf(name.substring(0,
+                            name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not ours
+                }
+            }
+        }
+        Long[] sorted = numbers.toArray(new Long[numbers.size()]);
+        Arrays.sort(sorted);
+
+        for (long number : sorted) {
+            File file = segmentFile(number);
+            if (number < checkpointSegment) {
+                // fully replayed, but not deleted yet
+                Files.delete(file.toPath());
+                continue;
+            }
+            Segment segment = new Segment(number, file);
+            segment.buffer = map(file);
+            int start = number == checkpointSegment ? checkpointOffset : 0;
+            segment.limit = scan(segment.buffer, start);
+            if (segment.limit < start) {
+                throw new IOException("Corrupt spool segment: " + file);
+            }
+            if (!segments.isEmpty() && segments.getLast() != segments.getFirst()) {
+                segments.getLast().buffer = null;
+            }
+            segments.addLast(segment);
+        }
+
+        if (segments.isEmpty()) {
+            segments.addLast(createSegment(checkpointSegment, conf.segmentSize));
+        } else if (segments.getFirst().number == checkpointSegment) {
+            checkpoint = checkpointOffset;
+        }
+    }
+
+    /**
+     * Counts the valid records in a segment, from the given offset on.
+     *
+     * @return the end of the last valid record, or -1 if the offset isn't at
+     *         the start of one.
+     */
+    private int scan(ByteBuffer buffer, int start) {
+        int offset = 0;
+        while (offset + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || length > buffer.capacity() - offset - HEADER_SIZE) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.position(offset + HEADER_SIZE);
+            buffer.get(payload);
+            if (buffer.getInt(offset + 4) != crc(buffer.get(offset + 8), payload)) {
+                break;
+            }
+            if (offset >= start) {
+                pendingCount++;
+                pendingBytes += HEADER_SIZE + length;
+            }
+            offset += HEADER_SIZE + length;
+        }
+        return offset >= start ? offset : -1;
+    }
+
+    /**
+     * Replays batches of pending operations until the spool is closed.
+     */
+    private void drain() {
+        long retryDelay = INITIAL_RETRY_DELAY;
+        while (true) {
+            List<Record> batch = new ArrayList<Record>();
+            synchronized (this) {
+                while (!closed && pendingCount == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                readBatch(batch);
+            }
+
+            int replayed = replay(batch);
+            try {
+                synchronized (this) {
+                    commit(replayed);
+                    if (replayed < batch.size() && !closed) {
+                        // the API is unavailable, wait a while before retrying
+                        wait(retryDelay);
+                        retryDelay = Math.min(retryDelay * 2, conf.maxRetryDelay);
+                    } else {
+                        retryDelay = INITIAL_RETRY_DELAY;
+                    }
+                }
+            } catch (IOException e) {
+                // the checkpoint couldn't be saved, the batch will be replayed
+                // again if the process dies before the next one
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the records following the checkpoint, up to the batch limits.
+     * Batches don't span segments, so they can be committed with a single
+     * offset.
+     */
+    private void readBatch(List<Record> batch) {
+        Segment segment = segments.getFirst();
+        ByteBuffer buffer = segment.buffer;
+        long bytes = 0;
+        int offset = checkpoint;
+        while (offset < segment.limit && batch.size() < conf.maxBatchOperations) {
+            int length = buffer.getInt(offset);
+            if (!batch.isEmpty() && bytes + length > conf.maxBatchBytes) {
+                return;
+            }
+            byte[] payload = new byte[length];
+            buffer.position(offset + HEADER_SIZE);
+            buffer.get(payload);
+            batch.add(new Record(buffer.get(offset + 8), payload));
+            bytes += length;
+            offset += HEADER_SIZE + length;
+        }
+    }
+
+    /**
+     * Moves the checkpoint past the given number of records, deleting
+     * segments left behind.
+     */
+    private void commit(int records) throws IOException {
+        Segment segment = segments.getFirst();
+        for (int i = 0; i < records; i++) {
+            int size = HEADER_SIZE + segment.buffer.getInt(checkpoint);
+            checkpoint += size;
+            pendingCount--;
+            pendingBytes -= size;
+        }
+        if (checkpoint >= segment.limit && segment != segments.getLast()) {
+            segments.removeFirst();
+            segment.buffer = null;
+            Segment next = segments.getFirst();
+            if (next.buffer == null) {
+                next.buffer = map(next.file);
+            }
+            checkpoint = 0;
+            saveCheckpoint(next.number, 0);
+            Files.delete(segment.file.toPath());
+        } else if (records > 0) {
+            saveCheckpoint(segment.number, checkpoint);
+        }
+        notifyAll();
+    }
+
+    private static int checkpointCrc(long segment, int offset) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(12).putLong(segment).putInt(offset).array());
+        return (int) crc.getValue();
+    }
+
+    private void saveCheckpoint(long segment, int offset) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(16);
+        data.putLong(segment);
+        data.putInt(offset);
+        data.putInt(checkpointCrc(segment, offset));
+
+        File temp = new File(directory, CHECKPOINT + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data.array());
+            if (conf.syncOnWrite) {
+                out.getFD().sync();
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), new File(directory, CHECKPOINT).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Sends a batch, grouping consecutive operations of the same kind into
+     * bulk calls where the API has them.
+     *
+     * @return the number of records replayed before the API became
+     *         unavailable, or the size of the batch.
+     */
+    private int replay(List<Record> batch) {
+        int start = 0;
+        while (start < batch.size()) {
+            byte type = batch.get(start).type;
+            int end = start + 1;
+            if (type == ADD || type == DELETE) {
+                while (end < batch.size() && batch.get(end).type == type) {
+                    end++;
+                }
+            }
+            List<Record> group = batch.subList(start, end);
+            try {
+                send(type, group);
+            } catch (Exception e) {
+                if (isTransient(e)) {
+                    return start;
+                }
+                for (Record record : group) {
+                    rejected(record.getDocid(), String.valueOf(e.getMessage()));
+                }
+            }
+            start = end;
+        }
+        return batch.size();
+    }
+
+    /**
+     * Tells the listener about a rejected operation. What it throws is
+     * dropped, so it can't stop the replaying thread.
+     */
+    private void rejected(String documentId, String error) {
+        try {
+            listener.onRejected(documentId, error);
+        } catch (RuntimeException e) {
+            // the operation is dropped from the spool anyway
+        }
+    }
+
+    private void send(byte type, List<Record> group) throws IOException,
+            IndexDoesNotExistException {
+        switch (type) {
+        case ADD:
+            List<Document> documents = new ArrayList<Document>(group.size());
+            for (Record record : group) {
+                documents.add(toDocument(record.getOperation()));
+            }
+            BatchResults results = index.addDocuments(documents);
+            if (results.hasErrors()) {
+                for (int i = 0; i < documents.size(); i++) {
+                    if (!results.getResult(i)) {
+                        rejected(group.get(i).getDocid(), results.getErrorMessage(i));
+                    }
+                }
+            }
+            break;
+        case DELETE:
+            List<String> docids = new ArrayList<String>(group.size());
+            for (Record record : group) {
+                docids.add(record.getDocid());
+            }
+            BulkDeleteResults deleted = index.deleteDocuments(docids);
+            if (deleted.hasErrors()) {
+                for (int i = 0; i < docids.size(); i++) {
+                    if (!deleted.getResult(i)) {
+                        rejected(docids.get(i), deleted.getErrorMessage(i));
+                    }
+                }
+            }
+            break;
+        case UPDATE_VARIABLES:
+            index.updateVariables(group.get(0).getDocid(),
+                    toVariables((Map<?, ?>) group.get(0).getOperation().get("variables")));
+            break;
+        case UPDATE_CATEGORIES:
+            index.updateCategories(group.get(0).getDocid(),
+                    toStrings((Map<?, ?>) group.get(0).getOperation().get("categories")));
+            break;
+        default:
+            throw new IllegalStateException("Unknown spooled operation " + type);
+        }
+    }
+
+    /**
+     * @return whether the operation failed because the API couldn't be
+     *         reached or was unavailable, and may succeed later.
+     */
+    private static boolean isTransient(Exception e) {
+        if (e instanceof IOException) {
+            return true;
+        }
+        if (e instanceof UnexpectedCodeException) {
+            int code = ((UnexpectedCodeException) e).httpCode;
+            return code >= 500 || code == 429;
+        }
+        return false;
+    }
+
+    private static Document toDocument(JSONObject operation) {
+        Map<?, ?> variables = (Map<?, ?>) operation.get("variables");
+        Map<?, ?> categories = (Map<?, ?>) operation.get("categories");
+        return new Document((String) operation.get("docid"),
+                toStrings((Map<?, ?>) operation.get("fields")),
+                variables != null ? toVariables(variables) : null,
+                categories != null ? toStrings(categories) : null);
+    }
+
+    private static Map<Integer, Float> toVariables(Map<?, ?> map) {
+        Map<Integer, Float> variables = new HashMap<Integer, Float>();
+        for (Entry<?, ?> entry : map.entrySet()) {
+            variables.put(Integer.valueOf((String) entry.getKey()),
+                    ((Number) entry.getValue()).floatValue());
+        }
+        return variables;
+    }
+
+    private static Map<String, String> toStrings(Map<?, ?> map) {
+        if (map == null) {
+            return null;
+        }
+        Map<String, String> strings = new LinkedHashMap<String, String>();
+        for (Entry<?, ?> entry : map.entrySet()) {
+            strings.put((String) entry.getKey(), (String) entry.getValue());
+        }
+        return strings;
+    }
+
+}
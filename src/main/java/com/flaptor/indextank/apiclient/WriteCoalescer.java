@@ -0,0 +1,382 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.Closeable;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.BulkDeleteResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.BulkUpdateResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+
+/**
+ * Holds writes to an index for a short while, merging the ones made to the
+ * same document, so only the last state of each document is sent.
+ *
+ * A later add supersedes whatever was pending for the document. Variable and
+ * category updates are folded into a pending add, or into each other. A
+ * delete cancels a pending add or update, and is sent on its own, since the
+ * document may have been indexed before. An update made after a pending
+ * delete isn't sent, and is reported to the {@link Listener} as failed.
+ *
+ * Pending writes are sent once there are the configured number of documents
+ * with pending writes, or the first of them has been waiting for the
+ * configured linger time. Adds are sent in a single
+ * {@link Index#addDocuments(Iterable)} call, deletes in a single
+ * {@link Index#deleteDocuments(Iterable)} call, and updates in a single
+ * {@link Index#updateVariables(Iterable)} and
+ * {@link Index#updateCategories(Iterable)} call.
+ *
+ * @author flaptor
+ */
+public class WriteCoalescer implements Closeable {
+
+    /**
+     * Receives the writes that couldn't be made. It's called from the thread
+     * that triggered the flush, so implementations must be thread-safe.
+     */
+    public interface Listener {
+        /**
+         * Called for every document whose pending write failed.
+         */
+        void onFailed(String documentId, String error);
+    }
+
+    public static class Configuration {
+        protected int maxDocuments = 500;
+        protected long maxLinger = 1000;
+
+        /**
+         * Maximum number of documents with pending writes.
+         */
+        public Configuration withMaxDocuments(int maxDocuments) {
+            if (maxDocuments <= 0)
+                throw new IllegalArgumentException("maxDocuments must be positive");
+            this.maxDocuments = maxDocuments;
+            return this;
+        }
+
+        /**
+         * Maximum time, in milliseconds, a write waits to be merged with
+         * later ones before it's sent anyway.
+         */
+        public Configuration withMaxLinger(long maxLinger) {
+            if (maxLinger <= 0)
+                throw new IllegalArgumentException("maxLinger must be positive");
+            this.maxLinger = maxLinger;
+            return this;
+        }
+    }
+
+    /**
+     * The merged writes pending for a document: an add, a delete, or
+     * variable and category updates.
+     */
+    private static class Pending {
+        final Document document;
+        final boolean delete;
+        final Map<Integer, Float> variables;
+        final Map<String, String> categories;
+
+        Pending(Document document, boolean delete, Map<Integer, Float> variables,
+                Map<String, String> categories) {
+            this.document = document;
+            this.delete = delete;
+            this.variables = variables;
+            this.categories = categories;
+        }
+    }
+
+    private final Index index;
+    private final Configuration conf;
+    private final Listener listener;
+    private final ScheduledThreadPoolExecutor scheduler;
+    // held while sending, so writes to a document are sent in order
+    private final Object sendLock = new Object();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    // guarded by this
+    private LinkedHashMap<String, Pending> pending = new LinkedHashMap<String, Pending>();
+    private long generation;
+    private boolean closed;
+
+    public WriteCoalescer(Index index, Listener listener) {
+        this(index, new Configuration(), listener);
+    }
+
+    public WriteCoalescer(Index index, Configuration conf, Listener listener) {
+        if (index == null)
+            throw new IllegalArgumentException("index can not be null");
+        if (listener == null)
+            throw new IllegalArgumentException("listener can not be null");
+        this.index = index;
+        this.conf = conf;
+        this.listener = listener;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "indextank-write-coalescer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    public void addDocument(Document document) {
+        if (document == null)
+            throw new IllegalArgumentException("document can not be null");
+        write(document.getId(), new Pending(document, false, null, null));
+    }
+
+    public void deleteDocument(String documentId) {
+        write(documentId, new Pending(null, true, null, null));
+    }
+
+    public void updateVariables(String documentId, Map<Integer, Float> variables) {
+        if (variables == null)
+            throw new IllegalArgumentException("variables can not be null");
+        write(documentId, new Pending(null, false, variables, null));
+    }
+
+    public void updateCategories(String documentId, Map<String, String> categories) {
+        if (categories == null)
+            throw new IllegalArgumentException("categories can not be null");
+        write(documentId, new Pending(null, false, null, categories));
+    }
+
+    private void write(String documentId, Pending write) {
+        if (documentId == null)
+            throw new IllegalArgumentException("documentId can not be null");
+
+        boolean full = false;
+        synchronized (this) {
+            if (closed)
+                throw new IllegalStateException("WriteCoalescer has been closed");
+
+            Pending previous = pending.get(documentId);
+            if (previous != null && previous.delete && write.document == null
+                    && !write.delete) {
+                // updating a deleted document fails, it stays deleted
+                write = null;
+            } else if (previous != null) {
+                write = merge(previous, write);
+                coalesced.incrementAndGet();
+            }
+            if (write != null) {
+                pending.put(documentId, write);
+                if (pending.size() == 1) {
+                    scheduleLinger(generation);
+                }
+                full = pending.size() >= conf.maxDocuments;
+            }
+        }
+
+        if (write == null) {
+            listener.onFailed(documentId, "Document is pending deletion");
+        } else if (full) {
+            flush();
+        }
+    }
+
+    private static Pending merge(Pending previous, Pending next) {
+        if (next.document != null || next.delete) {
+            return next;
+        }
+        if (previous.document != null) {
+            Document document = previous.document;
+            if (next.variables != null) {
+                document = document.withVariables(next.variables);
+            }
+            if (next.categories != null) {
+                document = document.withCategories(next.categories);
+            }
+            return new Pending(document, false, null, null);
+        }
+        return new Pending(null, false,
+                merged(previous.variables, next.variables),
+                merged(previous.categories, next.categories));
+    }
+
+    private static <K, V> Map<K, V> merged(Map<K, V> previous, Map<K, V> next) {
+        if (previous == null) {
+            return next;
+        }
+        if (next == null) {
+            return previous;
+        }
+        Map<K, V> merged = new HashMap<K, V>(previous);
+        merged.putAll(next);
+        return merged;
+    }
+
+    /**
+     * Sends every pending write and waits for them to complete.
+     */
+    public void flush() {
+        synchronized (sendLock) {
+            Map<String, Pending> writes;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                writes = pending;
+                pending = new LinkedHashMap<String, Pending>();
+                generation++;
+            }
+            send(writes);
+        }
+    }
+
+    /**
+     * Sends the pending writes and releases the linger thread. Writes can't
+     * be made after this.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        flush();
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of documents with pending writes.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of writes merged into a pending one instead of
+     *         being sent.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    private void send(Map<String, Pending> writes) {
+        List<Document> adds = new ArrayList<Document>();
+        List<String> deletes = new ArrayList<String>();
+        List<Map.Entry<String, Map<Integer, Float>>> variables = new ArrayList<Map.Entry<String, Map<Integer, Float>>>();
+        List<Map.Entry<String, Map<String, String>>> categories = new ArrayList<Map.Entry<String, Map<String, String>>>();
+        for (Map.Entry<String, Pending> entry : writes.entrySet()) {
+            Pending write = entry.getValue();
+            if (write.document != null) {
+                adds.add(write.document);
+            } else if (write.delete) {
+                deletes.add(entry.getKey());
+            } else {
+                if (write.variables != null) {
+                    variables.add(new SimpleEntry<String, Map<Integer, Float>>(
+                            entry.getKey(), write.variables));
+                }
+                if (write.categories != null) {
+                    categories.add(new SimpleEntry<String, Map<String, String>>(
+                            entry.getKey(), write.categories));
+                }
+            }
+        }
+
+        if (!deletes.isEmpty()) {
+            try {
+                BulkDeleteResults results = index.deleteDocuments(deletes);
+                for (int i = 0; i < deletes.size(); i++) {
+                    if (!results.getResult(i)) {
+                        listener.onFailed(deletes.get(i), results.getErrorMessage(i));
+                    }
+                }
+            } catch (Exception e) {
+                failed(deletes, e);
+            }
+        }
+
+        if (!variables.isEmpty()) {
+            try {
+                updated(variables, index.updateVariables(variables));
+            } catch (Exception e) {
+                failed(keys(variables), e);
+            }
+        }
+
+        if (!categories.isEmpty()) {
+            try {
+                updated(categories, index.updateCategories(categories));
+            } catch (Exception e) {
+                failed(keys(categories), e);
+            }
+        }
+
+        if (!adds.isEmpty()) {
+            try {
+                BatchResults results = index.addDocuments(adds);
+                for (int i = 0; i < adds.size(); i++) {
+                    if (!results.getResult(i)) {
+                        listener.onFailed(adds.get(i).getId(), results.getErrorMessage(i));
+                    }
+                }
+            } catch (Exception e) {
+                List<String> documentIds = new ArrayList<String>(adds.size());
+                for (Document document : adds) {
+                    documentIds.add(document.getId());
+                }
+                failed(documentIds, e);
+            }
+        }
+    }
+
+    private void updated(List<? extends Map.Entry<String, ?>> updates,
+            BulkUpdateResults results) {
+        for (int i = 0; i < updates.size(); i++) {
+            if (!results.getResult(i)) {
+                listener.onFailed(updates.get(i).getKey(), results.getErrorMessage(i));
+            }
+        }
+    }
+
+    private static List<String> keys(List<? extends Map.Entry<String, ?>> updates) {
+        List<String> documentIds = new ArrayList<String>(updates.size());
+        for (Map.Entry<String, ?> update : updates) {
+            documentIds.add(update.getKey());
+        }
+        return documentIds;
+    }
+
+    private void failed(List<String> documentIds, Exception error) {
+        for (String documentId : documentIds) {
+            listener.onFailed(documentId, String.valueOf(error.getMessage()));
+        }
+    }
+
+    private void scheduleLinger(final long expected) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (WriteCoalescer.this) {
+                    if (generation != expected) {
+                        return;
+                    }
+                }
+                flush();
+            }
+        }, conf.maxLinger, TimeUnit.MILLISECONDS);
+    }
+
+}